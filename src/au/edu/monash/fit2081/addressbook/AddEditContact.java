@@ -6,7 +6,8 @@ package au.edu.monash.fit2081.addressbook;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.os.AsyncTask;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.Gravity;
 import android.view.View;
@@ -19,6 +20,9 @@ import au.edu.monash.fit2081.addressbook.R;
 
 public class AddEditContact extends Activity{
    private long rowID; // id of contact being edited, not set if adding
+   private boolean editing; // true for an EDIT (an ADD is started without extras)
+   private Contact original; // the contact being edited as it was loaded, null until then (and for an ADD)
+   private boolean restored; // the EditTexts were restored after a rotation, the load mustn't overwrite them
    
    // EditTexts references for contact information
    private EditText nameEditText;
@@ -27,6 +31,12 @@ public class AddEditContact extends Activity{
    private EditText streetEditText;
    private EditText cityEditText;
    private CheckBox favouriteEdit;
+   private Button choosePhotoButton;
+   private Button saveContactButton;
+   private Uri photoUri; // image chosen as the contact's photo, null if the photo isn't being changed
+   
+   private static final int CHOOSE_PHOTO = 1; // request code for the image picker
+   private static final String PHOTO_URI = "photo_uri"; // saved instance state key
    
    // called when the Activity is first started
    @Override
@@ -45,51 +55,107 @@ public class AddEditContact extends Activity{
       
       Bundle extras = getIntent().getExtras();
 
-      if (extras != null){ // we came to edit not to add (add sends no intent extras, edit sends rowID + field values)
-         rowID = extras.getLong("row_id");
-         
-         nameEditText.setText(extras.getString("name"));  
-         emailEditText.setText(extras.getString("email"));
-         favouriteEdit.setChecked(extras.getBoolean("favourite"));
-         phoneEditText.setText(extras.getString("phone"));  
-         streetEditText.setText(extras.getString("street"));  
-         cityEditText.setText(extras.getString("city"));  
+      if (extras != null){ // we came to edit not to add (add sends no intent extras, edit sends just the rowID)
+         rowID = extras.getLong(AddressBook.ROW_ID);
+         editing = true;
+         restored = savedInstanceState != null; // EditTexts save and restore their own text
+         // the fields are filled in once the contact is loaded (see onResume)
       }
       // else we came to add not edit
       	 // without data inserted fields will automatically show hints for an add
       
+      // a photo chosen before a rotation is still to be saved
+      if (savedInstanceState != null && savedInstanceState.getString(PHOTO_URI) != null)
+         photoUri = Uri.parse(savedInstanceState.getString(PHOTO_URI));
+      choosePhotoButton = (Button) findViewById(R.id.choosePhotoButton);
+      choosePhotoButton.setText((photoUri == null) ? R.string.button_choose_photo : R.string.button_photo_chosen);
+      choosePhotoButton.setOnClickListener(choosePhotoButtonClicked);
+      
       // set event listener for the Save Contact Button
-      Button saveContactButton = (Button) findViewById(R.id.saveContactButton);
+      saveContactButton = (Button) findViewById(R.id.saveContactButton);
       saveContactButton.setOnClickListener(saveContactButtonClicked);
+      saveContactButton.setEnabled(!editing); // an EDIT can only be saved once there is something to compare it with
    }
+   
+   //executes each time the Activity regains the focus (including the first time)
+   @Override
+   protected void onResume(){
+      super.onResume();
+      
+      // the contact being edited, normally straight from ContactCache (ViewContact has just shown it)
+      // loaded here rather than in onCreate so a load cancelled by onStop is made again
+      if (editing && original == null)
+         ContactRepository.getInstance(this).getContact(this, rowID, contactLoaded);
+   }
+   
+   ContactRepository.Callback<Contact> contactLoaded = new ContactRepository.Callback<Contact>(){
+      @Override
+      public void onResult(Contact result){ // executes on the GUI thread
+         if (result == null){
+            finish(); // the contact has been deleted meanwhile (e.g. by a sync), there is nothing to edit
+            return;
+         }
+         
+         original = result;
+         if (!restored){
+            nameEditText.setText(result.getName());
+            emailEditText.setText(result.getEmail());
+            favouriteEdit.setChecked(result.isFavourite());
+            phoneEditText.setText(result.getPhone());
+            streetEditText.setText(result.getStreet());
+            cityEditText.setText(result.getCity());
+         }
+         saveContactButton.setEnabled(true);
+      }
+   };
 
    
+   // lets the user pick an image (from the gallery or any other App that provides them)
+   OnClickListener choosePhotoButtonClicked = new OnClickListener(){
+      @Override
+      public void onClick(View v){
+         Intent choosePhoto = new Intent(Intent.ACTION_GET_CONTENT);
+         choosePhoto.setType("image/*");
+         startActivityForResult(choosePhoto, CHOOSE_PHOTO);
+      }
+   };
+   
+   // the image the user picked (it is only read when the contact is saved, see ContactPhotos.setPhoto)
+   @Override
+   protected void onActivityResult(int requestCode, int resultCode, Intent data){
+      if (requestCode == CHOOSE_PHOTO && resultCode == RESULT_OK && data != null && data.getData() != null){
+         photoUri = data.getData();
+         choosePhotoButton.setText(R.string.button_photo_chosen);
+      }
+   }
+   
+   @Override
+   protected void onSaveInstanceState(Bundle outState){
+      super.onSaveInstanceState(outState);
+      if (photoUri != null)
+         outState.putString(PHOTO_URI, photoUri.toString());
+   }
+   
    // responds to event generated when user clicks the Save Contact button
    OnClickListener saveContactButtonClicked = new OnClickListener() 
    {
       @Override
       public void onClick(View v){
          if (nameEditText.getText().length() != 0){ // will only save if name at least is present
-        	// none of AsyncTask's generic parameters are used
-        	// nothing passed to doInBackground or returned from onPostExecute and no progress tracked
-        	// why? a Save for ADD needs nothing passed and a Save for EDIT uses the class level rowID set in onCreate
-            AsyncTask<Object, Object, Object> saveContactTask = new AsyncTask<Object, Object, Object>() 
-               {
+            // save the contact to the database on the repository's writer thread (NOT on main/GUI thread)
+            // the callback runs on the GUI thread once it has been written
+            saveContact(new ContactRepository.Callback<Void>(){
                   @Override
-                  protected Object doInBackground(Object... params){
-                     saveContact(); // save contact to the database NOT on main/GUI thread
-                     return null; 	//see notes immediately above
-                  }
-      
-                  @Override
-                  protected void onPostExecute(Object result){
+                  public void onResult(Void result){
                 	 makeSomeToast(); // just for a Toast example
                      finish(); // return to the previous Activity
                   }
-               }; // end AsyncTask
-               
-            // save the contact to the database using a separate thread
-            saveContactTask.execute((Object[]) null);            
+                  
+                  @Override
+                  public void onError(Exception e){ // e.g. the storage is full, the edits stay on screen to try again
+                     Toast.makeText(AddEditContact.this, R.string.save_failed, Toast.LENGTH_LONG).show();
+                  }
+               });
          }
          else{
             // create a new AlertDialog Builder
@@ -106,31 +172,37 @@ public class AddEditContact extends Activity{
 
    
    // saves contact information to the database
-   // no parameters required as ADD doesn't need them, and EDIT uses the class level rowID set in onCreate
-   private void saveContact(){ //NOT on main/GUI thread
-      // get DatabaseConnector to interact with the SQLite database
-      DatabaseConnector databaseConnector = new DatabaseConnector(this);
+   // no other parameters required as ADD doesn't need them, and EDIT uses the class level rowID set in onCreate
+   private void saveContact(ContactRepository.Callback<Void> saved){ //called on the main/GUI thread, the write itself is queued
+      ContactRepository repository = ContactRepository.getInstance(this);
+      
+      // the values as they are now (the EditTexts must not be read from the writer thread)
+      Contact contact = new Contact(rowID,
+         nameEditText.getText().toString(),
+         emailEditText.getText().toString(),
+         favouriteEdit.isChecked(),
+         phoneEditText.getText().toString(), 
+         streetEditText.getText().toString(),
+         cityEditText.getText().toString());
 
-      // db open and close for insert (add) and update (edit) done in called methods in DatabaseConnector class
-      if (getIntent().getExtras() == null){  // this is an ADD (_id is an autoincrement field see DatabaseConnector class)
-         databaseConnector.insertContact(
-            nameEditText.getText().toString(),
-            emailEditText.getText().toString(),
-            ((favouriteEdit.isChecked()?"*":" ")),
-            phoneEditText.getText().toString(), 
-            streetEditText.getText().toString(),
-            cityEditText.getText().toString());
-      }
-      else{ 								// this is an EDIT (need to pass a primary key - rowID)
-         databaseConnector.updateContact(rowID,
-            nameEditText.getText().toString(),
-            emailEditText.getText().toString(),
-            ((favouriteEdit.isChecked()?"*":" ")),
-            phoneEditText.getText().toString(), 
-            streetEditText.getText().toString(),
-            cityEditText.getText().toString());
+      if (!editing)  // this is an ADD (_id is an autoincrement field see DatabaseConnector class)
+         repository.insertContact(this, contact, photoUri, saved); // the photo (if any) is scaled and stored with it
+      else{ 			// this is an EDIT (need to pass a primary key - rowID)
+         // only the fields the user actually changed are written (e.g. just the phone), an edit that changed nothing isn't written at all
+         int changed = original.changedFields(contact);
+         if (changed == 0 && photoUri == null)
+            finish();
+         else
+            repository.updateContactFields(this, contact, changed, photoUri, saved);
       }
+   }
+   
+   // executes whenever the Activity is completely hidden
+   @Override
+   protected void onStop(){
+      ContactRepository.getInstance(this).cancel(this); // a queued save still happens, but this Activity is not told
       
+      super.onStop();
    }
    
    private void makeSomeToast(){
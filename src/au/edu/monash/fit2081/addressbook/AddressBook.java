@@ -2,46 +2,133 @@
 // Main activity for the Address Book app.
 package au.edu.monash.fit2081.addressbook;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+
+import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.CursorAdapter;
+import android.widget.EditText;
+import android.widget.ListAdapter;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.SimpleCursorAdapter;
+import android.widget.Toast;
 import au.edu.monash.fit2081.addressbook.R;
 
 public class AddressBook extends ListActivity{ 		//NOTE: EXTENDS LISTACTIVITY not Activity
+   private static final String TAG = "AddressBook";
    public static final String ROW_ID = "row_id"; 	// a key for a value passed between activities during Intents
+   public static final String IMPORT_FILE_NAME = "contacts.csv"; // file read by the Import Contacts menu item (from the App's external files directory)
+   public static final String IMPORT_VCARD_FILE_NAME = "contacts.vcf"; // read instead if there is no IMPORT_FILE_NAME (e.g. an earlier export)
+   public static final int SEARCH_LIMIT = 200; 		// most contacts shown for one search
+   public static final String EXPORT_FILE_NAME = "contacts.vcf"; // file written by the Export Contacts menu item (same directory)
+   public static final String METRICS_FILE_NAME = "metrics.txt"; // written by the Metrics menu item (App's external files directory)
+   public static final int DUPLICATES_SHOWN = 100; 	// most probable duplicates listed for review at once
+   public static final String EXPORT_SELECTED_FILE_NAME = "selected_contacts.vcf"; // written by Export Selected (same directory)
+   public static final int SELECTION_PROGRESS_MIN = 1000; // selections of at least this many contacts show their progress as they are written
+   // true: the list is one ContactIndex of every contact in primitive arrays (CompactContactAdapter), quickest to scroll and bind
+   // at any size and a fraction of the memory of a row object per contact (roughly 25-30MB at 1M contacts)
+   // false: pages of PagedContactAdapter.PAGE_SIZE contacts are read as the list is scrolled (memory bounded however big the table)
+   public static final boolean COMPACT_LIST = true;
    private ListView contactListView; 				// reference for built-in ListView (set in onCreate)
-   private CursorAdapter contactAdapter; 			// Adapter that exposes data from a Cursor to a ListView widget (Android Doco.)
-   													// Cursor: This interface provides random read-write access to the result set returned by a database query (Android Doco.)
+   private ContactListAdapter contactAdapter; 		// Adapter that exposes the contacts to a ListView widget (see COMPACT_LIST)
+   private SimpleCursorAdapter searchAdapter; 		// Adapter the ListView uses instead while search results are shown
+   private String searchQuery; 					// text in the SearchView, null when the full list is shown
+   private ContactSearchPipeline searchPipeline; 	// runs the searches as the user types (debounced, cancellable, cached)
+   private boolean listStale = true; 				// contacts have changed since the list was loaded (or it hasn't been yet)
+   private boolean resumed; 						// between onResume and onStop, changes are shown as they are notified
+   private ContactRepository repository; 			// runs the database work (see ContactRepository.java)
+   private ProgressDialog importDialog; 			// shown while an import runs, null otherwise
+   private ProgressDialog exportDialog; 			// shown while an export runs, null otherwise
+   private ProgressDialog scanDialog; 				// shown while a duplicate scan runs, null otherwise
+   private ProgressDialog selectionDialog; 			// shown while a large selection is deleted or (un)favourited, null otherwise
+   private ContactBitmap selection; 				// after Select All, the ids selected (only the rows on screen are checked), null otherwise
    
    // called when the activity is first created
    @Override
    public void onCreate(Bundle savedInstanceState){
       super.onCreate(savedInstanceState);
+      StartupTrace.activityCreated();
       
       // ListView is implicit so no need for layout or inflation (can be explicit if need to customise, some conventions must be followed though)
 
+      repository = ContactRepository.getInstance(this);
+      
       contactListView = getListView(); 									// get ref to the built-in ListView from ListActivity inherited method
       contactListView.setOnItemClickListener(viewContactListener);		// set listener for when list item is clicked       
+      // a long press starts selecting contacts, to delete, (un)favourite or export them all at once (see selectionListener)
+      contactListView.setChoiceMode(AbsListView.CHOICE_MODE_MULTIPLE_MODAL);
+      contactListView.setMultiChoiceModeListener(selectionListener);
+      contactListView.setOnScrollListener(selectionScrollListener);
 
-      // map each contact's name to a TextView in the ListView layout
-      String[] from = { "name" ,"favourite"};			// String array of list column names (just one in this case)
-      int[] to = { R.id.contactTextView , R.id.favouriteCheckBox};	// parallel array of widgets references to display each column's data (just one in this case)
-      
-      // params: context, list item's layout, Cursor (we will set it later), db column name array, widget reference array
-      // next line: strikethrough indicates that this constructor is deprecated (i.e. still works but can't promise it will in the future)
-      contactAdapter = new SimpleCursorAdapter(this, R.layout.contact_list_item, null, from, to);
+      // the adapter binds each contact's name (and favourite) to the widgets in the list item's layout (R.layout.contact_list_item)
+      // rather than through one Cursor over the whole table (and its CursorWindow refills) as the list is scrolled
+      if (COMPACT_LIST)
+         contactAdapter = new CompactContactAdapter(this);
+      else
+         contactAdapter = new PagedContactAdapter(this);
       setListAdapter(contactAdapter); 		// connect list view and adapter using ListActivity inherited method
+      // the fast scroll thumb jumps straight to a position (and shows the section letter, see CompactContactAdapter.getSections())
+      // PagedContactAdapter doesn't know how many contacts there are until it has paged to the end, so it can't offer it
+      contactListView.setFastScrollEnabled(COMPACT_LIST);
+      contactListView.getViewTreeObserver().addOnPreDrawListener(firstRowListener);
+      
+      // the list starts loading now rather than in onResume, so the read overlaps with the rest of the Activity's start
+      // (inflating, measuring and laying out the first frame, which shows CompactContactAdapter's snapshot meanwhile)
+      refreshList();
+      
+      // search results are few (SEARCH_LIMIT at most) so a plain Cursor adapter is fine for them
+      // params: context, list item's layout, Cursor (set when a search completes), db column name array, widget reference array, flags (none)
+      searchAdapter = new SimpleCursorAdapter(this, R.layout.contact_list_item, null, new String[] {"name"}, new int[] {R.id.contactTextView}, 0);
+      searchPipeline = new ContactSearchPipeline(this, SEARCH_LIMIT, searchResultsListener);
+      
+      // every write to the contacts (the App's own and other Apps' through ContactsProvider) is notified (see ContactCache)
+      getContentResolver().registerContentObserver(ContactsProvider.CONTENT_URI, true, contactsObserver);
+   }
+
+   // tells StartupTrace when the first contact row is about to be drawn (the ListView has laid out a child), then removes itself
+   private final ViewTreeObserver.OnPreDrawListener firstRowListener = new ViewTreeObserver.OnPreDrawListener(){
+      @Override
+      public boolean onPreDraw(){
+         if (contactListView.getChildCount() > 0){
+            StartupTrace.firstRowVisible(COMPACT_LIST && !((CompactContactAdapter) contactAdapter).isLoaded());
+            contactListView.getViewTreeObserver().removeOnPreDrawListener(this);
+         }
+         return true; // draw the frame
+      }
+   };
+
+   // executes when the Activity is being destroyed (e.g. back pressed or rotation)
+   @Override
+   protected void onDestroy(){
+      getContentResolver().unregisterContentObserver(contactsObserver);
+      searchPipeline.shutdown(); // stops its search thread
+      
+      super.onDestroy();
    }
 
    
@@ -50,84 +137,872 @@ public class AddressBook extends ListActivity{ 		//NOTE: EXTENDS LISTACTIVITY no
    protected void onResume(){ 
       super.onResume();
       
-       // instantiate a new anonymous GetContactsTask object (it's an AsyncTask) and execute it
-       // execute's doco indicates a variable number of parameters can be passed (here we pass none by casting null into an acceptable type)
-       // btw these parameters turn up in the doInBackground method of the new task (GetContactsTask in this case)
-       new GetContactsTask().execute((Object[]) null);	// GetContactsTask is an inner class defined below
+      resumed = true;
+      
+      // the list (and any search results) only need refreshing if contactsObserver heard of a change while this Activity was hidden
+      // e.g. after just viewing a contact nothing is queried at all
+      if (searchQuery == null){
+         if (listStale)
+            refreshList();
+      }
+      else
+         searchPipeline.submitQuery(searchQuery); // answered from the pipeline's cache if nothing changed
     }
+   
+   // bring the list up to date, the adapter reads only the contacts changed since its rows were loaded (or the first page if none are)
+   // and moves them in place so the scroll position is kept, the reads happen on a ContactRepository reader thread so this returns immediately
+   private void refreshList(){
+      listStale = false; // cleared first, a write during the refresh is notified and refreshes again (the adapter coalesces them)
+      contactAdapter.refresh();
+   }
+   
+   // told (on the GUI thread) whenever contacts are written, by this App or another, while this Activity exists
+   // a visible list is brought up to date straight away, a hidden one when it is resumed (however many changes there were meanwhile)
+   private final ContentObserver contactsObserver = new ContentObserver(new Handler()){
+      @Override
+      public void onChange(boolean selfChange){
+         listStale = true;
+         searchPipeline.invalidate(); // cached search results are stale
+         if (!resumed)
+            return;
+         
+         if (searchQuery == null)
+            refreshList();
+         else
+            searchPipeline.submitQuery(searchQuery); // the list itself is refreshed when the search is closed
+      }
+   };
 
    // executes whenever the Activity is completely hidden (i.e. another Activity has the focus)
    @Override
    protected void onStop(){
-      Cursor cursor = contactAdapter.getCursor(); // get contactAdapter's Cursor
+      resumed = false;
+      // the loaded pages (at most PagedContactAdapter.MAX_PAGES_IN_MEMORY) are kept so onResume only has to apply what changed meanwhile
+      // (a refresh still reading, e.g. the first load, is done again then)
+      if (contactAdapter.cancelLoads())
+         listStale = true;
+      if (COMPACT_LIST)
+         ((CompactContactAdapter) contactAdapter).saveSnapshot(); // the top of the list as it is now, for the next cold start
+      searchPipeline.cancel();
       
-      if (cursor != null) 
-         cursor.deactivate(); 				// release cursor resources (deprecated requery() will make cursor valid again)
-      	 //cursor.close();					// alternative (since requery() not used anywhere, see doco)
-      
-      contactAdapter.changeCursor(null); 	// set adapter's cursor to no cursor  
+      // an import carries on in the background (onResume shows its contacts) but this Activity no longer follows it
+      repository.cancel(this);
+      if (importDialog != null){
+         importDialog.dismiss();
+         importDialog = null;
+      }
+      if (exportDialog != null){ // likewise an export
+         exportDialog.dismiss();
+         exportDialog = null;
+      }
+      if (scanDialog != null){ // and a duplicate scan (its results are stored for the next review)
+         scanDialog.dismiss();
+         scanDialog = null;
+      }
+      if (selectionDialog != null){ // and a write to the selected contacts
+         selectionDialog.dismiss();
+         selectionDialog = null;
+      }
       
       super.onStop(); // REQUIRED - start or end of method, usually doesn't matter, Java says first, some community debate
    }
 
    
-   // performs database query outside GUI thread
-   // 3 generic types required by any AsyncTask - they are generic so totally flexible
-   // First is the type of the data passed to the AsyncTask (not used here)
-   //   this is the type of the calling execute method's actual parameter and the doInBackGround formal parameter, the result of the former is passed to the latter
-   // Second is the type of progress units published during the doInBackground computation (not used here) e.g. to inform a progress bar
-   // Third is the type of the AsyncTask's result
-   //   this is the type of the return value of doInBackground (Cursor in this case) 
+   @Override // create the Activity's menu from a menu resource XML file
+   public boolean onCreateOptionsMenu(Menu menu){
+      super.onCreateOptionsMenu(menu);
+      
+      MenuInflater inflater = getMenuInflater();
+      inflater.inflate(R.menu.addressbook_menu, menu);
+      
+      // the search item's action view is a SearchView (see addressbook_menu.xml), it expands into the action bar when touched
+      MenuItem searchItem = menu.findItem(R.id.searchContactsItem);
+      SearchView searchView = (SearchView) searchItem.getActionView();
+      searchView.setQueryHint(getString(R.string.search_hint));
+      searchView.setOnQueryTextListener(searchQueryListener);
+      searchItem.setOnActionExpandListener(searchExpandListener);
+      
+      // the metrics screen is only offered while Metrics is recording (debug builds, see AddressBookApplication)
+      menu.findItem(R.id.metricsItem).setVisible(Metrics.isEnabled());
+      // a tag filter is applied to CompactContactAdapter's index, PagedContactAdapter's pages are read straight from the table
+      menu.findItem(R.id.filterContactsItem).setVisible(COMPACT_LIST);
+      
+      return true;
+   }
    
-   // onPostExecute method executes in GUI thread after doInBackground completes execution outside the GUI thread
-   // which allows the calling Activity to safely use the AsyncTask's results
-   private class GetContactsTask extends AsyncTask<Object, Object, Cursor>{
-      // context is "AddressBook.this" NOT "this" since we are an inner class
-      DatabaseConnector databaseConnector = new DatabaseConnector(AddressBook.this); // see DatabaseConnector.java
+   // filters the list as the user types in the SearchView
+   SearchView.OnQueryTextListener searchQueryListener = new SearchView.OnQueryTextListener(){
+      @Override
+      public boolean onQueryTextSubmit(String query){
+         onQueryTextChange(query);
+         if (searchQuery != null)
+            searchPipeline.submitQuery(query); // no need to wait for the debounce delay
+         return true; // handled (otherwise the SearchView would try to launch a search Activity)
+      }
 
-      //Note no constructor so Java default operates
+      @Override
+      public boolean onQueryTextChange(String newText){
+         if (newText.trim().length() == 0){
+            showFullList(); // everything deleted
+            return true;
+         }
+         
+         searchQuery = newText;
+         searchPipeline.setQuery(newText); // the pipeline decides when (and whether) to actually search
+         return true;
+      }
+   };
+   
+   // shows the results of the latest search (called on the GUI thread by searchPipeline)
+   ContactSearchPipeline.Listener searchResultsListener = new ContactSearchPipeline.Listener(){
+      @Override
+      public void onSearchResults(String query, Cursor results){
+         if (searchQuery == null){
+            results.close(); // search closed while these were on their way
+            return;
+         }
+         
+         long start = Metrics.start();
+         searchAdapter.changeCursor(results); // closes the previous results' Cursor
+         Metrics.stop("search.changeCursor", start, results.getCount());
+         if (getListAdapter() != searchAdapter)
+            setListAdapter(searchAdapter);
+      }
+   };
+   
+   // leaves search mode
+   private void showFullList(){
+      searchPipeline.cancel();
+      if (searchQuery == null)
+         return; // already showing it
+      
+      searchQuery = null;
+      searchAdapter.changeCursor(null);
+      if (listStale)
+         refreshList();
+      setListAdapter(contactAdapter);
+   }
+   
+   // goes back to the full list when the SearchView is closed
+   MenuItem.OnActionExpandListener searchExpandListener = new MenuItem.OnActionExpandListener(){
+      @Override
+      public boolean onMenuItemActionExpand(MenuItem item){
+         return true; // allow the SearchView to open
+      }
 
-      //CURSOR DEFINITION: an object that can traverse (move first, next, previous etc.) [and provide access to] the results of a database query (i.e. the result set)
-      //ANDROID CURSOR INTERFACE: This interface provides random read-write access to the result set returned by a database query
+      @Override
+      public boolean onMenuItemActionCollapse(MenuItem item){
+         showFullList();
+         return true; // allow the SearchView to close
+      }
+   };
+   
+   
+   @Override // handle choice from options menu
+   public boolean onOptionsItemSelected(MenuItem item){
+      switch (item.getItemId()){
+         case R.id.addContactItem:
+            // launching another Activity in the same App - Easy
+            Intent addNewContact = new Intent(AddressBook.this, AddEditContact.class);
+            startActivity(addNewContact); // now start the intent we just created and named to actually launch the intent's target activity
+            return true;
+            
+         case R.id.importContactsItem:
+            // e.g. /sdcard/Android/data/au.edu.monash.fit2081.addressbook/files/contacts.csv (no storage permission needed)
+            File importFile = new File(getExternalFilesDir(null), IMPORT_FILE_NAME);
+            if (!importFile.exists())
+               importFile = new File(getExternalFilesDir(null), IMPORT_VCARD_FILE_NAME);
+            importContacts(importFile);
+            return true;
+            
+         case R.id.exportContactsItem:
+            exportContacts(new File(getExternalFilesDir(null), EXPORT_FILE_NAME), null);
+            return true;
+            
+         case R.id.filterContactsItem:
+            chooseTagFilter();
+            return true;
+         
+         case R.id.findDuplicatesItem:
+            reviewDuplicates();
+            return true;
+            
+         case R.id.metricsItem:
+            showMetrics();
+            return true;
+            
+         default:
+            return super.onOptionsItemSelected(item); // REQUIRED - start or end of method, usually doesn't matter, Java says first, some community debate
+      }
+   }
+   
+   
+   // shows what Metrics has recorded so far and saves the same report to a file (to pull with adb and compare)
+   private void showMetrics(){
+      String report = Metrics.report();
+      File file = new File(getExternalFilesDir(null), METRICS_FILE_NAME);
       
-      @Override // executes in a separate thread (in this case it's a database access)
-      protected Cursor doInBackground(Object... params){ // means any number of objects can be passed and accessed as params[0],params[1], again very flexible, they are called Var Args
-         databaseConnector.open();
+      try{
+         Metrics.dump(file);
+         report += "\n" + getString(R.string.metrics_saved, file);
+      }
+      catch (IOException e){
+         Log.w(TAG, "could not save metrics", e);
+      }
+      
+      new AlertDialog.Builder(this)
+         .setTitle(R.string.menuitem_metrics)
+         .setMessage(report)
+         .setPositiveButton(android.R.string.ok, null)
+         .show();
+   }
+   
+   // imports contacts from a CSV file, or a vCard file if there is no CSV one (see ContactImporter), on the repository's writer thread
+   // the file is parsed on ContactImporter's own threads and committed DEFAULT_BATCH_SIZE contacts per transaction, a cancelled
+   // (or interrupted) import carries on where it stopped the next time the same file is imported
+   private void importContacts(final File file){
+      final CancellationSignal cancellationSignal = new CancellationSignal();
+      
+      importDialog = new ProgressDialog(this);
+      importDialog.setIndeterminate(true); // total is unknown without reading the whole file first
+      importDialog.setCancelable(false);
+      importDialog.setMessage(getString(R.string.import_progress, 0));
+      importDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.button_cancel), new DialogInterface.OnClickListener(){
+         @Override
+         public void onClick(DialogInterface dialog, int which){
+            cancellationSignal.cancel(); // the import stops after the batch being committed and the callback reports it
+         }
+      });
+      importDialog.show();
+      
+      // result is null on failure (or cancellation)
+      repository.write(this, null, new Callable<ContactImporter.Result>(){
+            @Override
+            public ContactImporter.Result call(){ // writer thread
+               ContactImporter importer = new ContactImporter(repository.getDatabaseConnector());
+               
+               try{
+                  return importer.importFile(file, new DatabaseConnector.ProgressListener(){
+                        @Override
+                        public void onProgress(final int contactsWritten){
+                           runOnUiThread(new Runnable(){
+                              @Override
+                              public void run(){
+                                 if (importDialog != null) // null once the Activity has stopped
+                                    importDialog.setMessage(getString(R.string.import_progress, contactsWritten));
+                              }
+                           });
+                        }
+                     }, cancellationSignal);
+               }
+               catch (IOException e){
+                  Log.w(TAG, "import failed", e);
+                  return null; // file missing or unreadable, the callback reports it
+               }
+               catch (OperationCanceledException e){
+                  return null; // the callback sees cancellationSignal.isCanceled()
+               }
+            }
+         }, 
+         new ContactRepository.Callback<ContactImporter.Result>(){
+            @Override
+            public void onResult(ContactImporter.Result result){ // GUI thread
+               importDialog.dismiss();
+               importDialog = null;
+               // whatever was imported (even by an import that failed or was cancelled part way through) has already been notified
+               // batch by batch, so the list is showing it
+               
+               if (cancellationSignal.isCanceled())
+                  Toast.makeText(AddressBook.this, R.string.import_cancelled, Toast.LENGTH_LONG).show();
+               else if (result == null)
+                  Toast.makeText(AddressBook.this, getString(R.string.import_failed, file.getName()), Toast.LENGTH_LONG).show();
+               else if (result.errorReport != null)
+                  Toast.makeText(AddressBook.this, getString(R.string.import_done_rejected, result.imported, result.rejected, 
+                     result.errorReport.getName()), Toast.LENGTH_LONG).show();
+               else
+                  Toast.makeText(AddressBook.this, getString(R.string.import_done, result.imported), Toast.LENGTH_SHORT).show();
+            }
+            
+            @Override
+            public void onError(Exception e){ // GUI thread, e.g. the storage is full (the batches committed before it are kept)
+               importDialog.dismiss();
+               importDialog = null;
+               Toast.makeText(AddressBook.this, getString(R.string.import_failed, file.getName()), Toast.LENGTH_LONG).show();
+            }
+         });
+   }
 
-         // get a cursor containing all contacts
-         return databaseConnector.getAllContacts(); //returns a Cursor 
+   // lists the stored probable duplicates for the user to merge or dismiss one pair at a time (see DuplicateFinder)
+   // they are kept current as contacts are saved, so a full scan only runs when there are none stored (or the user asks for one)
+   private void reviewDuplicates(){
+      repository.read(this, new Callable<List<DuplicateFinder.Duplicate>>(){
+            @Override
+            public List<DuplicateFinder.Duplicate> call(){ // reader thread
+               return repository.getDatabaseConnector().getDuplicates(DUPLICATES_SHOWN);
+            }
+         }, 
+         new ContactRepository.Callback<List<DuplicateFinder.Duplicate>>(){
+            @Override
+            public void onResult(List<DuplicateFinder.Duplicate> duplicates){ // GUI thread
+               if (duplicates.isEmpty())
+                  scanForDuplicates();
+               else
+                  showDuplicates(duplicates);
+            }
+         });
+   }
+   
+   // checks every contact for duplicates on the repository's writer thread (DuplicateFinder runs the comparisons on its own threads)
+   private void scanForDuplicates(){
+      final CancellationSignal cancellationSignal = new CancellationSignal();
+      
+      scanDialog = new ProgressDialog(this);
+      scanDialog.setIndeterminate(true);
+      scanDialog.setCancelable(false);
+      scanDialog.setMessage(getString(R.string.duplicates_scanning));
+      scanDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.button_cancel), new DialogInterface.OnClickListener(){
+         @Override
+         public void onClick(DialogInterface dialog, int which){
+            cancellationSignal.cancel();
+         }
+      });
+      scanDialog.show();
+      
+      // result is the duplicates to review or null if the scan was cancelled
+      repository.write(this, null, new Callable<List<DuplicateFinder.Duplicate>>(){
+            @Override
+            public List<DuplicateFinder.Duplicate> call(){ // writer thread
+               try{
+                  new DuplicateFinder(repository.getDatabaseConnector()).scan(cancellationSignal);
+                  return repository.getDatabaseConnector().getDuplicates(DUPLICATES_SHOWN);
+               }
+               catch (OperationCanceledException e){
+                  return null;
+               }
+               catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  return null; // the process is going away
+               }
+            }
+         }, 
+         new ContactRepository.Callback<List<DuplicateFinder.Duplicate>>(){
+            @Override
+            public void onResult(List<DuplicateFinder.Duplicate> duplicates){ // GUI thread
+               scanDialog.dismiss();
+               scanDialog = null;
+               
+               if (duplicates == null)
+                  return; // cancelled
+               if (duplicates.isEmpty())
+                  Toast.makeText(AddressBook.this, R.string.duplicates_none, Toast.LENGTH_SHORT).show();
+               else
+                  showDuplicates(duplicates);
+            }
+            
+            @Override
+            public void onError(Exception e){ // GUI thread
+               scanDialog.dismiss();
+               scanDialog = null;
+               Toast.makeText(AddressBook.this, R.string.duplicates_failed, Toast.LENGTH_LONG).show();
+            }
+         });
+   }
+   
+   // one line per pair, touching one asks whether to merge it (see resolveDuplicate)
+   private void showDuplicates(final List<DuplicateFinder.Duplicate> duplicates){
+      String[] items = new String[duplicates.size()];
+      for (int i = 0; i < items.length; i++){
+         DuplicateFinder.Duplicate duplicate = duplicates.get(i);
+         items[i] = getString(R.string.duplicates_item, duplicate.firstName, duplicate.secondName, Math.round(duplicate.score * 100));
       }
+      
+      new AlertDialog.Builder(this)
+         .setTitle(R.string.menuitem_find_duplicates)
+         .setItems(items, new DialogInterface.OnClickListener(){
+            @Override
+            public void onClick(DialogInterface dialog, int which){
+               resolveDuplicate(duplicates.get(which));
+            }
+         })
+         .setNeutralButton(R.string.button_scan_again, new DialogInterface.OnClickListener(){
+            @Override
+            public void onClick(DialogInterface dialog, int which){
+               scanForDuplicates();
+            }
+         })
+         .setNegativeButton(R.string.button_cancel, null)
+         .show();
+   }
+   
+   // merge keeps the older contact (the lower _id) and adds any details only the newer one has, "not duplicates" dismisses the pair
+   // for good, either way the review list is shown again with what is left
+   private void resolveDuplicate(final DuplicateFinder.Duplicate duplicate){
+      new AlertDialog.Builder(this)
+         .setTitle(R.string.duplicates_merge_title)
+         .setMessage(getString(R.string.duplicates_merge_message, duplicate.firstName, duplicate.secondName))
+         .setPositiveButton(R.string.button_merge, new DialogInterface.OnClickListener(){
+            @Override
+            public void onClick(DialogInterface dialog, int which){
+               writeThenReview(new Callable<Void>(){
+                  @Override
+                  public Void call(){ // writer thread
+                     repository.getDatabaseConnector().mergeContacts(duplicate.firstId, duplicate.secondId);
+                     ContactPhotos.getInstance(AddressBook.this).mergePhoto(duplicate.firstId, duplicate.secondId);
+                     return null;
+                  }
+               });
+            }
+         })
+         .setNeutralButton(R.string.button_not_duplicates, new DialogInterface.OnClickListener(){
+            @Override
+            public void onClick(DialogInterface dialog, int which){
+               writeThenReview(new Callable<Void>(){
+                  @Override
+                  public Void call(){ // writer thread
+                     repository.getDatabaseConnector().dismissDuplicate(duplicate);
+                     return null;
+                  }
+               });
+            }
+         })
+         .setNegativeButton(R.string.button_cancel, null)
+         .show();
+   }
+   
+   private void writeThenReview(Callable<Void> work){
+      repository.write(this, null, work, new ContactRepository.Callback<Void>(){
+         @Override
+         public void onResult(Void result){ // GUI thread
+            reviewDuplicates(); // (the list is refreshed by contactsObserver, a merge deletes a contact and may change the other)
+         }
+      });
+   }
 
+   // exports the contacts with the given ids (every contact if ids is null) as vCards (see ContactExporter) on a repository reader
+   // thread, so saves can carry on meanwhile
+   private void exportContacts(final File file, final long[] ids){
+      final CancellationSignal cancellationSignal = new CancellationSignal();
       
-      @Override // executes in the GUI thread after doInBackground completes and is passed that methods return value (type Cursor in this case)
-      protected void onPostExecute(Cursor result){
-         contactAdapter.changeCursor(result); 	// set the adapter's Cursor, the adapter is already set to connect to the Activity's ListView
-         										// does list populate now or is something else required?
-         databaseConnector.close();
+      exportDialog = new ProgressDialog(this);
+      exportDialog.setIndeterminate(true);
+      exportDialog.setCancelable(false);
+      exportDialog.setMessage(getString(R.string.export_progress, 0));
+      exportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.button_cancel), new DialogInterface.OnClickListener(){
+         @Override
+         public void onClick(DialogInterface dialog, int which){
+            cancellationSignal.cancel(); // the export stops at its next contact and the callback reports it
+         }
+      });
+      exportDialog.show();
+      
+      // result is the number exported or null on failure (or cancellation)
+      repository.read(this, new Callable<Integer>(){
+            @Override
+            public Integer call(){ // reader thread
+               ContactExporter exporter = new ContactExporter(repository.getDatabaseConnector(), ContactExporter.Format.VCARD, false, ids);
+               
+               try{
+                  return exporter.export(file, new DatabaseConnector.ProgressListener(){
+                        @Override
+                        public void onProgress(final int contactsWritten){
+                           runOnUiThread(new Runnable(){
+                              @Override
+                              public void run(){
+                                 if (exportDialog != null) // null once the Activity has stopped
+                                    exportDialog.setMessage(getString(R.string.export_progress, contactsWritten));
+                              }
+                           });
+                        }
+                     }, cancellationSignal);
+               }
+               catch (IOException e){
+                  return null; // e.g. storage full or not mounted, the callback reports it
+               }
+               catch (OperationCanceledException e){
+                  return null; // the callback sees cancellationSignal.isCanceled()
+               }
+            }
+         }, 
+         new ContactRepository.Callback<Integer>(){
+            @Override
+            public void onResult(Integer result){ // GUI thread
+               exportDialog.dismiss();
+               exportDialog = null;
+               
+               if (cancellationSignal.isCanceled())
+                  Toast.makeText(AddressBook.this, R.string.export_cancelled, Toast.LENGTH_SHORT).show();
+               else if (result == null)
+                  Toast.makeText(AddressBook.this, getString(R.string.export_failed, file), Toast.LENGTH_LONG).show();
+               else
+                  Toast.makeText(AddressBook.this, getString(R.string.export_done, result, file), Toast.LENGTH_LONG).show();
+            }
+            
+            @Override
+            public void onError(Exception e){ // GUI thread, e.g. a query failed (storage errors are already a null result)
+               exportDialog.dismiss();
+               exportDialog = null;
+               Toast.makeText(AddressBook.this, getString(R.string.export_failed, file), Toast.LENGTH_LONG).show();
+            }
+         });
+   }
+
+   // the contextual action bar shown while contacts are selected (started by a long press, then each touch selects or deselects a row)
+   // the ids are taken from the ListView (its adapters have stable ids), or from selection after Select All, and the selection
+   // is cleared before they are written
+   AbsListView.MultiChoiceModeListener selectionListener = new AbsListView.MultiChoiceModeListener(){
+      @Override
+      public boolean onCreateActionMode(ActionMode mode, Menu menu){
+         mode.getMenuInflater().inflate(R.menu.contact_selection_menu, menu);
+         return true;
+      }
+      
+      @Override
+      public boolean onPrepareActionMode(ActionMode mode, Menu menu){
+         // PagedContactAdapter has no ids for the pages it hasn't read, so every row can only be selected in the compact list
+         // (or among search results)
+         menu.findItem(R.id.selectAllItem).setVisible(COMPACT_LIST || searchQuery != null);
+         return true;
+      }
+      
+      @Override
+      public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked){
+         if (selection != null){ // a row touched after Select All (or checked by checkVisibleRows(), which changes nothing)
+            if (checked)
+               selection.add(id);
+            else
+               selection.remove(id);
+         }
+         mode.setTitle(getString(R.string.selection_count, getSelectedCount()));
       }
-   } //end inner class
       
+      @Override
+      public boolean onActionItemClicked(ActionMode mode, MenuItem item){
+         switch (item.getItemId()){
+            case R.id.selectAllItem:
+               selectAll();
+               mode.setTitle(getString(R.string.selection_count, getSelectedCount()));
+               return true;
+            
+            case R.id.favouriteSelectedItem:
+            case R.id.unfavouriteSelectedItem:
+               setFavourite(getSelectedIds(), item.getItemId() == R.id.favouriteSelectedItem);
+               mode.finish();
+               return true;
+            
+            case R.id.tagSelectedItem:
+               tagSelected(mode);
+               return true;
+            
+            case R.id.untagSelectedItem:
+               untagSelected(mode);
+               return true;
+            
+            case R.id.exportSelectedItem:
+               exportContacts(new File(getExternalFilesDir(null), EXPORT_SELECTED_FILE_NAME), getSelectedIds());
+               mode.finish();
+               return true;
+            
+            case R.id.deleteSelectedItem:
+               confirmDeleteSelected(mode);
+               return true;
+            
+            default:
+               return false;
+         }
+      }
+      
+      @Override
+      public void onDestroyActionMode(ActionMode mode){
+         selection = null; // the ListView clears the rows it checked itself
+      }
+   };
    
-   @Override // create the Activity's menu from a menu resource XML file
-   public boolean onCreateOptionsMenu(Menu menu){
-      super.onCreateOptionsMenu(menu);
+   // Select All puts every id the list shows in selection rather than checking each row, setItemChecked(...) keeps the checked ids
+   // in a sorted array so checking a whole compact list (every contact) one row at a time is O(n^2) and could block the GUI thread
+   // for seconds, only the rows on screen are checked (so they are drawn selected) and the rest as they are scrolled to
+   private void selectAll(){
+      ListAdapter adapter = getListAdapter();
+      long[] ids = new long[adapter.getCount()];
+      for (int position = 0; position < ids.length; position++)
+         ids[position] = adapter.getItemId(position);
+      Arrays.sort(ids); // the list is in name order, ascending ids are appended to the bitmap's containers
       
-      MenuInflater inflater = getMenuInflater();
-      inflater.inflate(R.menu.addressbook_menu, menu);
+      selection = new ContactBitmap();
+      for (long id : ids)
+         selection.add(id);
+      checkVisibleRows();
+   }
+   
+   // checks (or unchecks) the rows on screen to match selection
+   private void checkVisibleRows(){
+      ListAdapter adapter = getListAdapter();
+      int last = Math.min(contactListView.getLastVisiblePosition(), adapter.getCount() - 1);
+      for (int position = Math.max(contactListView.getFirstVisiblePosition(), 0); position <= last; position++){
+         boolean selected = selection.contains(adapter.getItemId(position));
+         if (contactListView.isItemChecked(position) != selected)
+            contactListView.setItemChecked(position, selected);
+      }
+   }
+   
+   // after Select All, rows scrolled onto the screen are checked once the layout pass that brought them there is over
+   // (the ListView doesn't redraw a row checked during its own layout)
+   private final AbsListView.OnScrollListener selectionScrollListener = new AbsListView.OnScrollListener(){
+      @Override
+      public void onScrollStateChanged(AbsListView view, int scrollState){
+      }
       
-      return true;
+      @Override
+      public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount){
+         if (selection != null)
+            contactListView.post(checkVisibleRowsRunnable);
+      }
+   };
+   
+   private final Runnable checkVisibleRowsRunnable = new Runnable(){
+      @Override
+      public void run(){
+         if (selection != null) // the action mode may have ended meanwhile
+            checkVisibleRows();
+      }
+   };
+   
+   // the ids of the selected contacts (ascending after Select All)
+   private long[] getSelectedIds(){
+      return (selection != null) ? selection.toArray() : contactListView.getCheckedItemIds();
    }
    
+   private int getSelectedCount(){
+      return (selection != null) ? selection.getCardinality() : contactListView.getCheckedItemCount();
+   }
    
-   @Override // handle choice from options menu - there is only 1 item
-   public boolean onOptionsItemSelected(MenuItem item){
-	  // launching another Activity in the same App - Easy
-      Intent addNewContact = new Intent(AddressBook.this, AddEditContact.class);
-      startActivity(addNewContact); // now start the intent we just created and named to actually launch the intent's target activity
+   // asks before deleting the selected contacts, the selection stays (and the action bar with it) if the user cancels
+   private void confirmDeleteSelected(final ActionMode mode){
+      new AlertDialog.Builder(this)
+         .setTitle(R.string.confirmTitle)
+         .setMessage(getString(R.string.selection_delete_message, getSelectedCount()))
+         .setPositiveButton(R.string.button_delete, new DialogInterface.OnClickListener(){
+            @Override
+            public void onClick(DialogInterface dialog, int which){
+               deleteContacts(getSelectedIds());
+               mode.finish();
+            }
+         })
+         .setNegativeButton(R.string.button_cancel, null)
+         .show();
+   }
+   
+   // deletes the contacts in one transaction on the repository's writer thread (see DatabaseConnector.deleteContacts), the whole
+   // table is notified once it has committed so contactsObserver refreshes the list once, however many contacts there were
+   private void deleteContacts(long[] ids){
+      repository.deleteContacts(this, ids, showSelectionProgress(ids.length), selectionDoneCallback(R.string.selection_deleted));
+   }
+   
+   // makes the contacts favourites (or not) in one transaction, like deleteContacts(...)
+   private void setFavourite(long[] ids, boolean favourite){
+      repository.setFavourite(this, ids, favourite, showSelectionProgress(ids.length), 
+         selectionDoneCallback(favourite ? R.string.selection_favourited : R.string.selection_unfavourited));
+   }
+   
+   // asks for a tag to give the selected contacts, a new one or one listed, the selection stays if the user cancels
+   private void tagSelected(final ActionMode mode){
+      readTagCounts(new ContactRepository.Callback<SortedMap<String, Integer>>(){
+         @Override
+         public void onResult(SortedMap<String, Integer> counts){ // GUI thread
+            final EditText nameEditText = new EditText(AddressBook.this);
+            nameEditText.setSingleLine();
+            nameEditText.setHint(R.string.tag_name_hint);
+            
+            new AlertDialog.Builder(AddressBook.this)
+               .setTitle(R.string.menuitem_tag_selected)
+               .setMessage(describeTags(counts))
+               .setView(nameEditText)
+               .setPositiveButton(R.string.button_tag, new DialogInterface.OnClickListener(){
+                  @Override
+                  public void onClick(DialogInterface dialog, int which){
+                     String name = nameEditText.getText().toString().trim();
+                     if (name.length() == 0)
+                        return; // nothing typed, the selection stays
+                     if (name.equalsIgnoreCase(TagFilter.FAVOURITE))
+                        setFavourite(getSelectedIds(), true); // the name a filter uses for the favourites
+                     else
+                        tagContacts(name, getSelectedIds(), true);
+                     mode.finish();
+                  }
+               })
+               .setNegativeButton(R.string.button_cancel, null)
+               .show();
+         }
+      });
+   }
+   
+   // lists the tags there are for the user to take one from the selected contacts
+   private void untagSelected(final ActionMode mode){
+      readTagCounts(new ContactRepository.Callback<SortedMap<String, Integer>>(){
+         @Override
+         public void onResult(SortedMap<String, Integer> counts){ // GUI thread
+            if (counts.isEmpty()){
+               Toast.makeText(AddressBook.this, R.string.tag_none, Toast.LENGTH_SHORT).show();
+               return;
+            }
+            
+            final String[] names = counts.keySet().toArray(new String[counts.size()]);
+            new AlertDialog.Builder(AddressBook.this)
+               .setTitle(R.string.menuitem_untag_selected)
+               .setItems(names, new DialogInterface.OnClickListener(){
+                  @Override
+                  public void onClick(DialogInterface dialog, int which){
+                     tagContacts(names[which], getSelectedIds(), false);
+                     mode.finish();
+                  }
+               })
+               .setNegativeButton(R.string.button_cancel, null)
+               .show();
+         }
+      });
+   }
+   
+   // gives the contacts the tag called name (or takes it from them) in one transaction, like deleteContacts(...)
+   private void tagContacts(String name, long[] ids, boolean tagged){
+      repository.tagContacts(this, name, ids, tagged, showSelectionProgress(ids.length), 
+         selectionDoneCallback(tagged ? R.string.selection_tagged : R.string.selection_untagged));
+   }
+   
+   // asks for a tag filter (see TagFilter) and shows only the contacts it matches, or every contact again if it is cleared
+   // the filter is evaluated against TagIndex's in-memory bitmaps each time the list is refreshed, search results aren't filtered
+   private void chooseTagFilter(){
+      readTagCounts(new ContactRepository.Callback<SortedMap<String, Integer>>(){
+         @Override
+         public void onResult(final SortedMap<String, Integer> counts){ // GUI thread
+            final EditText filterEditText = new EditText(AddressBook.this);
+            filterEditText.setSingleLine();
+            filterEditText.setHint(R.string.tag_filter_hint);
+            TagFilter filter = ((CompactContactAdapter) contactAdapter).getFilter();
+            if (filter != null)
+               filterEditText.setText(filter.toString());
+            
+            new AlertDialog.Builder(AddressBook.this)
+               .setTitle(R.string.menuitem_filter_contacts)
+               .setMessage(describeTags(counts))
+               .setView(filterEditText)
+               .setPositiveButton(R.string.button_filter, new DialogInterface.OnClickListener(){
+                  @Override
+                  public void onClick(DialogInterface dialog, int which){
+                     String expression = filterEditText.getText().toString();
+                     if (expression.trim().length() == 0){
+                        setTagFilter(null);
+                        return;
+                     }
+                     
+                     TagFilter filter;
+                     try{
+                        filter = TagFilter.parse(expression);
+                     }
+                     catch (IllegalArgumentException e){
+                        Toast.makeText(AddressBook.this, getString(R.string.tag_filter_invalid, e.getMessage()), Toast.LENGTH_LONG).show();
+                        return;
+                     }
+                     // a name no contact has matches nothing, which is most likely a typo
+                     for (String name : filter.getNames())
+                        if (!counts.containsKey(name))
+                           Toast.makeText(AddressBook.this, getString(R.string.tag_unknown, name), Toast.LENGTH_LONG).show();
+                     setTagFilter(filter);
+                  }
+               })
+               .setNeutralButton(R.string.button_clear, new DialogInterface.OnClickListener(){
+                  @Override
+                  public void onClick(DialogInterface dialog, int which){
+                     setTagFilter(null);
+                  }
+               })
+               .setNegativeButton(R.string.button_cancel, null)
+               .show();
+         }
+      });
+   }
+   
+   // the title says which filter the list is showing
+   private void setTagFilter(TagFilter filter){
+      ((CompactContactAdapter) contactAdapter).setFilter(filter);
+      if (filter == null)
+         setTitle(R.string.activityLabelList);
+      else
+         setTitle(getString(R.string.tag_filter_title, filter));
+   }
+   
+   // reads the tags at least one contact has, with their counts, on a reader thread (the first read builds TagIndex)
+   private void readTagCounts(ContactRepository.Callback<SortedMap<String, Integer>> callback){
+      repository.read(this, new Callable<SortedMap<String, Integer>>(){
+            @Override
+            public SortedMap<String, Integer> call(){ // reader thread
+               return TagIndex.getTagCounts(repository.getDatabaseConnector());
+            }
+         }, callback);
+   }
+   
+   // e.g. Tags: team (12), vic (40)
+   private String describeTags(SortedMap<String, Integer> counts){
+      if (counts.isEmpty())
+         return getString(R.string.tag_none);
+      StringBuilder tags = new StringBuilder();
+      for (Map.Entry<String, Integer> count : counts.entrySet()){
+         if (tags.length() > 0)
+            tags.append(", ");
+         tags.append(getString(R.string.tag_count, count.getKey(), count.getValue()));
+      }
+      return getString(R.string.tag_list, tags);
+   }
+   
+   // for a selection of SELECTION_PROGRESS_MIN contacts or more shows a dialog with the progress of its write and returns the listener
+   // that updates it (called on the writer thread), null for a smaller one (written before a dialog would even be seen)
+   // the write is one transaction, so it can't be cancelled part way through
+   private DatabaseConnector.ProgressListener showSelectionProgress(int count){
+      if (count < SELECTION_PROGRESS_MIN)
+         return null;
+      
+      selectionDialog = new ProgressDialog(this);
+      selectionDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+      selectionDialog.setMax(count);
+      selectionDialog.setCancelable(false);
+      selectionDialog.setMessage(getString(R.string.selection_progress));
+      selectionDialog.show();
       
-      return super.onOptionsItemSelected(item); // REQUIRED - start or end of method, usually doesn't matter, Java says first, some community debate
+      return new DatabaseConnector.ProgressListener(){
+         @Override
+         public void onProgress(final int contactsWritten){
+            runOnUiThread(new Runnable(){
+               @Override
+               public void run(){
+                  if (selectionDialog != null) // null once the Activity has stopped
+                     selectionDialog.setProgress(contactsWritten);
+               }
+            });
+         }
+      };
    }
-
+   
+   // dismisses the progress dialog (if there is one) and reports how many contacts were written with message (or that none were)
+   private ContactRepository.Callback<Integer> selectionDoneCallback(final int message){
+      return new ContactRepository.Callback<Integer>(){
+         @Override
+         public void onResult(Integer result){ // GUI thread
+            if (selectionDialog != null){
+               selectionDialog.dismiss();
+               selectionDialog = null;
+            }
+            Toast.makeText(AddressBook.this, getString(message, result), Toast.LENGTH_SHORT).show();
+         }
+         
+         @Override
+         public void onError(Exception e){ // GUI thread, the write was one transaction so none of the contacts were changed
+            if (selectionDialog != null){
+               selectionDialog.dismiss();
+               selectionDialog = null;
+            }
+            Toast.makeText(AddressBook.this, R.string.selection_failed, Toast.LENGTH_LONG).show();
+         }
+      };
+   }
+   
    // event listener that responds to the user touching a contact's name in the ListView
    OnItemClickListener viewContactListener = new OnItemClickListener(){
       @Override
@@ -137,6 +1012,9 @@ public class AddressBook extends ListActivity{ 		//NOTE: EXTENDS LISTACTIVITY no
       //		unique ID (value in column named "_id") of row associated with item that was clicked (here this will be row ID in the cursor i.e. contact ID)
       
       public void onItemClick(AdapterView<?> arg0, View arg1, int arg2, long arg3){ // <?> = means unknown
+         if (arg3 < 0) 
+            return; // row's page is still being fetched (see PagedContactAdapter.getItemId)
+         
          // create an Intent to launch the ViewContact Activity
          Intent viewContact = new Intent(AddressBook.this, ViewContact.class);
          
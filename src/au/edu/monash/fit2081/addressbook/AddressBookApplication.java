@@ -0,0 +1,47 @@
+// AddressBookApplication.java
+// Application object for the Address Book app, lives for as long as the App's process.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.concurrent.Callable;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+
+public class AddressBookApplication extends Application{
+   // the first of the App's code to run as its process starts (before ContactsProvider and onCreate)
+   public AddressBookApplication(){
+      StartupTrace.processStarted();
+   }
+   
+   // called once when the App's process starts, before any Activity is created
+   @Override
+   public void onCreate(){
+      super.onCreate();
+      
+      // timings are only recorded in debuggable builds (see Metrics), a release build pays nothing for the instrumentation
+      Metrics.setEnabled((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+      StartupTrace.mark("application.onCreate");
+      
+      // the repository's DatabaseConnector holds a reference to the shared database connection (see DatabaseConnector) 
+      // for the life of the process, so it is never closed between Activities or between single inserts/updates/deletes
+      // opening the db is disk I/O so it is done on a reader thread, not the GUI thread
+      // by the time AddressBook's list fetches its first page the connection is normally already open and warm
+      // (opening includes DatabaseOpenHelper's version check and any upgrade, all of it off the path to the first frame)
+      final ContactRepository repository = ContactRepository.getInstance(this);
+      repository.read(this, new Callable<Object>(){
+            @Override
+            public Object call(){
+               repository.getDatabaseConnector(); // opens the connection
+               StartupTrace.mark("prewarm.databaseOpen");
+               return null;
+            }
+         }, null); // no callback, nothing to report
+   }
+   
+   // called when the system wants memory back, the decoded avatars are the easiest to do without (they can be decoded again)
+   @Override
+   public void onTrimMemory(int level){
+      super.onTrimMemory(level);
+      AvatarLoader.getInstance(this).trimMemory();
+   }
+}
@@ -0,0 +1,360 @@
+// AvatarLoader.java
+// Shows contact photos (see ContactPhotos) in ImageViews without decoding anything on the GUI thread, for lists of any length:
+// - a memory cache of decoded avatars bounded by their bytes (MEMORY_CACHE_DIVISOR of the App's heap), not by how many there are,
+//   so a 10k contact list holds no more bitmaps than a 10 contact one once it is full
+// - a disk cache of thumbnails already scaled to the size shown (DISK_CACHE_BYTES), so a row that missed the memory cache
+//   decodes a few KB instead of subsampling and scaling the stored photo again
+// - decoding on LOADER_THREADS background threads, newest request first, at exactly the size shown (16 bits per pixel)
+// - load(...) for a recycled row View cancels the request for the contact the row showed before (dropped if it is still queued,
+//   stopped part way through if it is decoding), so a fling doesn't leave a queue of decodes for rows long gone
+// Contacts known to have no photo are remembered, so binding their rows costs a set lookup, not a file check.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+public final class AvatarLoader{
+   private static final String TAG = "AvatarLoader";
+   public static final int LOADER_THREADS = 2;
+   public static final int MEMORY_CACHE_DIVISOR = 8; 				// the memory cache may use 1/8 of the App's heap
+   public static final long DISK_CACHE_BYTES = 8 * 1024 * 1024; 	// trimmed back to 3/4 of this when it goes over
+   public static final int THUMBNAIL_QUALITY = 90; 					// JPEG quality of the disk cache's thumbnails
+   
+   private static AvatarLoader instance;
+   
+   private final Context context;
+   private final File diskCacheDirectory;
+   private final Handler handler = new Handler(Looper.getMainLooper());
+   private final ThreadPoolExecutor executor;
+   
+   // decoded avatars by key(id, size), sized in bytes (LruCache is thread safe)
+   private final LruCache<Long, Bitmap> memoryCache;
+   // ids of contacts known to have no photo (guarded by itself, as are invalidate(...)'s eviction from memoryCache and a loaded
+   // avatar's generation check and put, so an avatar decoded before its photo changed can't be put back after the eviction)
+   private final Set<Long> noPhoto = new HashSet<Long>();
+   // bumped by invalidate(...) (from any thread, hence atomic) so a decode that started before a photo changed doesn't cache the old one
+   private final AtomicInteger generation = new AtomicInteger();
+   // bytes in the disk cache (-1 until it has been measured, guarded by diskCacheDirectory)
+   private long diskCacheSize = -1;
+   
+   // the request each ImageView is showing or loading (GUI thread only, weak so a View is never kept by it)
+   private final WeakHashMap<ImageView, Request> requests = new WeakHashMap<ImageView, Request>();
+   
+   // there is one per process (like the memory it budgets)
+   public static synchronized AvatarLoader getInstance(Context context){
+      if (instance == null)
+         instance = new AvatarLoader(context.getApplicationContext());
+      return instance;
+   }
+   
+   private AvatarLoader(Context context){
+      this.context = context;
+      diskCacheDirectory = new File(context.getCacheDir(), "avatars");
+      
+      int heapBytes = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() * 1024 * 1024;
+      memoryCache = new LruCache<Long, Bitmap>(heapBytes / MEMORY_CACHE_DIVISOR){
+         @Override
+         protected int sizeOf(Long key, Bitmap bitmap){
+            return bitmap.getByteCount();
+         }
+      };
+      
+      // the queue is a stack: during a fling the rows now on screen are decoded before the ones bound on the way there
+      executor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingDeque<Runnable>(){
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            public boolean offer(Runnable runnable){
+               return offerFirst(runnable);
+            }
+         }, new ContactRepository.BackgroundThreadFactory("AvatarLoader"));
+   }
+   
+   // shows contact id's photo in view, size pixels square (GUI thread)
+   // view is cleared straight away and the photo appears once decoded (unless view is given another contact meanwhile)
+   // a contact without a photo leaves view empty
+   public void load(ImageView view, long id, int size){
+      Request previous = requests.get(view);
+      if (previous != null){
+         if (previous.id == id && previous.size == size && !previous.cancelled)
+            return; // view already shows (or is loading) this one, e.g. the list was rebound after a change to another row
+         previous.cancel();
+      }
+      
+      Bitmap bitmap = memoryCache.get(key(id, size));
+      Request request = new Request(view, id, size);
+      requests.put(view, request);
+      if (bitmap != null){
+         view.setImageBitmap(bitmap);
+         return;
+      }
+      
+      view.setImageDrawable(null);
+      synchronized (noPhoto){
+         if (noPhoto.contains(id))
+            return;
+      }
+      executor.execute(request);
+   }
+   
+   // empties view and cancels its request, if any (GUI thread), e.g. for a row whose contact isn't known yet
+   public void clear(ImageView view){
+      Request request = requests.remove(view);
+      if (request != null)
+         request.cancel();
+      view.setImageDrawable(null);
+   }
+   
+   // forgets everything cached for contact id (any thread), called by ContactPhotos when its photo changes
+   // any ImageView showing the contact loads it again
+   public void invalidate(final long id){
+      generation.incrementAndGet();
+      synchronized (noPhoto){
+         noPhoto.remove(id);
+         for (Long key : memoryCache.snapshot().keySet())
+            if (key >> SIZE_BITS == id)
+               memoryCache.remove(key);
+      }
+      
+      synchronized (diskCacheDirectory){
+         File[] thumbnails = diskCacheDirectory.listFiles();
+         if (thumbnails != null)
+            for (File thumbnail : thumbnails){
+               long length = thumbnail.length();
+               if (thumbnail.getName().startsWith(id + "_") && thumbnail.delete() && diskCacheSize >= 0)
+                  diskCacheSize -= length;
+            }
+      }
+      
+      handler.post(new Runnable(){
+         @Override
+         public void run(){ // GUI thread
+            for (Map.Entry<ImageView, Request> entry : new ArrayList<Map.Entry<ImageView, Request>>(requests.entrySet())){
+               ImageView view = entry.getKey(); // (null if the View has just been collected)
+               Request request = entry.getValue();
+               if (view != null && request.id == id){
+                  request.cancel();
+                  load(view, id, request.size);
+               }
+            }
+         }
+      });
+   }
+   
+   // frees the memory cache (e.g. when the system is low on memory), the disk cache is kept
+   public void trimMemory(){
+      memoryCache.evictAll();
+   }
+   
+   // memory cache key for an avatar: the contact id with the size in the low SIZE_BITS bits
+   private static final int SIZE_BITS = 12; // sizes up to 4095 pixels
+   
+   private static Long key(long id, int size){
+      return (id << SIZE_BITS) | size;
+   }
+   
+   // the avatar for request from the disk cache or decoded from the stored photo, null if the contact has none (loader thread)
+   private Bitmap loadBitmap(Request request) throws IOException{
+      File thumbnail = new File(diskCacheDirectory, request.id + "_" + request.size + ".jpg");
+      if (thumbnail.exists()){
+         Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath(), request.options);
+         if (bitmap != null){
+            thumbnail.setLastModified(System.currentTimeMillis()); // the disk cache is trimmed least recently used first
+            return bitmap;
+         }
+      }
+      
+      File photo = ContactPhotos.getInstance(context).getPhotoFile(request.id);
+      if (!photo.exists()){
+         synchronized (noPhoto){
+            if (generation.get() == request.generation)
+               noPhoto.add(request.id);
+         }
+         return null;
+      }
+      
+      // decode a subsampled copy no smaller than the avatar, then scale it to exactly the avatar's size
+      BitmapFactory.Options options = request.options;
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(photo.getPath(), options);
+      if (request.cancelled || options.outWidth <= 0 || options.outHeight <= 0)
+         return null;
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = sampleSize(options.outWidth, options.outHeight, request.size);
+      Bitmap decoded = BitmapFactory.decodeFile(photo.getPath(), options);
+      if (decoded == null)
+         return null; // not an image, or cancelled part way through
+      Bitmap bitmap = cropToSquare(decoded, request.size);
+      
+      writeThumbnail(thumbnail, bitmap, request.generation);
+      return bitmap;
+   }
+   
+   // adds bitmap (decoded in decodedGeneration) to the disk cache as thumbnail, trimming the cache if it has grown past DISK_CACHE_BYTES
+   private void writeThumbnail(File thumbnail, Bitmap bitmap, int decodedGeneration) throws IOException{
+      synchronized (diskCacheDirectory){
+         if (generation.get() != decodedGeneration)
+            return; // the photo changed while it was decoded, invalidate(...) has deleted (or is about to delete) its thumbnails
+         if (!diskCacheDirectory.isDirectory() && !diskCacheDirectory.mkdirs())
+            return; // not worth failing the load for, the avatar is just decoded again next time
+         
+         File partial = new File(thumbnail.getPath() + ".partial");
+         OutputStream out = new FileOutputStream(partial);
+         try{
+            bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+         }
+         finally{
+            out.close();
+         }
+         if (!partial.renameTo(thumbnail)){
+            partial.delete();
+            return;
+         }
+         
+         if (diskCacheSize < 0){ // measured once, then kept up to date
+            diskCacheSize = 0;
+            for (File file : diskCacheDirectory.listFiles())
+               diskCacheSize += file.length();
+         }
+         else
+            diskCacheSize += thumbnail.length();
+         
+         if (diskCacheSize > DISK_CACHE_BYTES)
+            trimDiskCache();
+      }
+   }
+   
+   // deletes the least recently used thumbnails until the disk cache is down to 3/4 of DISK_CACHE_BYTES
+   // (so it runs once per so many thumbnails written, not for every one once the cache is full)
+   private void trimDiskCache(){
+      File[] thumbnails = diskCacheDirectory.listFiles();
+      final long[] lastModified = new long[thumbnails.length];
+      Integer[] order = new Integer[thumbnails.length];
+      for (int i = 0; i < thumbnails.length; i++){
+         lastModified[i] = thumbnails[i].lastModified(); // read once, not on every comparison
+         order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>(){
+         @Override
+         public int compare(Integer i, Integer j){
+            return (lastModified[i] < lastModified[j]) ? -1 : (lastModified[i] == lastModified[j] ? 0 : 1);
+         }
+      });
+      
+      for (int i = 0; i < order.length && diskCacheSize > DISK_CACHE_BYTES * 3 / 4; i++){
+         File thumbnail = thumbnails[order[i]];
+         long length = thumbnail.length();
+         if (thumbnail.delete())
+            diskCacheSize -= length;
+      }
+   }
+   
+   // largest power of 2 to subsample a width x height image by that leaves both sides at least size pixels
+   // (BitmapFactory only subsamples by powers of 2)
+   static int sampleSize(int width, int height, int size){
+      int sampleSize = 1;
+      while (Math.min(width, height) / (sampleSize * 2) >= size)
+         sampleSize *= 2;
+      return sampleSize;
+   }
+   
+   // the centre square of bitmap scaled to size x size, bitmap is recycled if it isn't the result itself
+   static Bitmap cropToSquare(Bitmap bitmap, int size){
+      int width = bitmap.getWidth(), height = bitmap.getHeight();
+      int side = Math.min(width, height);
+      
+      Bitmap square = (width == height) ? bitmap : Bitmap.createBitmap(bitmap, (width - side) / 2, (height - side) / 2, side, side);
+      Bitmap scaled = (side == size) ? square : Bitmap.createScaledBitmap(square, size, size, true);
+      if (square != scaled && square != bitmap)
+         square.recycle();
+      if (bitmap != scaled)
+         bitmap.recycle();
+      return scaled;
+   }
+   
+   // one ImageView's avatar: runs on a loader thread, then posts the bitmap to the GUI thread
+   private class Request implements Runnable{
+      final WeakReference<ImageView> view; 	// a queued request doesn't keep a closed Activity's Views
+      final long id;
+      final int size;
+      final int generation = AvatarLoader.this.generation.get();
+      final BitmapFactory.Options options = new BitmapFactory.Options();
+      volatile boolean cancelled;
+      
+      Request(ImageView view, long id, int size){
+         this.view = new WeakReference<ImageView>(view);
+         this.id = id;
+         this.size = size;
+         options.inPreferredConfig = Bitmap.Config.RGB_565; // photos have no transparency, half the bytes of ARGB_8888
+      }
+      
+      // GUI thread
+      void cancel(){
+         cancelled = true;
+         executor.remove(this); 			// never decoded if it is still queued
+         options.requestCancelDecode(); 	// makes a decode in progress return null
+      }
+      
+      @Override
+      public void run(){ // loader thread
+         if (cancelled || view.get() == null)
+            return;
+         
+         long start = Metrics.start();
+         Bitmap loaded = null;
+         try{
+            loaded = loadBitmap(this);
+         }
+         catch (IOException e){
+            Log.w(TAG, "avatar " + id + " not loaded", e);
+         }
+         catch (OutOfMemoryError e){
+            // unlikely with the memory cache's budget, but a photo is never worth the App, try again with the cache freed
+            Log.w(TAG, "avatar " + id + " not loaded", e);
+            memoryCache.evictAll();
+         }
+         Metrics.stop("avatar.load", start);
+         
+         if (loaded == null)
+            return; // the View stays empty
+         synchronized (noPhoto){
+            if (generation == AvatarLoader.this.generation.get())
+               memoryCache.put(key(id, size), loaded);
+         }
+         
+         final Bitmap bitmap = loaded;
+         handler.post(new Runnable(){
+            @Override
+            public void run(){ // GUI thread
+               ImageView imageView = view.get();
+               if (imageView != null && !cancelled && requests.get(imageView) == Request.this)
+                  imageView.setImageBitmap(bitmap);
+            }
+         });
+      }
+   }
+}
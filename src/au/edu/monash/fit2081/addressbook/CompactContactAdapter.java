@@ -0,0 +1,247 @@
+// CompactContactAdapter.java
+// ListView adapter for the AddressBook list backed by a ContactIndex of every contact, for very large address books:
+// the list is read once into primitive arrays, so scrolling never waits for a query or refills a CursorWindow, and binding a row
+// allocates nothing (the name is decoded into a char buffer kept with the row View and handed to the TextView as is).
+// refresh() builds an updated copy of the index from only the changes made since it was loaded and swaps it in.
+// As a SectionIndexer it lets the ListView's fast scroller jump straight to a letter (see ContactIndex.getSections()).
+// Until the first load completes it shows the ListSnapshot saved by saveSnapshot(), so a cold start's first frame has contacts in it.
+// setFilter(...) shows only the contacts matching a TagFilter: the index of every contact is kept, and each refresh filters it
+// again against TagIndex's bitmaps (one pass over the index, no query).
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.ImageView;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+public class CompactContactAdapter extends BaseAdapter implements ContactListAdapter, SectionIndexer{
+   private static final String TAG = "CompactContactAdapter";
+   
+   private final Context context;
+   private final ContactRepository repository;
+   private final LayoutInflater inflater;
+   private final AvatarLoader avatarLoader;
+   private final int avatarSize; 		// pixels
+   
+   private ContactIndex index; 			// what the ListView is showing (replaced, never modified)
+   private ContactIndex all; 			// every contact once loaded, index is all filtered by filter (all itself if there is no filter)
+   private TagFilter filter; 			// null shows every contact
+   private boolean loaded; 				// index has been read from the database (the snapshot or EMPTY until then)
+   private long snapshotSequence = -1; 	// sequence of the index last saved by saveSnapshot()
+   private boolean refreshing; 			// a refresh() is reading
+   private boolean refreshAgain; 		// refresh() was called again meanwhile
+   
+   public CompactContactAdapter(Context context){
+      this.context = context.getApplicationContext();
+      ContactIndex snapshot = ListSnapshot.read(context);
+      index = (snapshot != null) ? snapshot : ContactIndex.EMPTY;
+      repository = ContactRepository.getInstance(context);
+      inflater = LayoutInflater.from(context);
+      avatarLoader = AvatarLoader.getInstance(context);
+      avatarSize = context.getResources().getDimensionPixelSize(R.dimen.avatar_list_size);
+   }
+   
+   // the index the list is showing (GUI thread)
+   public ContactIndex getIndex(){
+      return index;
+   }
+   
+   public TagFilter getFilter(){
+      return filter;
+   }
+   
+   // shows only the contacts filter matches (every contact if it is null), once they have been read
+   public void setFilter(TagFilter filter){
+      this.filter = filter;
+      refresh();
+   }
+   
+   // the list is the database's (not the snapshot shown before the first load)
+   public boolean isLoaded(){
+      return loaded;
+   }
+   
+   // saves the top of the list for the next cold start (see ListSnapshot), on the writer thread unless it is unchanged since last time
+   public void saveSnapshot(){
+      if (!loaded || all.getSequence() == snapshotSequence)
+         return;
+      snapshotSequence = all.getSequence();
+      final ContactIndex saved = all; // the whole list, whatever filter is showing
+      repository.write(this, "listSnapshot", new Callable<Void>(){
+            @Override
+            public Void call(){
+               try{
+                  ListSnapshot.write(context, saved);
+               }
+               catch (IOException e){
+                  Log.w(TAG, "list snapshot not saved", e); // the next cold start just shows an older one (or none)
+               }
+               return null;
+            }
+         }, null);
+   }
+   
+   // loads the index the first time, after that applies the changes since the index was loaded (on a reader thread)
+   // applying changes is one pass over the arrays however many there are, so unlike PagedContactAdapter there is no limit on
+   // them, the whole index is only read again if the change log no longer goes back far enough
+   @Override
+   public void refresh(){
+      if (refreshing){
+         refreshAgain = true; // the one in flight may have read the changes before the latest write
+         return;
+      }
+      refreshing = true;
+      
+      final ContactIndex current = loaded ? all : null;
+      final TagFilter currentFilter = filter;
+      repository.read(this, new Callable<ContactIndex[]>(){
+            @Override
+            public ContactIndex[] call(){ // reader thread
+               DatabaseConnector databaseConnector = repository.getDatabaseConnector();
+               ContactIndex updated;
+               if (current == null)
+                  updated = ContactIndex.load(databaseConnector);
+               else{
+                  PagedContactAdapter.ChangeSet changeSet = 
+                     PagedContactAdapter.readChanges(databaseConnector, current.getSequence(), Integer.MAX_VALUE);
+                  if (changeSet.changes == null)
+                     updated = ContactIndex.load(databaseConnector);
+                  else if (changeSet.changes.isEmpty())
+                     updated = current; // nothing changed
+                  else
+                     updated = current.withChanges(changeSet.changes, changeSet.sequence);
+               }
+               
+               // filtered every time, a write to the tags alone changes no contact but may change what the filter matches
+               if (currentFilter != null)
+                  return new ContactIndex[] {updated, updated.filter(TagIndex.evaluate(databaseConnector, currentFilter))};
+               return new ContactIndex[] {updated, updated};
+            }
+         },
+         new ContactRepository.Callback<ContactIndex[]>(){
+            @Override
+            public void onResult(ContactIndex[] result){ // GUI thread, result is {all, shown}
+               refreshing = false;
+               all = result[0];
+               if (result[1] != index){
+                  index = result[1];
+                  notifyDataSetChanged(); // the ListView rebinds the visible rows from the new index, keeping its position
+               }
+               if (!loaded){
+                  loaded = true;
+                  StartupTrace.listLoaded(index.size() == 0);
+               }
+               if (refreshAgain){
+                  refreshAgain = false;
+                  refresh();
+               }
+            }
+            
+            
+            @Override
+            public void onError(Exception e){ // GUI thread
+               refreshing = false; // the list stays as it is, the next refresh() (the next change, or refreshAgain) tries again
+               if (refreshAgain){
+                  refreshAgain = false;
+                  refresh();
+               }
+            }
+         });
+   }
+   
+   // the index is kept (the next refresh() only applies what changed), only a read in flight is abandoned
+   @Override
+   public boolean cancelLoads(){
+      boolean abandoned = refreshing;
+      repository.cancel(this);
+      refreshing = refreshAgain = false; // a cancelled refresh is not delivered, the next refresh() reads its changes again
+      return abandoned;
+   }
+   
+   @Override
+   public int getCount(){
+      return index.size();
+   }
+   
+   // name of the contact at position (a new String, binding doesn't use this)
+   @Override
+   public Object getItem(int position){
+      return index.getName(position);
+   }
+   
+   // row _id (passed to OnItemClickListener.onItemClick)
+   @Override
+   public long getItemId(int position){
+      return index.getId(position);
+   }
+   
+   @Override
+   public boolean hasStableIds(){
+      return true;
+   }
+   
+   // the sections come with the index (computed as it was built), so none of these queries the database
+   @Override
+   public Object[] getSections(){
+      return index.getSections();
+   }
+   
+   @Override
+   public int getPositionForSection(int section){
+      return index.getPositionForSection(section);
+   }
+   
+   @Override
+   public int getSectionForPosition(int position){
+      return index.getSectionForPosition(position);
+   }
+   
+   @Override
+   public View getView(int position, View convertView, ViewGroup parent){
+      long start = Metrics.start();
+      
+      // reuse the row View the ListView hands back (and the references to its widgets and its name buffer saved in its tag)
+      ViewHolder holder;
+      if (convertView == null){
+         convertView = inflater.inflate(R.layout.contact_list_item, parent, false);
+         holder = new ViewHolder();
+         holder.nameTextView = (TextView) convertView.findViewById(R.id.contactTextView);
+         holder.favouriteCheckBox = (CheckBox) convertView.findViewById(R.id.favouriteCheckBox); // null if the layout doesn't have one
+         holder.avatarImageView = (ImageView) convertView.findViewById(R.id.avatarImageView); 		// likewise
+         convertView.setTag(holder);
+      }
+      else
+         holder = (ViewHolder) convertView.getTag();
+      
+      // setText(char[], ...) shows the chars without copying them into a String (the TextView keeps a reference to the buffer,
+      // which is fine since each row View has its own and it is only rewritten when the row is bound again)
+      index.copyName(position, holder.name);
+      holder.nameTextView.setText(holder.name.data, 0, holder.name.sizeCopied);
+      if (holder.favouriteCheckBox != null)
+         holder.favouriteCheckBox.setChecked(index.isFavourite(position));
+      // from the memory cache if it is there, otherwise it is decoded off the GUI thread (cancelled if the row is rebound first)
+      if (holder.avatarImageView != null)
+         avatarLoader.load(holder.avatarImageView, index.getId(position), avatarSize);
+      
+      Metrics.stop("list.bind", start);
+      return convertView;
+   }
+   
+   // widget references and name buffer for one recycled row View
+   private static class ViewHolder{
+      TextView nameTextView;
+      CheckBox favouriteCheckBox;
+      ImageView avatarImageView;
+      final CharArrayBuffer name = new CharArrayBuffer(64); // grown by ContactIndex.copyName(...) for a longer name
+   }
+}
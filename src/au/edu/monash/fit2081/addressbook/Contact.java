@@ -0,0 +1,83 @@
+// Contact.java
+// One row of the contacts table as a plain Java object (used where a Cursor is not convenient, e.g. bulk imports).
+package au.edu.monash.fit2081.addressbook;
+
+public class Contact{
+   // one bit per field, for the set of fields an edit changed (see changedFields and DatabaseConnector.updateContactFields)
+   public static final int NAME = 1, EMAIL = 2, FAVOURITE = 4, PHONE = 8, STREET = 16, CITY = 32;
+   public static final int ALL_FIELDS = NAME | EMAIL | FAVOURITE | PHONE | STREET | CITY;
+   
+   private final long id; 			// value of the _id column, 0 if the contact has not been stored yet
+   private final String name;
+   private final String email;
+   private final boolean favourite;
+   private final String phone;
+   private final String street;
+   private final String city;
+   
+   // a contact that is not in the database yet (_id will be assigned by the autoincrement on insert)
+   public Contact(String name, String email, boolean favourite, String phone, String street, String city){
+      this(0, name, email, favourite, phone, street, city);
+   }
+   
+   public Contact(long id, String name, String email, boolean favourite, String phone, String street, String city){
+      this.id = id;
+      this.name = name;
+      this.email = email;
+      this.favourite = favourite;
+      this.phone = phone;
+      this.street = street;
+      this.city = city;
+   }
+   
+   public long getId(){
+      return id;
+   }
+   
+   public String getName(){
+      return name;
+   }
+   
+   public String getEmail(){
+      return email;
+   }
+   
+   public boolean isFavourite(){
+      return favourite;
+   }
+   
+   public String getPhone(){
+      return phone;
+   }
+   
+   public String getStreet(){
+      return street;
+   }
+   
+   public String getCity(){
+      return city;
+   }
+   
+   // the fields (bits above) whose values differ between this contact and edited, 0 if it changes nothing
+   // null and "" count as the same value, an EditText shows both as empty so the user can't have changed one into the other
+   public int changedFields(Contact edited){
+      int changed = 0;
+      if (!same(name, edited.name))
+         changed |= NAME;
+      if (!same(email, edited.email))
+         changed |= EMAIL;
+      if (favourite != edited.favourite)
+         changed |= FAVOURITE;
+      if (!same(phone, edited.phone))
+         changed |= PHONE;
+      if (!same(street, edited.street))
+         changed |= STREET;
+      if (!same(city, edited.city))
+         changed |= CITY;
+      return changed;
+   }
+   
+   private static boolean same(String value1, String value2){
+      return (value1 == null || value1.length() == 0) ? (value2 == null || value2.length() == 0) : value1.equals(value2);
+   }
+}
@@ -0,0 +1,364 @@
+// ContactBitmap.java
+// A compressed set of contact _ids in the style of a Roaring bitmap: the ids are grouped by their high bits (id >>> 16) into
+// containers of up to 65536 values, each holding the low 16 bits either as a sorted char[] (while it has at most ARRAY_MAX values,
+// 2 bytes each) or as a 65536 bit bitset (8KB, smaller than the array from then on). Ids handed out by AUTOINCREMENT are dense,
+// so a tag on a few contacts costs a few bytes and the set of every contact about 1 bit per contact.
+// and/or/andNot work a container at a time (an array against an array is a merge, a bitset against a bitset 1024 word operations)
+// and return a new bitmap, so TagIndex can combine the bitmaps of any number of tags in microseconds.
+// Not thread safe, TagIndex guards the bitmaps it keeps and hands out copies.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.Arrays;
+
+public final class ContactBitmap{
+   public static final long MAX_ID = (1L << 47) - 1; 	// the largest id a bitmap can hold (the high bits are kept in an int)
+   static final int ARRAY_MAX = 4096; 					// a container holding more values than this is a bitset
+   private static final int WORDS = 65536 / 64; 		// longs in a bitset container
+   
+   private int[] keys = new int[4]; 						// high bits of each container's ids, ascending
+   private Container[] containers = new Container[4];
+   private int size; 										// containers in use
+   
+   // adds id, returns false if it was already there
+   public boolean add(long id){
+      checkId(id);
+      int key = (int) (id >>> 16);
+      int i = find(key);
+      if (i < 0){
+         i = -i - 1;
+         insertContainer(i, key, new Container());
+      }
+      return containers[i].add((char) id);
+   }
+   
+   // removes id, returns false if it wasn't there
+   public boolean remove(long id){
+      if (id < 0 || id > MAX_ID)
+         return false;
+      int i = find((int) (id >>> 16));
+      if (i < 0 || !containers[i].remove((char) id))
+         return false;
+      if (containers[i].cardinality == 0)
+         removeContainer(i);
+      return true;
+   }
+   
+   public boolean contains(long id){
+      if (id < 0 || id > MAX_ID)
+         return false;
+      int i = find((int) (id >>> 16));
+      return i >= 0 && containers[i].contains((char) id);
+   }
+   
+   // number of ids in the bitmap
+   public int getCardinality(){
+      int cardinality = 0;
+      for (int i = 0; i < size; i++)
+         cardinality += containers[i].cardinality;
+      return cardinality;
+   }
+   
+   // the ids in both this bitmap and other
+   public ContactBitmap and(ContactBitmap other){
+      ContactBitmap result = new ContactBitmap();
+      int i = 0, j = 0;
+      while (i < size && j < other.size){
+         if (keys[i] < other.keys[j])
+            i++;
+         else if (keys[i] > other.keys[j])
+            j++;
+         else
+            result.append(keys[i], containers[i++].and(other.containers[j++]));
+      }
+      return result;
+   }
+   
+   // the ids in this bitmap, other or both
+   public ContactBitmap or(ContactBitmap other){
+      ContactBitmap result = new ContactBitmap();
+      int i = 0, j = 0;
+      while (i < size || j < other.size){
+         if (j == other.size || (i < size && keys[i] < other.keys[j]))
+            result.append(keys[i], containers[i++].copy());
+         else if (i == size || keys[i] > other.keys[j])
+            result.append(other.keys[j], other.containers[j++].copy());
+         else
+            result.append(keys[i], containers[i++].or(other.containers[j++]));
+      }
+      return result;
+   }
+   
+   // the ids in this bitmap that aren't in other
+   public ContactBitmap andNot(ContactBitmap other){
+      ContactBitmap result = new ContactBitmap();
+      int j = 0;
+      for (int i = 0; i < size; i++){
+         while (j < other.size && other.keys[j] < keys[i])
+            j++;
+         if (j < other.size && other.keys[j] == keys[i])
+            result.append(keys[i], containers[i].andNot(other.containers[j]));
+         else
+            result.append(keys[i], containers[i].copy());
+      }
+      return result;
+   }
+   
+   // a copy that shares nothing with this bitmap
+   public ContactBitmap copy(){
+      ContactBitmap result = new ContactBitmap();
+      for (int i = 0; i < size; i++)
+         result.append(keys[i], containers[i].copy());
+      return result;
+   }
+   
+   // the ids in ascending order
+   public long[] toArray(){
+      long[] ids = new long[getCardinality()];
+      int count = 0;
+      for (int i = 0; i < size; i++)
+         count = containers[i].copyTo(ids, count, (long) keys[i] << 16);
+      return ids;
+   }
+   
+   // approximate bytes held by the containers (for Metrics and comparisons with a HashSet<Long> or a plain bitset)
+   public long getMemoryBytes(){
+      long bytes = keys.length * 4L + containers.length * 4L;
+      for (int i = 0; i < size; i++)
+         bytes += (containers[i].words != null) ? WORDS * 8L : containers[i].values.length * 2L;
+      return bytes;
+   }
+   
+   private static void checkId(long id){
+      if (id < 0 || id > MAX_ID)
+         throw new IllegalArgumentException("id " + id + " out of range");
+   }
+   
+   // index of the container for key, or -(insertion point) - 1 if there isn't one
+   private int find(int key){
+      if (size > 0 && keys[size - 1] == key)
+         return size - 1; // the common case when ids are added in ascending order
+      return Arrays.binarySearch(keys, 0, size, key);
+   }
+   
+   private void insertContainer(int i, int key, Container container){
+      if (size == keys.length){
+         keys = Arrays.copyOf(keys, size * 2);
+         containers = Arrays.copyOf(containers, size * 2);
+      }
+      System.arraycopy(keys, i, keys, i + 1, size - i);
+      System.arraycopy(containers, i, containers, i + 1, size - i);
+      keys[i] = key;
+      containers[i] = container;
+      size++;
+   }
+   
+   private void removeContainer(int i){
+      System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+      System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+      containers[--size] = null;
+   }
+   
+   // adds a container after the last one (the operations above produce them in key order), an empty one is dropped
+   private void append(int key, Container container){
+      if (container.cardinality > 0)
+         insertContainer(size, key, container);
+   }
+   
+   
+   // the low 16 bits of the ids sharing one key, as a sorted array or a bitset
+   private static final class Container{
+      char[] values; 	// array form: values[0] to values[cardinality - 1] ascending, null in bitset form
+      long[] words; 	// bitset form: WORDS longs, null in array form
+      int cardinality;
+      
+      Container(){
+         values = new char[4];
+      }
+      
+      private Container(char[] values, long[] words, int cardinality){
+         this.values = values;
+         this.words = words;
+         this.cardinality = cardinality;
+      }
+      
+      boolean contains(char value){
+         if (words != null)
+            return (words[value >>> 6] & (1L << value)) != 0;
+         return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+      }
+      
+      boolean add(char value){
+         if (words != null){
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) != 0)
+               return false;
+            words[value >>> 6] |= bit;
+            cardinality++;
+            return true;
+         }
+         
+         // appending (ids added in ascending order) skips the search
+         int i = (cardinality == 0 || values[cardinality - 1] < value) ? cardinality : Arrays.binarySearch(values, 0, cardinality, value);
+         if (i >= 0 && i < cardinality)
+            return false;
+         if (i < 0)
+            i = -i - 1;
+         if (cardinality == ARRAY_MAX){
+            toBitset();
+            return add(value);
+         }
+         if (cardinality == values.length)
+            values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+         System.arraycopy(values, i, values, i + 1, cardinality - i);
+         values[i] = value;
+         cardinality++;
+         return true;
+      }
+      
+      boolean remove(char value){
+         if (words != null){
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0)
+               return false;
+            words[value >>> 6] &= ~bit;
+            if (--cardinality <= ARRAY_MAX)
+               toArray();
+            return true;
+         }
+         
+         int i = Arrays.binarySearch(values, 0, cardinality, value);
+         if (i < 0)
+            return false;
+         System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+         cardinality--;
+         return true;
+      }
+      
+      Container and(Container other){
+         if (words != null && other.words != null){
+            long[] result = new long[WORDS];
+            for (int i = 0; i < WORDS; i++)
+               result[i] = words[i] & other.words[i];
+            return fromWords(result);
+         }
+         
+         // at least one is an array, the result is never bigger than it
+         Container array = (words == null) ? this : other, probed = (array == this) ? other : this;
+         char[] result = new char[array.cardinality];
+         int count = 0;
+         for (int i = 0; i < array.cardinality; i++)
+            if (probed.contains(array.values[i]))
+               result[count++] = array.values[i];
+         return new Container(result, null, count);
+      }
+      
+      Container or(Container other){
+         if (words == null && other.words == null && cardinality + other.cardinality <= ARRAY_MAX){
+            char[] result = new char[cardinality + other.cardinality];
+            int i = 0, j = 0, count = 0;
+            while (i < cardinality || j < other.cardinality){
+               if (j == other.cardinality || (i < cardinality && values[i] < other.values[j]))
+                  result[count++] = values[i++];
+               else if (i == cardinality || values[i] > other.values[j])
+                  result[count++] = other.values[j++];
+               else{
+                  result[count++] = values[i++];
+                  j++;
+               }
+            }
+            return new Container(result, null, count);
+         }
+         
+         long[] result = toWords();
+         if (other.words != null)
+            for (int i = 0; i < WORDS; i++)
+               result[i] |= other.words[i];
+         else
+            for (int i = 0; i < other.cardinality; i++)
+               result[other.values[i] >>> 6] |= 1L << other.values[i];
+         return fromWords(result);
+      }
+      
+      Container andNot(Container other){
+         if (words == null){
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++)
+               if (!other.contains(values[i]))
+                  result[count++] = values[i];
+            return new Container(result, null, count);
+         }
+         
+         long[] result = words.clone();
+         if (other.words != null)
+            for (int i = 0; i < WORDS; i++)
+               result[i] &= ~other.words[i];
+         else
+            for (int i = 0; i < other.cardinality; i++)
+               result[other.values[i] >>> 6] &= ~(1L << other.values[i]);
+         return fromWords(result);
+      }
+      
+      Container copy(){
+         return new Container((values == null) ? null : Arrays.copyOf(values, Math.max(cardinality, 1)),
+            (words == null) ? null : words.clone(), cardinality);
+      }
+      
+      // writes the values (each or'ed with high) to ids from index count on, returns the index after the last
+      int copyTo(long[] ids, int count, long high){
+         if (words == null){
+            for (int i = 0; i < cardinality; i++)
+               ids[count++] = high | values[i];
+            return count;
+         }
+         for (int i = 0; i < WORDS; i++){
+            long word = words[i];
+            while (word != 0){
+               ids[count++] = high | ((i << 6) + Long.numberOfTrailingZeros(word));
+               word &= word - 1;
+            }
+         }
+         return count;
+      }
+      
+      // the values as a bitset (a new array)
+      private long[] toWords(){
+         if (words != null)
+            return words.clone();
+         long[] result = new long[WORDS];
+         for (int i = 0; i < cardinality; i++)
+            result[values[i] >>> 6] |= 1L << values[i];
+         return result;
+      }
+      
+      // a container of the bits set in words, an array unless there are more than ARRAY_MAX of them
+      private static Container fromWords(long[] words){
+         int cardinality = 0;
+         for (long word : words)
+            cardinality += Long.bitCount(word);
+         Container container = new Container(null, words, cardinality);
+         if (cardinality <= ARRAY_MAX)
+            container.toArray();
+         return container;
+      }
+      
+      private void toBitset(){
+         words = toWords();
+         values = null;
+      }
+      
+      private void toArray(){
+         char[] result = new char[Math.max(cardinality, 1)];
+         int count = 0;
+         for (int i = 0; i < WORDS; i++){
+            long word = words[i];
+            while (word != 0){
+               result[count++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+               word &= word - 1; // clears the lowest bit set
+            }
+         }
+         values = result;
+         words = null;
+      }
+   }
+}
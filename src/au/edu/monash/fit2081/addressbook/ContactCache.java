@@ -0,0 +1,161 @@
+// ContactCache.java
+// Process wide cache of recently viewed contacts (by _id) in front of DatabaseConnector, plus a data version number
+// that changes whenever any contact is written, so Activities can tell whether what they are showing is still current.
+// DatabaseConnector keeps it up to date - every write it makes calls one of the *Changed/*Deleted methods below.
+// Those also send the change notifications for ContactsProvider's Uris (the contact's own Uri, or the whole table for bulk writes),
+// so observers hear of every write whichever way it was made. A write inside a batch (see deferNotifications()) is only
+// notified once the batch is over, after its transaction has committed, each changed Uri once.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.LruCache;
+
+public final class ContactCache{
+   public static final int MAX_CONTACTS = 500; 		// least recently used contacts beyond this are dropped
+   public static final int MAX_BATCH_NOTIFICATIONS = 100; // a batch changing more contacts than this notifies the whole table instead
+   
+   private static final LruCache<Long, Contact> contacts = new LruCache<Long, Contact>(MAX_CONTACTS); // thread safe
+   private static long dataVersion; 				// incremented by every write (guarded by the class lock like the methods below)
+   private static volatile ContentResolver contentResolver; // notifications are sent once ContactsProvider has set this
+   // the batch the current thread is writing (null when it isn't in one)
+   private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+   
+   private ContactCache(){} // only static members
+   
+   // the cached contact or null (a miss) if it has to be read from the database
+   public static Contact get(long id){
+      return contacts.get(id);
+   }
+   
+   // current data version, equal values mean no contact has been inserted, updated or deleted in between
+   public static synchronized long getDataVersion(){
+      return dataVersion;
+   }
+   
+   // caches a contact just read from the database, unless some write happened since readVersion (then it may already be stale)
+   public static synchronized void putIfUnchanged(Contact contact, long readVersion){
+      if (readVersion == dataVersion)
+         contacts.put(contact.getId(), contact);
+   }
+   
+   // a contact was inserted or updated with exactly these values
+   static void contactChanged(Contact contact){
+      synchronized (ContactCache.class){
+         dataVersion++;
+         contacts.put(contact.getId(), contact);
+      }
+      notifyChange(ContactsProvider.contactUri(contact.getId()));
+   }
+   
+   // some of a contact's columns were updated, the cached copy (if any) is dropped rather than patched since the caller
+   // only knows the columns it wrote (see DatabaseConnector.updateContactFields)
+   static void contactUpdated(long id){
+      synchronized (ContactCache.class){
+         dataVersion++;
+         contacts.remove(id);
+      }
+      notifyChange(ContactsProvider.contactUri(id));
+   }
+   
+   // a contact was inserted, it isn't cached (nothing cached can be affected by that)
+   static void contactInserted(long id){
+      synchronized (ContactCache.class){
+         dataVersion++;
+      }
+      notifyChange(ContactsProvider.contactUri(id));
+   }
+   
+   // a contact was deleted
+   static void contactDeleted(long id){
+      synchronized (ContactCache.class){
+         dataVersion++;
+         contacts.remove(id);
+      }
+      notifyChange(ContactsProvider.contactUri(id));
+   }
+   
+   // any number of contacts may have changed (bulk writes)
+   static void contactsChanged(){
+      synchronized (ContactCache.class){
+         dataVersion++;
+         contacts.evictAll();
+      }
+      notifyChange(ContactsProvider.CONTENT_URI);
+   }
+   
+   // called by ContactsProvider when it is created (before any write can be made)
+   static void setContentResolver(ContentResolver resolver){
+      contentResolver = resolver;
+   }
+   
+   // holds back the notifications for the writes this thread makes until the matching sendDeferredNotifications(...)
+   // (called as a batch's transaction begins, observers mustn't be told of changes they can't read yet)
+   // batches nest like their transactions do, nothing is sent until the outermost one ends
+   static void deferNotifications(){
+      Batch batch = batches.get();
+      if (batch == null){
+         batch = new Batch();
+         batches.set(batch);
+      }
+      batch.depth++;
+   }
+   
+   // after the batch's transaction has ended: if it committed each Uri it changed is notified once, if it rolled back nothing
+   // changed but the contacts cached during the batch may hold values that never were, so they are dropped
+   // (a nested batch that fails makes the outermost one roll back too, as SQLite does with nested transactions)
+   static void sendDeferredNotifications(boolean committed){
+      Batch batch = batches.get();
+      if (!committed)
+         batch.failed = true;
+      if (--batch.depth > 0)
+         return;
+      batches.remove();
+      
+      Set<Uri> changed = batch.changed;
+      if (changed.isEmpty())
+         return;
+      if (batch.failed){
+         synchronized (ContactCache.class){
+            dataVersion++;
+            contacts.evictAll();
+         }
+         return;
+      }
+      
+      if (changed.size() > MAX_BATCH_NOTIFICATIONS || changed.contains(ContactsProvider.CONTENT_URI))
+         notifyChange(ContactsProvider.CONTENT_URI); // observers of the table also hear of changes to the contacts in it
+      else
+         for (Uri uri : changed)
+            notifyChange(uri);
+   }
+   
+   // notifies observers of uri (and of ContactsProvider.CONTENT_URI that observe its descendants) now, or after the batch
+   private static void notifyChange(Uri uri){
+      Batch batch = batches.get();
+      if (batch != null)
+         batch.changed.add(uri);
+      else if (contentResolver != null)
+         contentResolver.notifyChange(uri, null);
+   }
+   
+   // the writes of one batch (and the batches nested in it)
+   private static class Batch{
+      final Set<Uri> changed = new HashSet<Uri>();
+      int depth;
+      boolean failed;
+   }
+   
+   // number of get(...) calls answered from the cache
+   public static int hitCount(){
+      return contacts.hitCount();
+   }
+   
+   // number of get(...) calls that had to go to the database
+   public static int missCount(){
+      return contacts.missCount();
+   }
+}
@@ -0,0 +1,137 @@
+// ContactCsvReader.java
+// Reads contacts from a CSV file one line at a time so that even a very large file is never held in memory.
+// Columns (in this order): name,email,phone,street,city,favourite - a first line equal to HEADER is skipped.
+// Fields may be "quoted" to contain commas but (since the file is read by line) not line breaks.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public class ContactCsvReader implements Iterable<Contact>, Closeable{
+   public static final String HEADER = "name,email,phone,street,city,favourite";
+   
+   private final BufferedReader reader;
+   private String nextLine; 			// read one line ahead so hasNext() can answer without consuming a contact
+   private int lineNumber;
+   private boolean iterated; 			// a file can only be read through once
+   
+   public ContactCsvReader(Reader source) throws IOException{
+      reader = new BufferedReader(source);
+      nextLine = readLine();
+      
+      if (nextLine != null && nextLine.trim().equalsIgnoreCase(HEADER))
+         nextLine = readLine();
+   }
+   
+   // the iterator wraps IOExceptions in an IllegalStateException since Iterator methods can't throw checked exceptions
+   @Override
+   public Iterator<Contact> iterator(){
+      if (iterated)
+         throw new IllegalStateException("a ContactCsvReader can only be iterated once");
+      iterated = true;
+      
+      return new Iterator<Contact>(){
+         @Override
+         public boolean hasNext(){
+            return nextLine != null;
+         }
+
+         @Override
+         public Contact next(){
+            if (nextLine == null)
+               throw new NoSuchElementException();
+            
+            Contact contact = parse(nextLine);
+            try{
+               nextLine = readLine();
+            }
+            catch (IOException e){
+               throw new IllegalStateException("error reading line " + (lineNumber + 1), e);
+            }
+            return contact;
+         }
+
+         @Override
+         public void remove(){
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+   
+   @Override
+   public void close() throws IOException{
+      reader.close();
+   }
+   
+   // next non blank line or null at end of file
+   private String readLine() throws IOException{
+      String line;
+      do{
+         line = reader.readLine();
+         lineNumber++;
+      } while (line != null && line.trim().length() == 0);
+      return line;
+   }
+   
+   // turns one CSV line into a Contact, missing trailing columns are treated as empty
+   static Contact parse(String line){
+      List<String> fields = split(line);
+      
+      return new Contact(
+         field(fields, 0), 
+         field(fields, 1), 
+         parseFavourite(field(fields, 5)), 
+         field(fields, 2), 
+         field(fields, 3), 
+         field(fields, 4));
+   }
+   
+   // favourite column accepts what people tend to put in a spreadsheet: 1, *, true or yes (anything else is not a favourite)
+   static boolean parseFavourite(String value){
+      value = value.trim();
+      return value.equals("1") || value.equals("*") || value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes");
+   }
+   
+   private static String field(List<String> fields, int index){
+      return (index < fields.size()) ? fields.get(index) : "";
+   }
+   
+   // splits on commas that are not inside "double quotes", "" inside quotes is a literal quote (RFC 4180)
+   static List<String> split(String line){
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      
+      for (int i = 0; i < line.length(); i++){
+         char c = line.charAt(i);
+         
+         if (quoted){
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+               field.append('"');
+               i++;
+            }
+            else if (c == '"')
+               quoted = false;
+            else
+               field.append(c);
+         }
+         else if (c == '"')
+            quoted = true;
+         else if (c == ','){
+            fields.add(field.toString());
+            field.setLength(0);
+         }
+         else
+            field.append(c);
+      }
+      fields.add(field.toString());
+      
+      return fields;
+   }
+}
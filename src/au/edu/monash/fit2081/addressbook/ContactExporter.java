@@ -0,0 +1,223 @@
+// ContactExporter.java
+// Writes every contact (or a selection of them) to a CSV or vCard 4.0 file (optionally gzipped) straight from one Cursor, a row at a time.
+// Memory use is the same for 10 contacts or 1M: the Cursor's window is refilled as it moves forward, each row's values are copied
+// into the same reused char buffers (no String per value) and the output goes through a fixed size buffer.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+
+public class ContactExporter{
+   public enum Format{ CSV, VCARD }
+   
+   public static final int BUFFER_SIZE = 64 * 1024; 		// bytes/chars buffered before each write to the file
+   public static final int PROGRESS_INTERVAL = 1000; 	// contacts between calls of the ProgressListener
+   
+   // columns of DatabaseConnector.getContactsForExport(...)
+   private static final int NAME = 0, EMAIL = 1, PHONE = 2, STREET = 3, CITY = 4, FAVOURITE = 5;
+   private static final int COLUMNS = 6;
+   
+   private final DatabaseConnector databaseConnector; 	// must be open
+   private final Format format;
+   private final boolean gzip;
+   private final long[] ids; 							// the contacts to export, null for every contact
+   private final CharArrayBuffer[] fields = new CharArrayBuffer[COLUMNS]; // the current row's values, reused for every row
+   
+   public ContactExporter(DatabaseConnector databaseConnector, Format format, boolean gzip){
+      this(databaseConnector, format, gzip, null);
+   }
+   
+   // exports only the contacts with the given ids (e.g. those selected in the list), read DatabaseConnector.MAX_IDS_PER_STATEMENT
+   // at a time (one Cursor per chunk, in _id order within it), every contact if ids is null
+   public ContactExporter(DatabaseConnector databaseConnector, Format format, boolean gzip, long[] ids){
+      this.databaseConnector = databaseConnector;
+      this.format = format;
+      this.gzip = gzip;
+      this.ids = ids;
+      for (int i = 0; i < COLUMNS; i++)
+         fields[i] = new CharArrayBuffer(64); // grown by copyStringToBuffer(...) when a value doesn't fit
+   }
+   
+   // exports to file and returns the number of contacts written, the contacts are written to a temporary file that only replaces
+   // file once complete, so a failed or cancelled export never leaves half a file behind
+   // calling cancel() on cancellationSignal (any thread) stops the export with an OperationCanceledException, listener may be null
+   public int export(File file, DatabaseConnector.ProgressListener listener, CancellationSignal cancellationSignal) throws IOException{
+      File partial = new File(file.getPath() + ".partial");
+      OutputStream out = new FileOutputStream(partial);
+      boolean complete = false;
+      
+      try{
+         int exported = export(out, listener, cancellationSignal);
+         out.close();
+         if (!partial.renameTo(file))
+            throw new IOException("could not rename " + partial + " to " + file);
+         complete = true;
+         return exported;
+      }
+      finally{
+         if (!complete){
+            out.close(); // (closing twice does nothing)
+            partial.delete();
+         }
+      }
+   }
+   
+   // as export(file, ...) but writes to out, which is left open (everything has been flushed to it when this returns)
+   public int export(OutputStream out, DatabaseConnector.ProgressListener listener, CancellationSignal cancellationSignal) throws IOException{
+      long start = Metrics.start();
+      GZIPOutputStream gzipOut = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+      Writer writer = new BufferedWriter(new OutputStreamWriter(gzip ? gzipOut : out, "UTF-8"), BUFFER_SIZE);
+      int exported = 0;
+      
+      if (format == Format.CSV)
+         writer.write(ContactCsvReader.HEADER + "\r\n"); // so the file can be imported again (see ContactCsvReader)
+      
+      if (ids == null)
+         exported = writeRows(databaseConnector.getContactsForExport(cancellationSignal), writer, exported, listener, cancellationSignal);
+      else
+         for (int from = 0; from < ids.length; from += DatabaseConnector.MAX_IDS_PER_STATEMENT){
+            int count = Math.min(DatabaseConnector.MAX_IDS_PER_STATEMENT, ids.length - from);
+            exported = writeRows(databaseConnector.getContactsForExport(ids, from, count, cancellationSignal), writer, exported, 
+               listener, cancellationSignal);
+         }
+      
+      writer.flush();
+      if (gzipOut != null)
+         gzipOut.finish(); // writes the gzip trailer without closing out
+      
+      if (listener != null)
+         listener.onProgress(exported);
+      Metrics.stop("export", start, exported);
+      return exported;
+   }
+   
+   // writes every row of cursor (which it closes) and returns exported plus the number written
+   private int writeRows(Cursor cursor, Writer writer, int exported, DatabaseConnector.ProgressListener listener, 
+      CancellationSignal cancellationSignal) throws IOException{
+      try{
+         while (cursor.moveToNext()){ // forward only, the Cursor never goes back to a row it has passed
+            if (cancellationSignal != null)
+               cancellationSignal.throwIfCanceled();
+            
+            for (int i = 0; i < COLUMNS; i++)
+               cursor.copyStringToBuffer(i, fields[i]); // NULL copies as empty
+            
+            if (format == Format.CSV)
+               writeCsvRow(writer);
+            else
+               writeVCard(writer);
+            
+            if (++exported % PROGRESS_INTERVAL == 0 && listener != null)
+               listener.onProgress(exported);
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      return exported;
+   }
+   
+   // one line in ContactCsvReader's column order: name,email,phone,street,city,favourite
+   private void writeCsvRow(Writer writer) throws IOException{
+      for (int i = 0; i < FAVOURITE; i++){
+         writeCsvField(writer, fields[i]);
+         writer.write(',');
+      }
+      writer.write(isFavourite() ? '1' : '0');
+      writer.write("\r\n");
+   }
+   
+   // a value is quoted if it contains a comma or quote (quotes are doubled inside), as ContactCsvReader.split(...) expects
+   // ContactCsvReader reads one line per contact so line breaks inside a value are written as spaces
+   private static void writeCsvField(Writer writer, CharArrayBuffer field) throws IOException{
+      char[] data = field.data;
+      int size = field.sizeCopied;
+      boolean plain = true;
+      for (int i = 0; i < size && plain; i++)
+         plain = (data[i] != ',' && data[i] != '"' && data[i] != '\n' && data[i] != '\r');
+      
+      if (plain){
+         writer.write(data, 0, size); // the common case, one call for the whole value
+         return;
+      }
+      
+      writer.write('"');
+      for (int i = 0; i < size; i++){
+         char c = data[i];
+         if (c == '"')
+            writer.write("\"\"");
+         else if (c == '\n' || c == '\r')
+            writer.write(' ');
+         else
+            writer.write(c);
+      }
+      writer.write('"');
+   }
+   
+   // one vCard 4.0 (RFC 6350), empty values are left out except FN which every vCard must have
+   // (long lines are not folded, folding is only recommended and every reader accepts unfolded lines)
+   private void writeVCard(Writer writer) throws IOException{
+      writer.write("BEGIN:VCARD\r\nVERSION:4.0\r\nFN:");
+      writeVCardText(writer, fields[NAME]);
+      writer.write("\r\n");
+      
+      if (fields[EMAIL].sizeCopied > 0){
+         writer.write("EMAIL:");
+         writeVCardText(writer, fields[EMAIL]);
+         writer.write("\r\n");
+      }
+      if (fields[PHONE].sizeCopied > 0){
+         writer.write("TEL;VALUE=text:"); // the number as typed, not a tel: URI
+         writeVCardText(writer, fields[PHONE]);
+         writer.write("\r\n");
+      }
+      if (fields[STREET].sizeCopied > 0 || fields[CITY].sizeCopied > 0){
+         writer.write("ADR:;;"); // post office box;extended address;street;locality;region;postal code;country
+         writeVCardText(writer, fields[STREET]);
+         writer.write(';');
+         writeVCardText(writer, fields[CITY]);
+         writer.write(";;;\r\n");
+      }
+      if (isFavourite())
+         writer.write("CATEGORIES:favourite\r\n");
+      
+      writer.write("END:VCARD\r\n");
+   }
+   
+   // a TEXT value: backslash, comma, semicolon and line breaks are escaped
+   private static void writeVCardText(Writer writer, CharArrayBuffer field) throws IOException{
+      char[] data = field.data;
+      int size = field.sizeCopied;
+      int plainFrom = 0; // start of the run of characters not needing an escape, written in one call
+      
+      for (int i = 0; i < size; i++){
+         char c = data[i];
+         if (c == '\\' || c == ',' || c == ';' || c == '\n' || c == '\r'){
+            writer.write(data, plainFrom, i - plainFrom);
+            plainFrom = i + 1;
+            if (c == '\n')
+               writer.write("\\n");
+            else if (c != '\r'){ // (\r\n becomes one \n)
+               writer.write('\\');
+               writer.write(c);
+            }
+         }
+      }
+      writer.write(data, plainFrom, size - plainFrom);
+   }
+   
+   // favourite column is INTEGER 1/0, copied as the text "1" or "0"
+   private boolean isFavourite(){
+      return fields[FAVOURITE].sizeCopied == 1 && fields[FAVOURITE].data[0] == '1';
+   }
+}
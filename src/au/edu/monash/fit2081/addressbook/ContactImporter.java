@@ -0,0 +1,493 @@
+// ContactImporter.java
+// Imports a CSV (see ContactCsvReader) or vCard file of any size as a pipeline of three stages joined by bounded queues:
+//    reader thread  --chunks of raw records-->  PARSER_THREADS parser threads  --parsed chunks-->  writer (the calling thread)
+// The reader splits the file into records without decoding them, the parsers decode, parse and validate them in parallel
+// and the writer commits one chunk per transaction through DatabaseConnector.commitImportBatch, in file order.
+// A full queue blocks the stage feeding it, so however large the file only a few chunks are ever in memory.
+//
+// Each commit also records the file offset the import has reached, so an import that is cancelled or killed part way through
+// carries on from there when the same (unchanged) file is imported again. Records that can't be imported are listed,
+// with their offset and the reason, in an error report next to the file (<file>.errors.csv).
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.CancellationSignal;
+
+public class ContactImporter{
+   public static final int PARSER_THREADS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+   public static final int CHUNK_RECORDS = DatabaseConnector.DEFAULT_BATCH_SIZE; 	// records per chunk, i.e. per transaction
+   public static final int QUEUE_CHUNKS = 4; 		// chunks each queue holds before the stage feeding it has to wait
+   private static final int READ_BUFFER_SIZE = 64 * 1024;
+   
+   private static final Chunk END = new Chunk(-1, 0); 	// passed down the queues after the last chunk (one per parser thread)
+   
+   // what an import did, totals include any earlier interrupted run of the same file that this one resumed
+   public static class Result{
+      public long imported;
+      public long rejected;
+      public boolean resumed; 		// carried on from an interrupted import
+      public File errorReport; 		// null if every record was imported
+   }
+   
+   private final DatabaseConnector databaseConnector;
+   
+   public ContactImporter(DatabaseConnector databaseConnector){
+      this.databaseConnector = databaseConnector;
+   }
+   
+   // imports file (vCard if its name ends with .vcf or .vcard, otherwise CSV), calling listener with the running total after each commit
+   // calling cancel() on cancellationSignal (any thread) stops after the batch being committed with an OperationCanceledException,
+   // importing the same file again resumes from there
+   public Result importFile(File file, DatabaseConnector.ProgressListener listener, CancellationSignal cancellationSignal) throws IOException{
+      String source = file.getAbsolutePath();
+      String name = file.getName().toLowerCase(Locale.US);
+      boolean vCard = name.endsWith(".vcf") || name.endsWith(".vcard");
+      long length = file.length();
+      long modified = file.lastModified();
+      
+      Result result = new Result();
+      long offset = 0;
+      long[] progress = databaseConnector.getImportProgress(source, length, modified);
+      if (progress != null){
+         offset = progress[0];
+         result.imported = progress[1];
+         result.rejected = progress[2];
+         result.resumed = true;
+      }
+      
+      File errorFile = new File(file.getPath() + ".errors.csv");
+      if (!result.resumed)
+         errorFile.delete(); // from an earlier import of the file
+      
+      BlockingQueue<Chunk> raw = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS);
+      BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS);
+      ExecutorService threads = Executors.newFixedThreadPool(PARSER_THREADS + 1);
+      InputStream in = new FileInputStream(file);
+      Writer errors = null;
+      
+      try{
+         skipFully(in, offset);
+         RecordReader reader = new RecordReader(new BufferedInputStream(in, READ_BUFFER_SIZE), offset, vCard, raw);
+         threads.execute(reader);
+         for (int i = 0; i < PARSER_THREADS; i++)
+            threads.execute(new Parser(vCard, raw, parsed));
+         
+         // writer: commits the chunks in sequence, they can arrive out of order from the parsers so early ones wait in waiting
+         // (at most the chunks in the queues plus one per parser, since the reader can't get further ahead than that)
+         HashMap<Integer, Chunk> waiting = new HashMap<Integer, Chunk>();
+         int next = 0;
+         int parsersEnded = 0;
+         
+         while (true){
+            Chunk chunk = waiting.remove(next);
+            if (chunk == null){
+               if (parsersEnded == PARSER_THREADS)
+                  break; // every chunk has been parsed and committed
+               
+               chunk = parsed.take();
+               if (chunk == END)
+                  parsersEnded++;
+               else
+                  waiting.put(chunk.sequence, chunk);
+               continue;
+            }
+            
+            if (!chunk.errors.isEmpty()){
+               if (errors == null){
+                  boolean append = errorFile.exists(); // a resumed import adds to the report of the interrupted one
+                  errors = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(errorFile, append), "UTF-8"));
+                  if (!append)
+                     errors.write("offset,error,record\r\n");
+               }
+               for (String error : chunk.errors)
+                  errors.write(error);
+               errors.flush(); // before the commit, so a rejected record is never missing from the report of a committed chunk
+            }
+            
+            result.imported += chunk.contacts.size();
+            result.rejected += chunk.errors.size();
+            databaseConnector.commitImportBatch(chunk.contacts, source, length, modified, chunk.endOffset, result.imported, result.rejected);
+            next++;
+            
+            if (listener != null)
+               listener.onProgress((int) result.imported);
+            if (cancellationSignal != null)
+               cancellationSignal.throwIfCanceled(); // what has been committed stays, the next import of the file resumes after it
+         }
+         
+         if (reader.failure != null)
+            throw reader.failure; // the file couldn't be read to the end, the import resumes from the last chunk read
+         
+         databaseConnector.finishImport(source);
+         if (errorFile.exists())
+            result.errorReport = errorFile;
+         return result;
+      }
+      catch (InterruptedException e){
+         throw new InterruptedIOException("import interrupted");
+      }
+      finally{
+         threads.shutdownNow(); // (only still running if the writer failed) interrupts the reader and parsers waiting on a queue
+         in.close();
+         if (errors != null)
+            errors.close();
+      }
+   }
+   
+   // InputStream.skip(...) may skip less than asked
+   private static void skipFully(InputStream in, long count) throws IOException{
+      while (count > 0){
+         long skipped = in.skip(count);
+         if (skipped <= 0)
+            throw new IOException("file is shorter than the recorded import offset");
+         count -= skipped;
+      }
+   }
+   
+   
+   // validation and normalisation, the same rule AddEditContact applies (a contact must have a name) after trimming every value
+   // returns the contact to import or throws IllegalArgumentException with the reason it can't be
+   static Contact validate(Contact contact){
+      String name = trim(contact.getName());
+      if (name.length() == 0)
+         throw new IllegalArgumentException("name is required");
+      
+      return new Contact(name, trim(contact.getEmail()), contact.isFavourite(),
+         trim(contact.getPhone()), trim(contact.getStreet()), trim(contact.getCity()));
+   }
+   
+   private static String trim(String value){
+      return (value == null) ? "" : value.trim();
+   }
+   
+   // a vCard (BEGIN:VCARD to END:VCARD) as a Contact: FN (or N if there is no FN), the first EMAIL, TEL and ADR (street and locality)
+   // and a CATEGORIES value of favourite/favorite, as written by ContactExporter - other properties are ignored
+   static Contact parseVCard(String record){
+      String fullName = null, structuredName = null, email = null, phone = null, street = null, city = null;
+      boolean favourite = false;
+      
+      // unfold: a line starting with a space or tab continues the previous one
+      String[] lines = record.replace("\r\n", "\n").replace("\n ", "").replace("\n\t", "").split("\n");
+      for (String line : lines){
+         int colon = line.indexOf(':');
+         if (colon < 0)
+            continue;
+         
+         String property = line.substring(0, colon);
+         int semicolon = property.indexOf(';');
+         if (semicolon >= 0)
+            property = property.substring(0, semicolon); 			// drop the parameters (TYPE=work etc.)
+         property = property.substring(property.lastIndexOf('.') + 1).toUpperCase(Locale.US); // and any group ("item1.")
+         String value = line.substring(colon + 1);
+         
+         if (property.equals("FN") && fullName == null)
+            fullName = unescape(value);
+         else if (property.equals("N") && structuredName == null){
+            List<String> parts = splitComponents(value); 		// family;given;additional;prefix;suffix
+            structuredName = (component(parts, 1) + " " + component(parts, 0)).trim();
+         }
+         else if (property.equals("EMAIL") && email == null)
+            email = unescape(value);
+         else if (property.equals("TEL") && phone == null)
+            phone = unescape(value.startsWith("tel:") ? value.substring(4) : value);
+         else if (property.equals("ADR") && street == null && city == null){
+            List<String> parts = splitComponents(value); 		// po box;extended;street;locality;region;postal code;country
+            street = component(parts, 2);
+            city = component(parts, 3);
+         }
+         else if (property.equals("CATEGORIES"))
+            for (String category : value.split(","))
+               favourite |= category.trim().equalsIgnoreCase("favourite") || category.trim().equalsIgnoreCase("favorite");
+      }
+      
+      return new Contact((fullName != null && fullName.trim().length() > 0) ? fullName : structuredName,
+         email, favourite, phone, street, city);
+   }
+   
+   // splits a structured value on the semicolons that are not escaped, each component unescaped
+   private static List<String> splitComponents(String value){
+      List<String> components = new ArrayList<String>();
+      int from = 0;
+      for (int i = 0; i <= value.length(); i++)
+         if (i == value.length() || (value.charAt(i) == ';' && (i == 0 || value.charAt(i - 1) != '\\'))){
+            components.add(unescape(value.substring(from, i)));
+            from = i + 1;
+         }
+      return components;
+   }
+   
+   private static String component(List<String> components, int index){
+      return (index < components.size()) ? components.get(index) : "";
+   }
+   
+   // undoes the TEXT escapes: \n (or \N) is a line break, \, \; and \\ the character itself
+   private static String unescape(String value){
+      if (value.indexOf('\\') < 0)
+         return value;
+      
+      StringBuilder text = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++){
+         char c = value.charAt(i);
+         if (c == '\\' && i + 1 < value.length()){
+            c = value.charAt(++i);
+            text.append((c == 'n' || c == 'N') ? '\n' : c);
+         }
+         else
+            text.append(c);
+      }
+      return text.toString();
+   }
+   
+   
+   // up to CHUNK_RECORDS records: raw bytes from the reader, then the parser's contacts and error report lines
+   private static class Chunk{
+      final int sequence; 		// position of the chunk in the file, the writer commits them in this order
+      byte[] data = new byte[8 * 1024]; 	// the records' bytes one after another (grown as needed)
+      int size; 				// bytes used in data
+      int[] ends; 				// end of each record in data
+      long[] offsets; 			// offset of each record in the file (for the error report)
+      int records;
+      long endOffset; 			// file offset just after the last record, where an import resumes once this chunk is committed
+      
+      final List<Contact> contacts = new ArrayList<Contact>();
+      final List<String> errors = new ArrayList<String>();
+      
+      Chunk(int sequence, int capacity){
+         this.sequence = sequence;
+         ends = new int[capacity];
+         offsets = new long[capacity];
+      }
+      
+      void add(byte[] bytes, int length, long offset){
+         if (size + length > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+         System.arraycopy(bytes, 0, data, size, length);
+         size += length;
+         ends[records] = size;
+         offsets[records] = offset;
+         records++;
+      }
+   }
+   
+   // stage 1: splits the file into records (a CSV line, or BEGIN:VCARD to END:VCARD) on byte boundaries without decoding them
+   // (a line break byte can't occur inside a UTF-8 character), so it keeps exact file offsets and leaves the decoding to the parsers
+   private static class RecordReader implements Runnable{
+      private final InputStream in;
+      private final boolean vCard;
+      private final BlockingQueue<Chunk> raw;
+      private long offset; 			// file offset of the next byte read
+      private final boolean fromStart;
+      private byte[] line = new byte[1024]; 	// current line (grown as needed)
+      private int lineLength;
+      private byte[] record = new byte[1024]; // current vCard (grown as needed)
+      private int recordLength;
+      volatile IOException failure; 	// set if the file couldn't be read
+      
+      RecordReader(InputStream in, long offset, boolean vCard, BlockingQueue<Chunk> raw){
+         this.in = in;
+         this.offset = offset;
+         this.fromStart = (offset == 0);
+         this.vCard = vCard;
+         this.raw = raw;
+      }
+      
+      @Override
+      public void run(){
+         try{
+            read();
+         }
+         catch (IOException e){
+            failure = e;
+         }
+         catch (InterruptedException e){
+            return; // the writer gave up, nobody is waiting for the END markers
+         }
+         
+         try{
+            for (int i = 0; i < PARSER_THREADS; i++)
+               raw.put(END);
+         }
+         catch (InterruptedException e){
+            // the writer gave up
+         }
+      }
+      
+      private void read() throws IOException, InterruptedException{
+         int sequence = 0;
+         Chunk chunk = new Chunk(sequence, CHUNK_RECORDS);
+         boolean firstLine = fromStart;
+         boolean inVCard = false;
+         long recordOffset = 0;
+         
+         while (true){
+            long lineOffset = offset;
+            if (!readLine())
+               break;
+            
+            if (firstLine && lineLength >= 3 && line[0] == (byte) 0xEF && line[1] == (byte) 0xBB && line[2] == (byte) 0xBF){
+               System.arraycopy(line, 3, line, 0, lineLength - 3); // UTF-8 byte order mark
+               lineLength -= 3;
+            }
+            
+            if (vCard){
+               if (!inVCard && lineIs("BEGIN:VCARD")){
+                  inVCard = true;
+                  recordOffset = lineOffset;
+                  recordLength = 0;
+               }
+               if (inVCard){
+                  appendLineToRecord();
+                  if (lineIs("END:VCARD")){
+                     inVCard = false;
+                     chunk.add(record, recordLength, recordOffset);
+                  }
+               }
+            }
+            else if (!isBlank() && !(firstLine && lineIs(ContactCsvReader.HEADER)))
+               chunk.add(line, lineLength, lineOffset);
+            if (!isBlank())
+               firstLine = false;
+            
+            // a chunk ends after a complete record (never inside a vCard) so its end offset is a safe place to resume
+            if (chunk.records == CHUNK_RECORDS && !inVCard){
+               chunk.endOffset = offset;
+               raw.put(chunk); // waits while the parsers are QUEUE_CHUNKS behind
+               chunk = new Chunk(++sequence, CHUNK_RECORDS);
+            }
+         }
+         
+         // the last (possibly empty) chunk, an unfinished vCard at the end of the file is dropped
+         chunk.endOffset = offset;
+         raw.put(chunk);
+      }
+      
+      // reads the next line (without its \n) into line, false at end of file
+      private boolean readLine() throws IOException{
+         lineLength = 0;
+         int b;
+         while ((b = in.read()) >= 0){ // (in is buffered)
+            offset++;
+            if (b == '\n')
+               return true;
+            if (lineLength == line.length)
+               line = Arrays.copyOf(line, line.length * 2);
+            line[lineLength++] = (byte) b;
+         }
+         return lineLength > 0; // last line without a line break
+      }
+      
+      private void appendLineToRecord(){
+         if (recordLength + lineLength + 1 > record.length)
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + lineLength + 1));
+         System.arraycopy(line, 0, record, recordLength, lineLength);
+         recordLength += lineLength;
+         record[recordLength++] = '\n';
+      }
+      
+      // the line, ignoring surrounding white space (and the \r of a \r\n) and case, equals text (which is ASCII)
+      private boolean lineIs(String text){
+         int start = 0, end = lineLength;
+         while (start < end && line[start] <= ' ')
+            start++;
+         while (end > start && line[end - 1] <= ' ')
+            end--;
+         if (end - start != text.length())
+            return false;
+         for (int i = 0; i < text.length(); i++)
+            if (Character.toUpperCase((char) line[start + i]) != Character.toUpperCase(text.charAt(i)))
+               return false;
+         return true;
+      }
+      
+      private boolean isBlank(){
+         for (int i = 0; i < lineLength; i++)
+            if (line[i] > ' ' || line[i] < 0) // (negative bytes are parts of non ASCII characters)
+               return false;
+         return true;
+      }
+   }
+   
+   // stage 2: decodes, parses and validates the records of each chunk (several parsers run at once, on different chunks)
+   private static class Parser implements Runnable{
+      private final boolean vCard;
+      private final BlockingQueue<Chunk> raw;
+      private final BlockingQueue<Chunk> parsed;
+      
+      Parser(boolean vCard, BlockingQueue<Chunk> raw, BlockingQueue<Chunk> parsed){
+         this.vCard = vCard;
+         this.raw = raw;
+         this.parsed = parsed;
+      }
+      
+      @Override
+      public void run(){
+         try{
+            Chunk chunk;
+            while ((chunk = raw.take()) != END){
+               long start = Metrics.start();
+               parse(chunk);
+               Metrics.stop("import.parseChunk", start, chunk.records);
+               parsed.put(chunk); // waits while the writer is QUEUE_CHUNKS behind
+            }
+            parsed.put(END);
+         }
+         catch (InterruptedException e){
+            // the writer gave up
+         }
+      }
+      
+      private void parse(Chunk chunk){
+         int start = 0;
+         for (int i = 0; i < chunk.records; i++){
+            String text = decode(chunk.data, start, chunk.ends[i]);
+            start = chunk.ends[i];
+            if (text.endsWith("\r"))
+               text = text.substring(0, text.length() - 1);
+            
+            try{
+               chunk.contacts.add(validate(vCard ? parseVCard(text) : ContactCsvReader.parse(text)));
+            }
+            catch (RuntimeException e){ // IllegalArgumentException from validate, or anything a malformed record causes
+               chunk.errors.add(chunk.offsets[i] + "," + csvQuote(e.getMessage()) + "," + csvQuote(text) + "\r\n");
+            }
+         }
+         chunk.data = null; // the bytes aren't needed any more, only the contacts go to the writer
+      }
+      
+      private static String decode(byte[] data, int start, int end){
+         try{
+            return new String(data, start, end - start, "UTF-8");
+         }
+         catch (UnsupportedEncodingException e){
+            throw new AssertionError(e); // every Java platform has UTF-8
+         }
+      }
+      
+      // a value for the error report, quoted as ContactCsvReader.split(...) reads it (and on one line)
+      private static String csvQuote(String value){
+         if (value == null)
+            return "";
+         return "\"" + value.replace("\"", "\"\"").replace("\r", "").replace('\n', ' ') + "\"";
+      }
+   }
+}
@@ -0,0 +1,444 @@
+// ContactIndex.java
+// The whole contact list (_id, name and favourite of every contact, in list order) held in a few primitive arrays:
+// the ids in a long[], favourites in a bitset and all the names, UTF-8 encoded, one after another in a single byte[] with an int[]
+// of where each starts. That is about 13 bytes per contact plus the name's own bytes, where a Contact or String per row costs
+// several times that, and there are only 5 objects however many contacts there are, so the garbage collector has nothing to trace.
+// An index is never modified once built: withChanges(...) returns a new one, so a reader thread can build it while the GUI thread
+// keeps showing the old one (see CompactContactAdapter).
+// Each index also has a section table for fast scrolling (a section per initial letter in list order, then favourites) built as the
+// rows are added, so it costs nothing extra to keep current and jumping to a section is an array lookup.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+public final class ContactIndex{
+   public static final ContactIndex EMPTY = new Builder(0, 0).build();
+   
+   private final int size;
+   private final long[] ids;
+   private final int[] nameOffsets; 	// name i is names[nameOffsets[i]] up to names[nameOffsets[i + 1]]
+   private final byte[] names;
+   private final long[] favourites; 	// bit i set if contact i is a favourite
+   private final long[] nullNames; 	// bit i set if contact i's name is NULL (shown as empty, but listed before the empty names)
+   private final long sequence; 		// DatabaseConnector change sequence the index reflects
+   private final String[] sections; 	// section labels in list order (see sectionLabel)
+   private final int[] sectionStarts; 	// position of the first contact of each section
+   
+   private ContactIndex(Builder builder){
+      size = builder.size;
+      ids = builder.ids;
+      nameOffsets = builder.nameOffsets;
+      names = builder.names;
+      favourites = builder.favourites;
+      nullNames = builder.nullNames;
+      sequence = builder.sequence;
+      
+      sections = new String[builder.sectionCount];
+      for (int i = 0; i < sections.length; i++)
+         sections[i] = (builder.sectionLabels[i] == FAVOURITES) ? FAVOURITES_LABEL : new String(Character.toChars(builder.sectionLabels[i]));
+      sectionStarts = Arrays.copyOf(builder.sectionStarts, builder.sectionCount);
+   }
+   
+   // reads every contact in list order (one query answered from contacts_list_index, see DatabaseConnector.getAllContacts())
+   // the names are copied from the Cursor's window straight into the byte array, no String is made for any of them
+   public static ContactIndex load(DatabaseConnector databaseConnector){
+      long start = Metrics.start();
+      long sequence = databaseConnector.getChangeSequence(); // read first, a change made during the load is applied (again) later, harmlessly
+      Cursor cursor = databaseConnector.getAllContacts();
+      
+      try{
+         Builder builder = new Builder(cursor.getCount(), sequence);
+         CharArrayBuffer name = new CharArrayBuffer(64);
+         while (cursor.moveToNext()){
+            // column order as in getAllContacts: _id, name, favourite
+            cursor.copyStringToBuffer(1, name);
+            builder.add(cursor.getLong(0), cursor.getInt(2) == 1, cursor.isNull(1), name.data, name.sizeCopied);
+         }
+         ContactIndex index = builder.build();
+         Metrics.stop("index.load", start, index.size);
+         return index;
+      }
+      finally{
+         cursor.close();
+      }
+   }
+   
+   // a copy of this index with changes applied (see PagedContactAdapter.readChanges) and brought up to sequence
+   // every changed contact is dropped from its old place and, unless it was deleted, merged in at its new one, in a single pass
+   // over the rows - O(rows + changes) whatever the number of changes, where inserting into the arrays one at a time would copy
+   // the arrays once per change
+   public ContactIndex withChanges(List<PagedContactAdapter.Change> changes, long sequence){
+      long start = Metrics.start();
+      HashSet<Long> changed = new HashSet<Long>();
+      ArrayList<PagedContactAdapter.Change> inserts = new ArrayList<PagedContactAdapter.Change>();
+      for (PagedContactAdapter.Change change : changes){
+         changed.add(change.id);
+         if (change.exists)
+            inserts.add(change);
+      }
+      Collections.sort(inserts, new Comparator<PagedContactAdapter.Change>(){
+         @Override
+         public int compare(PagedContactAdapter.Change change1, PagedContactAdapter.Change change2){
+            return PagedContactAdapter.compareKeys(change1.favourite, change1.name, change1.id, change2.favourite, change2.name, change2.id);
+         }
+      });
+      
+      // the inserted names encoded once up front, so the merge compares bytes with bytes
+      byte[][] insertNames = new byte[inserts.size()][];
+      for (int i = 0; i < insertNames.length; i++)
+         insertNames[i] = encode(inserts.get(i).name);
+      
+      Builder builder = new Builder(size + inserts.size(), sequence);
+      int next = 0; // next insert
+      for (int row = 0; row < size; row++){
+         if (changed.contains(ids[row]))
+            continue; // removed, or moved to its new place by an insert
+         
+         while (next < inserts.size() && compareInsert(inserts.get(next), insertNames[next], row) < 0)
+            addInsert(builder, inserts.get(next), insertNames[next++]);
+         builder.addRow(this, row);
+      }
+      while (next < inserts.size())
+         addInsert(builder, inserts.get(next), insertNames[next++]);
+      
+      ContactIndex index = builder.build();
+      Metrics.stop("index.withChanges", start, changes.size());
+      return index;
+   }
+   
+   // a copy of this index with only the contacts in matches (see TagIndex.evaluate), in the same order and with its own sections
+   public ContactIndex filter(ContactBitmap matches){
+      long start = Metrics.start();
+      Builder builder = new Builder(Math.min(size, matches.getCardinality()), sequence);
+      for (int row = 0; row < size; row++)
+         if (matches.contains(ids[row]))
+            builder.addRow(this, row);
+      
+      ContactIndex index = builder.build();
+      Metrics.stop("index.filter", start, index.size);
+      return index;
+   }
+   
+   // compares an inserted contact's list key with row's the way SQLite orders LIST_ORDER (see PagedContactAdapter.compareKeys),
+   // comparing UTF-8 bytes (unsigned) orders names by code point, as the BINARY collation does
+   private int compareInsert(PagedContactAdapter.Change insert, byte[] name, int row){
+      int favourite = isFavourite(row) ? 1 : 0;
+      if (insert.favourite != favourite)
+         return (insert.favourite < favourite) ? -1 : 1;
+      
+      boolean rowNull = isNameNull(row);
+      if (name == null || rowNull){
+         if ((name == null) != rowNull)
+            return (name == null) ? -1 : 1;
+      }
+      else{
+         int start = nameOffsets[row], length = nameOffsets[row + 1] - start;
+         for (int i = 0; i < name.length && i < length; i++){
+            int b1 = name[i] & 0xFF, b2 = names[start + i] & 0xFF;
+            if (b1 != b2)
+               return (b1 < b2) ? -1 : 1;
+         }
+         if (name.length != length)
+            return (name.length < length) ? -1 : 1;
+      }
+      
+      return (insert.id == ids[row]) ? 0 : (insert.id < ids[row]) ? -1 : 1;
+   }
+   
+   private static void addInsert(Builder builder, PagedContactAdapter.Change insert, byte[] name){
+      builder.add(insert.id, insert.favourite == 1, name == null, (name == null) ? new byte[0] : name, 0, (name == null) ? 0 : name.length);
+   }
+   
+   private static byte[] encode(String name){
+      try{
+         return (name == null) ? null : name.getBytes("UTF-8");
+      }
+      catch (UnsupportedEncodingException e){
+         throw new AssertionError(e); // every Java platform has UTF-8
+      }
+   }
+   
+   public int size(){
+      return size;
+   }
+   
+   // DatabaseConnector change sequence the index is up to date with
+   public long getSequence(){
+      return sequence;
+   }
+   
+   public long getId(int position){
+      return ids[position];
+   }
+   
+   public boolean isFavourite(int position){
+      return (favourites[position >> 6] & (1L << position)) != 0; // (a long shift only uses the low 6 bits of position)
+   }
+   
+   public boolean isNameNull(int position){
+      return (nullNames[position >> 6] & (1L << position)) != 0;
+   }
+   
+   // decodes the name at position into buffer (growing buffer.data only if the name doesn't fit) - nothing is allocated normally
+   public void copyName(int position, CharArrayBuffer buffer){
+      int start = nameOffsets[position], end = nameOffsets[position + 1];
+      if (buffer.data == null || buffer.data.length < end - start)
+         buffer.data = new char[end - start]; // a name never has more chars than UTF-8 bytes
+      
+      char[] chars = buffer.data;
+      int length = 0;
+      for (int i = start; i < end; ){
+         int b = names[i++] & 0xFF;
+         if (b < 0x80)
+            chars[length++] = (char) b;
+         else if (b < 0xE0)
+            chars[length++] = (char) (((b & 0x1F) << 6) | (names[i++] & 0x3F));
+         else if (b < 0xF0){
+            chars[length++] = (char) (((b & 0x0F) << 12) | ((names[i] & 0x3F) << 6) | (names[i + 1] & 0x3F));
+            i += 2;
+         }
+         else{ // a code point beyond the BMP is a surrogate pair in UTF-16
+            int codePoint = ((b & 0x07) << 18) | ((names[i] & 0x3F) << 12) | ((names[i + 1] & 0x3F) << 6) | (names[i + 2] & 0x3F);
+            i += 3;
+            chars[length++] = (char) (0xD800 + ((codePoint - 0x10000) >> 10));
+            chars[length++] = (char) (0xDC00 + ((codePoint - 0x10000) & 0x3FF));
+         }
+      }
+      buffer.sizeCopied = length;
+   }
+   
+   // the name at position as a String (allocates, for getItem(...) and the like rather than binding rows), null for a NULL name
+   public String getName(int position){
+      if (isNameNull(position))
+         return null;
+      try{
+         return new String(names, nameOffsets[position], nameOffsets[position + 1] - nameOffsets[position], "UTF-8");
+      }
+      catch (UnsupportedEncodingException e){
+         throw new AssertionError(e);
+      }
+   }
+   
+   // section labels for a SectionIndexer, in list order
+   // the list is in code point order (see PagedContactAdapter.compareKeys) so names starting with a lower case letter come after
+   // all the upper case ones and their sections appear a second time there, the sections follow the list rather than the alphabet
+   public String[] getSections(){
+      return sections;
+   }
+   
+   // position of the first contact in section (clamped to the sections there are, 0 if there are none)
+   public int getPositionForSection(int section){
+      if (sections.length == 0)
+         return 0;
+      return sectionStarts[Math.max(0, Math.min(section, sections.length - 1))];
+   }
+   
+   // section that position is in (binary search on the few section starts)
+   public int getSectionForPosition(int position){
+      int low = 0, high = sectionStarts.length - 1;
+      while (low < high){
+         int middle = (low + high + 1) / 2;
+         if (sectionStarts[middle] <= position)
+            low = middle;
+         else
+            high = middle - 1;
+      }
+      return Math.max(0, low);
+   }
+   
+   private static final int FAVOURITES = -1; 				// label of the favourites section (they are listed last)
+   private static final String FAVOURITES_LABEL = "\u2605"; 	// a star
+   private static final int OTHER = '#'; 					// label of names that don't start with a letter (and empty names)
+   
+   // section label of a contact: FAVOURITES, OTHER or the upper case first letter of its UTF-8 encoded name bytes[start] to bytes[end - 1]
+   private static int sectionLabel(boolean favourite, byte[] bytes, int start, int end){
+      if (favourite)
+         return FAVOURITES;
+      if (start == end)
+         return OTHER;
+      
+      int b = bytes[start] & 0xFF;
+      int codePoint;
+      if (b < 0x80)
+         codePoint = b;
+      else if (b < 0xE0 && end - start >= 2)
+         codePoint = ((b & 0x1F) << 6) | (bytes[start + 1] & 0x3F);
+      else if (b < 0xF0 && end - start >= 3)
+         codePoint = ((b & 0x0F) << 12) | ((bytes[start + 1] & 0x3F) << 6) | (bytes[start + 2] & 0x3F);
+      else if (end - start >= 4)
+         codePoint = ((b & 0x07) << 18) | ((bytes[start + 1] & 0x3F) << 12) | ((bytes[start + 2] & 0x3F) << 6) | (bytes[start + 3] & 0x3F);
+      else
+         return OTHER;
+      return Character.isLetter(codePoint) ? Character.toUpperCase(codePoint) : OTHER;
+   }
+   
+   // writes the first rows (at most) to out: a few hundred bytes for a screenful, read back by readFrom(...) (see ListSnapshot)
+   // each row is its id, flags (1 = favourite, 2 = NULL name) and its name's UTF-8 bytes as they are in the array
+   public void writeTo(DataOutputStream out, int rows) throws IOException{
+      int count = Math.min(rows, size);
+      out.writeLong(sequence);
+      out.writeInt(count);
+      for (int row = 0; row < count; row++){
+         out.writeLong(ids[row]);
+         out.writeByte((isFavourite(row) ? 1 : 0) | (isNameNull(row) ? 2 : 0));
+         int start = nameOffsets[row], length = nameOffsets[row + 1] - start;
+         out.writeInt(length);
+         out.write(names, start, length);
+      }
+   }
+   
+   // an index of the rows written by writeTo(...), with their sections
+   public static ContactIndex readFrom(DataInputStream in) throws IOException{
+      long sequence = in.readLong();
+      int count = in.readInt();
+      if (count < 0)
+         throw new IOException("bad row count " + count);
+      Builder builder = new Builder(count, sequence);
+      byte[] name = new byte[64];
+      for (int row = 0; row < count; row++){
+         long id = in.readLong();
+         int flags = in.readByte();
+         int length = in.readInt();
+         if (length < 0)
+            throw new IOException("bad name length " + length);
+         if (name.length < length)
+            name = new byte[length];
+         in.readFully(name, 0, length);
+         builder.add(id, (flags & 1) != 0, (flags & 2) != 0, name, 0, length);
+      }
+      return builder.build();
+   }
+   
+   // approximate bytes held by the arrays (for Metrics and comparisons with other list representations)
+   public long getMemoryBytes(){
+      return ids.length * 8L + nameOffsets.length * 4L + names.length + (favourites.length + nullNames.length) * 8L;
+   }
+   
+   
+   // appends rows in list order, growing the arrays as needed, then build() trims them to size
+   private static class Builder{
+      int size;
+      long[] ids;
+      int[] nameOffsets;
+      byte[] names;
+      long[] favourites;
+      long[] nullNames;
+      final long sequence;
+      int sectionCount;
+      int[] sectionLabels = new int[32];
+      int[] sectionStarts = new int[32];
+      
+      Builder(int capacity, long sequence){
+         this.sequence = sequence;
+         ids = new long[capacity];
+         nameOffsets = new int[capacity + 1];
+         names = new byte[capacity * 16]; // grown if the names average more than 16 bytes
+         favourites = new long[(capacity + 63) / 64];
+         nullNames = new long[(capacity + 63) / 64];
+      }
+      
+      // a row whose name is chars[0] to chars[length - 1]
+      void add(long id, boolean favourite, boolean nameNull, char[] chars, int length){
+         int offset = nameOffsets[size];
+         ensureNameCapacity(offset + length * 3); // at most 3 bytes per char (a surrogate pair is 4 bytes for 2 chars)
+         
+         for (int i = 0; i < length; i++){
+            char c = chars[i];
+            if (c < 0x80)
+               names[offset++] = (byte) c;
+            else if (c < 0x800){
+               names[offset++] = (byte) (0xC0 | (c >> 6));
+               names[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])){
+               int codePoint = Character.toCodePoint(c, chars[++i]);
+               names[offset++] = (byte) (0xF0 | (codePoint >> 18));
+               names[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+               names[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+               names[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else{
+               if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c))
+                  c = '\uFFFD'; // half a surrogate pair can't be encoded, it becomes the replacement character
+               names[offset++] = (byte) (0xE0 | (c >> 12));
+               names[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+               names[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+         }
+         
+         addEntry(id, favourite, nameNull, offset);
+      }
+      
+      // row of another index, its name bytes copied as they are
+      void addRow(ContactIndex index, int row){
+         int start = index.nameOffsets[row];
+         add(index.ids[row], index.isFavourite(row), index.isNameNull(row), index.names, start, index.nameOffsets[row + 1] - start);
+      }
+      
+      // a row whose name is already UTF-8 encoded, bytes[start] to bytes[start + length - 1]
+      void add(long id, boolean favourite, boolean nameNull, byte[] bytes, int start, int length){
+         int offset = nameOffsets[size];
+         ensureNameCapacity(offset + length);
+         System.arraycopy(bytes, start, names, offset, length);
+         addEntry(id, favourite, nameNull, offset + length);
+      }
+      
+      private void addEntry(long id, boolean favourite, boolean nameNull, int nameEnd){
+         if (size == ids.length){
+            int capacity = size + size / 2 + 1;
+            ids = Arrays.copyOf(ids, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+            favourites = Arrays.copyOf(favourites, (capacity + 63) / 64);
+            nullNames = Arrays.copyOf(nullNames, (capacity + 63) / 64);
+         }
+         
+         // a new section starts wherever the label changes (e.g. the first name starting with B)
+         int label = sectionLabel(favourite, names, nameOffsets[size], nameEnd);
+         if (sectionCount == 0 || sectionLabels[sectionCount - 1] != label){
+            if (sectionCount == sectionLabels.length){
+               sectionLabels = Arrays.copyOf(sectionLabels, sectionCount * 2);
+               sectionStarts = Arrays.copyOf(sectionStarts, sectionCount * 2);
+            }
+            sectionLabels[sectionCount] = label;
+            sectionStarts[sectionCount++] = size;
+         }
+         
+         ids[size] = id;
+         if (favourite)
+            favourites[size >> 6] |= 1L << size;
+         if (nameNull)
+            nullNames[size >> 6] |= 1L << size;
+         nameOffsets[++size] = nameEnd;
+      }
+      
+      private void ensureNameCapacity(int capacity){
+         if (names.length < capacity)
+            names = Arrays.copyOf(names, Math.max(capacity, names.length + names.length / 2));
+      }
+      
+      // trims the arrays to what was added (normally only names is bigger than needed)
+      ContactIndex build(){
+         if (ids.length != size){
+            ids = Arrays.copyOf(ids, size);
+            nameOffsets = Arrays.copyOf(nameOffsets, size + 1);
+            favourites = Arrays.copyOf(favourites, (size + 63) / 64);
+            nullNames = Arrays.copyOf(nullNames, (size + 63) / 64);
+         }
+         if (names.length != nameOffsets[size])
+            names = Arrays.copyOf(names, nameOffsets[size]);
+         return new ContactIndex(this);
+      }
+   }
+}
@@ -0,0 +1,15 @@
+// ContactListAdapter.java
+// What AddressBook needs from the adapter behind its contact list: PagedContactAdapter (pages read as the list is scrolled)
+// or CompactContactAdapter (every contact in one ContactIndex).
+package au.edu.monash.fit2081.addressbook;
+
+import android.widget.ListAdapter;
+
+public interface ContactListAdapter extends ListAdapter{
+   // bring the list up to date with the database, reading only what changed since it was loaded where possible (returns immediately)
+   void refresh();
+   
+   // stop waiting for rows being read (e.g. the Activity is stopping), the next refresh() or scroll reads them again
+   // returns true if a refresh() was abandoned, the list is then only up to date after refresh() is called again
+   boolean cancelLoads();
+}
@@ -0,0 +1,122 @@
+// ContactPhotos.java
+// Stores each contact's photo as a JPEG file named by its id (files/photos/<id>.jpg) rather than in the contacts table,
+// so the list and every other contacts query stay as narrow as they were and no row ever carries image bytes through a CursorWindow.
+// A photo is cropped square and scaled down to STORED_SIZE when it is set, AvatarLoader decodes it at the size it is shown.
+// The methods do file I/O (and setPhoto(...) decodes an image) so they are called on the repository's writer thread,
+// which also keeps them in order with the contact's other writes (e.g. a photo set just before a delete is deleted with it).
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+public final class ContactPhotos{
+   public static final int STORED_SIZE = 512; 	// pixels square, as large as any avatar is shown
+   public static final int JPEG_QUALITY = 85;
+   
+   private static ContactPhotos instance;
+   
+   private final ContentResolver contentResolver;
+   private final File directory;
+   private final AvatarLoader avatarLoader; 	// told when a photo changes so it drops what it has cached
+   
+   // there is one per process (like the files it manages)
+   public static synchronized ContactPhotos getInstance(Context context){
+      if (instance == null)
+         instance = new ContactPhotos(context.getApplicationContext());
+      return instance;
+   }
+   
+   private ContactPhotos(Context context){
+      contentResolver = context.getContentResolver();
+      directory = new File(context.getFilesDir(), "photos");
+      avatarLoader = AvatarLoader.getInstance(context);
+   }
+   
+   // where contact id's photo is (or would be) stored
+   public File getPhotoFile(long id){
+      return new File(directory, id + ".jpg");
+   }
+   
+   // stores the image at source (e.g. a content:// Uri from the gallery) as contact id's photo, replacing any it had
+   // returns false, leaving any photo it had, if source isn't an image that can be decoded
+   public boolean setPhoto(long id, Uri source) throws IOException{
+      long start = Metrics.start();
+      
+      // the source may be a camera photo of many megapixels, only a subsampled copy no smaller than STORED_SIZE is decoded
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      decode(source, options);
+      if (options.outWidth <= 0 || options.outHeight <= 0)
+         return false;
+      
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = AvatarLoader.sampleSize(options.outWidth, options.outHeight, STORED_SIZE);
+      Bitmap decoded = decode(source, options); // a content:// stream can't be rewound so it is opened again
+      if (decoded == null)
+         return false;
+      Bitmap photo = AvatarLoader.cropToSquare(decoded, Math.min(STORED_SIZE, Math.min(decoded.getWidth(), decoded.getHeight())));
+      
+      // written to a temporary file that only replaces the photo once complete
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("could not create " + directory);
+      File file = getPhotoFile(id);
+      File partial = new File(file.getPath() + ".partial");
+      OutputStream out = new FileOutputStream(partial);
+      try{
+         photo.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+      }
+      finally{
+         out.close();
+         photo.recycle();
+      }
+      if (!partial.renameTo(file)){
+         partial.delete();
+         throw new IOException("could not rename " + partial + " to " + file);
+      }
+      
+      avatarLoader.invalidate(id);
+      Metrics.stop("photos.setPhoto", start);
+      return true;
+   }
+   
+   // removes contact id's photo (if it has one)
+   public void deletePhoto(long id){
+      if (getPhotoFile(id).delete())
+         avatarLoader.invalidate(id);
+   }
+   
+   // after DatabaseConnector.mergeContacts(keepId, removeId): keepId keeps its own photo, or gets removeId's if it has none
+   public void mergePhoto(long keepId, long removeId){
+      File removed = getPhotoFile(removeId);
+      if (!removed.exists())
+         return;
+      
+      File kept = getPhotoFile(keepId);
+      if (!kept.exists() && removed.renameTo(kept))
+         avatarLoader.invalidate(keepId);
+      else
+         removed.delete();
+      avatarLoader.invalidate(removeId);
+   }
+   
+   private Bitmap decode(Uri source, BitmapFactory.Options options) throws IOException{
+      InputStream in = contentResolver.openInputStream(source);
+      if (in == null)
+         throw new IOException("could not open " + source);
+      try{
+         return BitmapFactory.decodeStream(in, null, options);
+      }
+      finally{
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,398 @@
+// ContactRepository.java
+// Runs all of the App's database work off the GUI thread in place of per-screen AsyncTasks:
+// writes go through ONE writer thread in order (SQLite only allows one writer anyway), reads go to a small pool of reader
+// threads that run alongside the writer (possible since the db uses write-ahead logging, see DatabaseConnector).
+// A slow save therefore never delays a list or contact load queued behind it, as it did on the shared serial AsyncTask executor.
+//
+// Results are delivered on the GUI thread to a Callback registered with an "owner" (normally the Activity asking), and so are
+// failures (Callback.onError), so a caller waiting on a result (a progress dialog, a page being loaded) always hears back.
+// cancel(owner) (called from the owner's onStop) drops the owner's queued reads and any results still on their way,
+// queued writes are always carried out (the work outlives the Activity, e.g. a save survives a rotation) - only their Callback is dropped.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+public final class ContactRepository{
+   private static final String TAG = "ContactRepository";
+   public static final int READER_THREADS = 2;
+   
+   // receives the result of a read or write on the GUI thread (neither method is called if its owner cancelled)
+   public static abstract class Callback<T>{
+      public abstract void onResult(T result);
+      
+      // the work threw e instead (already logged), e.g. an SQLiteFullException, by default nothing more is done
+      // a caller that shows or keeps anything until its result arrives overrides this to undo it
+      public void onError(Exception e){
+      }
+   }
+   
+   // Metrics stage names for reads and writes: queued (until a thread starts the work), work, posted (until the GUI thread runs the
+   // delivery, the old onPostExecute latency) and callback (time spent in the Callback itself, e.g. binding the result to Views)
+   private static final String[] READ_STAGES = {"repository.read.queued", "repository.read.work", "repository.read.posted", "repository.read.callback"};
+   private static final String[] WRITE_STAGES = {"repository.write.queued", "repository.write.work", "repository.write.posted", "repository.write.callback"};
+   private static final String[] SYNC_STAGES = {"repository.sync.queued", "repository.sync.work", "repository.sync.posted", "repository.sync.callback"};
+   
+   private static ContactRepository instance;
+   
+   private final DatabaseConnector databaseConnector; 	// used by every read and write, open for the life of the process
+   private final ContactPhotos photos; 					// photos are written on the writer thread too, in order with the contacts
+   private final Handler handler = new Handler(Looper.getMainLooper());
+   private final ExecutorService writer = Executors.newSingleThreadExecutor(new BackgroundThreadFactory("ContactRepository-writer"));
+   private final ExecutorService readers = Executors.newFixedThreadPool(READER_THREADS, new BackgroundThreadFactory("ContactRepository-reader"));
+   // syncs wait on the network, so they have their own thread rather than holding up the writer (SQLite still serialises the writes)
+   private final ExecutorService syncer = Executors.newSingleThreadExecutor(new BackgroundThreadFactory("ContactRepository-sync"));
+   
+   // writes waiting for the writer thread by coalescing key, a newer write with the same key replaces a waiting one (guarded by itself)
+   private final LinkedHashMap<Object, Request<?>> pendingWrites = new LinkedHashMap<Object, Request<?>>();
+   // requests whose result has not been delivered yet (only used on the GUI thread)
+   private final List<Request<?>> outstanding = new ArrayList<Request<?>>();
+   
+   // there is one repository per process (like the shared database it uses)
+   public static synchronized ContactRepository getInstance(Context context){
+      if (instance == null)
+         instance = new ContactRepository(context.getApplicationContext());
+      return instance;
+   }
+   
+   private ContactRepository(Context context){
+      databaseConnector = new DatabaseConnector(context);
+      photos = ContactPhotos.getInstance(context);
+   }
+   
+   // the connector the work passed to read(...)/write(...) should use (already holds a reference to the shared database)
+   public synchronized DatabaseConnector getDatabaseConnector(){ // synchronized since reader and writer threads call it concurrently
+      databaseConnector.open(); // only the first call actually acquires (see DatabaseConnector.open)
+      return databaseConnector;
+   }
+   
+   // runs work on a reader thread and delivers its result to callback on the GUI thread (must be called on the GUI thread)
+   public <T> void read(Object owner, Callable<T> work, Callback<T> callback){
+      Request<T> request = new Request<T>(owner, work, callback, READ_STAGES);
+      outstanding.add(request);
+      request.future = readers.submit(request);
+   }
+   
+   // runs work on the writer thread (after every write submitted before it) and delivers its result to callback on the GUI thread
+   // if coalesceKey is not null and a write with an equal key is still waiting, that write is replaced by this one
+   // (the replaced write's work is never done, its callback receives null once this write has been done)
+   public <T> void write(Object owner, Object coalesceKey, Callable<T> work, Callback<T> callback){
+      write(owner, coalesceKey, true, work, callback);
+   }
+   
+   // as write(...) above, a write that isn't replaceable (a delete) may replace a waiting write but is never replaced itself,
+   // a later write with the same key is queued after it instead
+   private <T> void write(Object owner, Object coalesceKey, boolean replaceable, Callable<T> work, Callback<T> callback){
+      final Request<T> request = new Request<T>(owner, work, callback, WRITE_STAGES);
+      request.replaceable = replaceable;
+      outstanding.add(request);
+      
+      synchronized (pendingWrites){
+         Object key = (coalesceKey == null) ? request : coalesceKey; // a write that can't be coalesced is its own key
+         Request<?> waiting = pendingWrites.get(key);
+         if (waiting != null && !waiting.replaceable)
+            key = request;
+         Request<?> replaced = pendingWrites.put(key, request); // keeps the replaced write's place in the queue
+         if (replaced != null){
+            request.superseded.add(replaced);
+            request.superseded.addAll(replaced.superseded);
+            return; // the writer task queued for replaced will run this request instead
+         }
+      }
+      
+      writer.execute(new Runnable(){
+         @Override
+         public void run(){
+            Request<?> next;
+            synchronized (pendingWrites){ // one Runnable is queued per key so there is always an entry to take
+               Iterator<Request<?>> iterator = pendingWrites.values().iterator();
+               next = iterator.next();
+               iterator.remove();
+            }
+            next.run();
+         }
+      });
+   }
+   
+   // drops owner's queued reads and all of owner's undelivered results (call on the GUI thread, e.g. from onStop)
+   public void cancel(Object owner){
+      for (Iterator<Request<?>> iterator = outstanding.iterator(); iterator.hasNext(); ){
+         Request<?> request = iterator.next();
+         if (request.owner == owner){
+            request.cancelled = true;
+            if (request.future != null)
+               request.future.cancel(false); // a read that hasn't started never will, a running one finishes but isn't delivered
+            iterator.remove();
+         }
+      }
+   }
+   
+   
+   // convenience versions of the operations the Activities use
+   
+   // the contact with the given id (null if it doesn't exist), normally from ContactCache without touching the database
+   public void getContact(Object owner, final long id, Callback<Contact> callback){
+      read(owner, new Callable<Contact>(){
+            @Override
+            public Contact call(){
+               return getDatabaseConnector().getContact(id);
+            }
+         }, callback);
+   }
+   
+   // adds a contact, callback receives null
+   public void insertContact(Object owner, Contact contact, Callback<Void> callback){
+      insertContact(owner, contact, null, callback);
+   }
+   
+   // adds a contact with the image at photo (e.g. picked from the gallery) as its photo (none if photo is null), callback receives null
+   public void insertContact(Object owner, final Contact contact, final Uri photo, Callback<Void> callback){
+      write(owner, null, new Callable<Void>(){
+            @Override
+            public Void call(){
+               long id = getDatabaseConnector().insertContact(contact.getName(), contact.getEmail(), contact.isFavourite(), 
+                  contact.getPhone(), contact.getStreet(), contact.getCity());
+               setPhoto(id, photo);
+               return null;
+            }
+         }, callback);
+   }
+   
+   // replaces all of a contact's values, a waiting update of the same contact is superseded by this one (a waiting delete isn't)
+   public void updateContact(Object owner, Contact contact, Callback<Void> callback){
+      updateContact(owner, contact, null, callback);
+   }
+   
+   // as updateContact(owner, contact, callback) and also replaces the contact's photo with the image at photo (unless it is null)
+   // an update with a photo isn't superseded by a later one (which may not have a photo)
+   public void updateContact(Object owner, final Contact contact, final Uri photo, Callback<Void> callback){
+      write(owner, (photo == null) ? contactKey(contact.getId()) : null, new Callable<Void>(){
+            @Override
+            public Void call(){
+               getDatabaseConnector().updateContact(contact.getId(), contact.getName(), contact.getEmail(), contact.isFavourite(), 
+                  contact.getPhone(), contact.getStreet(), contact.getCity());
+               setPhoto(contact.getId(), photo);
+               return null;
+            }
+         }, callback);
+   }
+   
+   // writes only the fields (Contact bits) an edit changed, plus the image at photo as the contact's photo unless it is null
+   // (see DatabaseConnector.updateContactFields), callback receives null
+   // not coalesced: a waiting write of other fields of the same contact must still be made
+   public void updateContactFields(Object owner, final Contact contact, final int fields, final Uri photo, Callback<Void> callback){
+      write(owner, null, new Callable<Void>(){
+            @Override
+            public Void call(){
+               getDatabaseConnector().updateContactFields(contact, fields);
+               setPhoto(contact.getId(), photo);
+               return null;
+            }
+         }, callback);
+   }
+   
+   // writer thread, a photo that can't be read doesn't fail the contact's write (it just isn't set)
+   private void setPhoto(long id, Uri photo){
+      if (photo == null)
+         return;
+      try{
+         if (!photos.setPhoto(id, photo))
+            Log.w(TAG, photo + " is not an image");
+      }
+      catch (IOException e){
+         Log.e(TAG, "photo not saved", e);
+      }
+   }
+   
+   // deletes a contact, a waiting update of the same contact is superseded (no point writing a row that is about to be deleted)
+   // but an update made after it never supersedes it
+   public void deleteContact(Object owner, final long id, Callback<Void> callback){
+      write(owner, contactKey(id), false, new Callable<Void>(){
+            @Override
+            public Void call(){
+               getDatabaseConnector().deleteContact(id);
+               photos.deletePhoto(id);
+               return null;
+            }
+         }, callback);
+   }
+   
+   // deletes many contacts (and their photos) in one transaction (see DatabaseConnector.deleteContacts), callback receives how many
+   // there were, listener (may be null) is called on the writer thread as the deletes progress
+   public void deleteContacts(Object owner, final long[] ids, final DatabaseConnector.ProgressListener listener, Callback<Integer> callback){
+      write(owner, null, new Callable<Integer>(){
+            @Override
+            public Integer call(){
+               int deleted = getDatabaseConnector().deleteContacts(ids, listener);
+               for (long id : ids) // once the deletes have committed (a photo can't be rolled back)
+                  photos.deletePhoto(id);
+               return deleted;
+            }
+         }, callback);
+   }
+   
+   // makes many contacts favourites (or not) in one transaction (see DatabaseConnector.setFavourite), callback receives how many changed
+   public void setFavourite(Object owner, final long[] ids, final boolean favourite, final DatabaseConnector.ProgressListener listener,
+      Callback<Integer> callback){
+      write(owner, null, new Callable<Integer>(){
+            @Override
+            public Integer call(){
+               return getDatabaseConnector().setFavourite(ids, favourite, listener);
+            }
+         }, callback);
+   }
+   
+   // gives many contacts the tag called name (or takes it from them) in one transaction (see DatabaseConnector.tagContacts),
+   // callback receives how many changed
+   public void tagContacts(Object owner, final String name, final long[] ids, final boolean tagged, 
+      final DatabaseConnector.ProgressListener listener, Callback<Integer> callback){
+      write(owner, null, new Callable<Integer>(){
+            @Override
+            public Integer call(){
+               if (tagged)
+                  return getDatabaseConnector().tagContacts(name, ids, listener);
+               return getDatabaseConnector().untagContacts(name, ids, listener);
+            }
+         }, callback);
+   }
+   
+   // syncs the contacts with the directory at server (see SyncEngine) and delivers what was transferred to callback on the GUI thread
+   // (nothing if the sync failed, e.g. the server was unreachable after all the retries), syncs run one at a time in the order asked for
+   // like a write a sync is carried out even if owner cancels, cancellationSignal (may be null) stops it between two requests
+   public void sync(Object owner, final URL server, final CancellationSignal cancellationSignal, Callback<SyncEngine.Result> callback){
+      Request<SyncEngine.Result> request = new Request<SyncEngine.Result>(owner, new Callable<SyncEngine.Result>(){
+            @Override
+            public SyncEngine.Result call() throws IOException{
+               final SyncEngine.Result result = new SyncEngine(getDatabaseConnector().getDatabase(), server, true).sync(cancellationSignal);
+               if (!result.deletedIds.isEmpty())
+                  writer.execute(new Runnable(){
+                     @Override
+                     public void run(){ // on the writer thread, in order with the photo writes already queued
+                        for (long id : result.deletedIds)
+                           photos.deletePhoto(id);
+                     }
+                  });
+               return result;
+            }
+         }, callback, SYNC_STAGES);
+      outstanding.add(request);
+      syncer.execute(request);
+   }
+   
+   // coalescing key for writes to one contact
+   private static String contactKey(long id){
+      return "contact:" + id;
+   }
+   
+   
+   // one read or write: runs on a background thread, then posts itself to the GUI thread to deliver the result
+   private class Request<T> implements Runnable{
+      final Object owner;
+      final Callable<T> work;
+      final Callback<T> callback;
+      Future<?> future; 				// reads only, for cancel(...)
+      final List<Request<?>> superseded = new ArrayList<Request<?>>(); // writes replaced by this one (see write(...))
+      volatile boolean cancelled; 	// set on the GUI thread by cancel(...)
+      boolean replaceable = true; 	// writes only, see write(...) (guarded by pendingWrites)
+      T result;
+      final String[] stages; 		// READ_STAGES, WRITE_STAGES or SYNC_STAGES
+      final long submitted = Metrics.start();
+      
+      Request(Object owner, Callable<T> work, Callback<T> callback, String[] stages){
+         this.owner = owner;
+         this.work = work;
+         this.callback = callback;
+         this.stages = stages;
+      }
+      
+      @Override
+      public void run(){ // background thread
+         if (cancelled && future != null)
+            return; // a cancelled read isn't worth doing (a cancelled write still is)
+         
+         Metrics.stop(stages[0], submitted);
+         long started = Metrics.start();
+         try{
+            result = work.call();
+            Metrics.stop(stages[1], started);
+         }
+         catch (final Exception e){
+            Log.e(TAG, "database work failed", e);
+            handler.post(new Runnable(){
+               @Override
+               public void run(){ // GUI thread
+                  deliverError(Request.this, e);
+                  for (Request<?> replaced : superseded) // their work was to be done by this one
+                     deliverError(replaced, e);
+               }
+            });
+            return;
+         }
+         
+         final long posted = Metrics.start();
+         handler.post(new Runnable(){
+            @Override
+            public void run(){ // GUI thread
+               Metrics.stop(stages[2], posted);
+               if (outstanding.remove(Request.this) && !cancelled && callback != null){
+                  long delivered = Metrics.start();
+                  callback.onResult(result);
+                  Metrics.stop(stages[3], delivered);
+               }
+               for (Request<?> replaced : superseded)
+                  deliverNull(replaced);
+            }
+         });
+      }
+   }
+   
+   // for a write replaced by a newer one with the same coalescing key (GUI thread)
+   private <T> void deliverNull(Request<T> request){
+      if (outstanding.remove(request) && !request.cancelled && request.callback != null)
+         request.callback.onResult(null);
+   }
+   
+   // for a request whose work failed, or the write that replaced it failed (GUI thread)
+   private <T> void deliverError(Request<T> request, Exception e){
+      if (outstanding.remove(request) && !request.cancelled && request.callback != null)
+         request.callback.onError(e);
+   }
+   
+   // database threads run at background priority so they don't compete with the GUI thread for the CPU (AvatarLoader's too)
+   static class BackgroundThreadFactory implements ThreadFactory{
+      private final String name;
+      private int count;
+      
+      BackgroundThreadFactory(String name){
+         this.name = name;
+      }
+      
+      @Override
+      public Thread newThread(final Runnable runnable){
+         return new Thread(new Runnable(){
+               @Override
+               public void run(){
+                  Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                  runnable.run();
+               }
+            }, name + "-" + (++count));
+      }
+   }
+}
@@ -0,0 +1,208 @@
+// ContactSearchPipeline.java
+// Runs searches as the user types (AddressBook's SearchView) without letting stale searches pile up:
+// keystrokes are debounced, a search made stale by a newer keystroke is cancelled, a repeat of the search 
+// already running is not started again, and recent results are remembered so e.g. backspacing shows them instantly.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.LruCache;
+
+public class ContactSearchPipeline{
+   public static final long DEBOUNCE_MILLIS = 150; 	// a search starts once typing has paused this long
+   public static final int CACHED_QUERIES = 32; 		// results of this many recent queries are kept
+   
+   // receives results on the GUI thread, the Cursor belongs to the listener (which must close it)
+   public interface Listener{
+      void onSearchResults(String query, Cursor results);
+   }
+   
+   private final ContactRepository repository; 						// searches run on its reader threads
+   private final Listener listener;
+   private final int limit; 											// passed to DatabaseConnector.searchContacts
+   private final Handler handler = new Handler(Looper.getMainLooper()); 	// GUI thread: debounce timer
+   private final LruCache<String, SearchResult> recentResults = new LruCache<String, SearchResult>(CACHED_QUERIES);
+   
+   // all fields below are only used on the GUI thread
+   private String pendingQuery; 						// query waiting for the debounce delay to pass
+   private String runningQuery; 						// query being searched for on a reader thread, null if none
+   private CancellationSignal runningSignal; 			// cancels runningQuery's search
+   
+   public ContactSearchPipeline(Context context, int limit, Listener listener){
+      repository = ContactRepository.getInstance(context);
+      this.limit = limit;
+      this.listener = listener;
+   }
+   
+   // the user typed: search for query once typing pauses (or straight away if it was searched for recently)
+   public void setQuery(String query){
+      String key = normalise(query);
+      handler.removeCallbacks(startPendingSearch);
+      
+      SearchResult cached = recentResults.get(key);
+      if (cached != null){
+         pendingQuery = null;
+         cancelRunningSearch(); // whatever it was, it is older than this
+         listener.onSearchResults(key, cached.toCursor());
+         return;
+      }
+      
+      pendingQuery = key;
+      handler.postDelayed(startPendingSearch, DEBOUNCE_MILLIS);
+   }
+   
+   // the user submitted: as setQuery but without waiting for the debounce delay
+   public void submitQuery(String query){
+      setQuery(query);
+      if (pendingQuery != null){
+         handler.removeCallbacks(startPendingSearch);
+         startPendingSearch.run();
+      }
+   }
+   
+   // forget the pending and running searches (e.g. search closed)
+   public void cancel(){
+      handler.removeCallbacks(startPendingSearch);
+      pendingQuery = null;
+      cancelRunningSearch();
+   }
+   
+   // forget remembered results (the contacts may have changed), and the running search, which may have read the contacts
+   // before the change: its results are neither shown nor cached, and the same query submitted next is searched for again
+   // rather than coalesced into it
+   public void invalidate(){
+      recentResults.evictAll();
+      cancelRunningSearch();
+   }
+   
+   // forget everything including results on their way (e.g. the Activity is being destroyed)
+   public void shutdown(){
+      cancel();
+      repository.cancel(this);
+   }
+   
+   // the same query typed differently ("Jo ", "jo") is only searched once and cached once
+   private static String normalise(String query){
+      return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+   }
+   
+   private void cancelRunningSearch(){
+      if (runningSignal != null){
+         runningSignal.cancel(); // the search stops at its next check and its results (if any) are never delivered
+         runningSignal = null;
+         runningQuery = null;
+      }
+   }
+   
+   // debounce delay has passed
+   private final Runnable startPendingSearch = new Runnable(){
+      @Override
+      public void run(){
+         String query = pendingQuery;
+         pendingQuery = null;
+         
+         if (query == null || query.equals(runningQuery))
+            return; // coalesce: the running search will answer this one too
+         
+         cancelRunningSearch();
+         runningQuery = query;
+         runningSignal = new CancellationSignal();
+         repository.read(ContactSearchPipeline.this, new SearchTask(query, runningSignal), new SearchDelivery(query, runningSignal));
+      }
+   };
+   
+   // one search, run on a ContactRepository reader thread
+   private class SearchTask implements Callable<SearchResult>{
+      private final String query;
+      private final CancellationSignal signal;
+      
+      SearchTask(String query, CancellationSignal signal){
+         this.query = query;
+         this.signal = signal;
+      }
+      
+      @Override
+      public SearchResult call(){
+         if (signal.isCanceled())
+            return null; // made stale while it was queued
+         
+         try{
+            Cursor cursor = repository.getDatabaseConnector().searchContacts(query, limit, signal);
+            try{
+               return new SearchResult(cursor);
+            }
+            finally{
+               cursor.close();
+            }
+         }
+         catch (OperationCanceledException e){
+            return null; // made stale while it ran
+         }
+      }
+   }
+   
+   // delivers one search's results (GUI thread)
+   private class SearchDelivery extends ContactRepository.Callback<SearchResult>{
+      private final String query;
+      private final CancellationSignal signal;
+      
+      SearchDelivery(String query, CancellationSignal signal){
+         this.query = query;
+         this.signal = signal;
+      }
+      
+      @Override
+      public void onResult(SearchResult result){
+         if (result == null || signal.isCanceled())
+            return; // made stale before the result arrived
+         
+         runningQuery = null;
+         runningSignal = null;
+         recentResults.put(query, result);
+         listener.onSearchResults(query, result.toCursor());
+      }
+      
+      // nothing is shown for it, but the same query typed again is searched for again rather than taken to be running
+      @Override
+      public void onError(Exception e){
+         if (signal.isCanceled())
+            return;
+         runningQuery = null;
+         runningSignal = null;
+      }
+   }
+   
+   // the rows of one search (DatabaseConnector.LIST_COLUMNS) held in arrays, a fresh Cursor over them is made for each delivery
+   private static class SearchResult{
+      final long[] ids;
+      final String[] names;
+      final int[] favourites;
+      
+      SearchResult(Cursor cursor){
+         ids = new long[cursor.getCount()];
+         names = new String[ids.length];
+         favourites = new int[ids.length];
+         
+         for (int i = 0; cursor.moveToNext(); i++){
+            ids[i] = cursor.getLong(0);
+            names[i] = cursor.getString(1);
+            favourites[i] = cursor.getInt(2);
+         }
+      }
+      
+      Cursor toCursor(){
+         MatrixCursor cursor = new MatrixCursor(DatabaseConnector.LIST_COLUMNS, ids.length);
+         for (int i = 0; i < ids.length; i++)
+            cursor.addRow(new Object[] {ids[i], names[i], favourites[i]});
+         return cursor;
+      }
+   }
+}
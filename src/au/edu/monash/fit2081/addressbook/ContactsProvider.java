@@ -0,0 +1,267 @@
+// ContactsProvider.java
+// ContentProvider over the contacts table for the other components of our stack (sync adapter, dialer integration), guarded by
+// the signature level READ/WRITE permissions in AndroidManifest.xml:
+//    content://au.edu.monash.fit2081.addressbook.contacts/contacts        every contact (selection, projection and sort order as usual)
+//    content://au.edu.monash.fit2081.addressbook.contacts/contacts/<id>   one contact
+// Writes go through the same DatabaseConnector methods as the App's own (so duplicate checks, phone keys, the change log and
+// ContactCache all stay right) and are notified per contact Uri by ContactCache, which also notifies the App's own writes.
+// applyBatch(...) and bulkInsert(...) run as ONE transaction however many operations or rows they have, and notify once it commits.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+
+public class ContactsProvider extends ContentProvider{
+   public static final String AUTHORITY = "au.edu.monash.fit2081.addressbook.contacts";
+   public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/contacts");
+   public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.au.edu.monash.fit2081.contact";
+   public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.au.edu.monash.fit2081.contact";
+   
+   private static final int CONTACTS = 1;
+   private static final int CONTACT_ID = 2;
+   private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+   static{
+      uriMatcher.addURI(AUTHORITY, "contacts", CONTACTS);
+      uriMatcher.addURI(AUTHORITY, "contacts/#", CONTACT_ID);
+   }
+   
+   private ContactPhotos photos;
+   
+   // the Uri of one contact
+   public static Uri contactUri(long id){
+      return ContentUris.withAppendedId(CONTENT_URI, id);
+   }
+   
+   // called on the GUI thread as the process starts (before AddressBookApplication.onCreate), so must be quick
+   @Override
+   public boolean onCreate(){
+      ContactCache.setContentResolver(getContext().getContentResolver());
+      photos = ContactPhotos.getInstance(getContext());
+      return true;
+   }
+   
+   // the process wide connector, already open (see ContactRepository)
+   private DatabaseConnector getDatabaseConnector(){
+      return ContactRepository.getInstance(getContext()).getDatabaseConnector();
+   }
+   
+   @Override
+   public String getType(Uri uri){
+      switch (uriMatcher.match(uri)){
+         case CONTACTS:
+            return CONTENT_TYPE;
+         case CONTACT_ID:
+            return CONTENT_ITEM_TYPE;
+         default:
+            return null;
+      }
+   }
+   
+   // the returned Cursor is told (through its notification Uri) when any contact it could contain changes
+   @Override
+   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+      Cursor cursor = getDatabaseConnector().queryContacts(contactId(uri), projection, selection, selectionArgs, sortOrder);
+      cursor.setNotificationUri(getContext().getContentResolver(), uri);
+      return cursor;
+   }
+   
+   // values must have a name, the other PUBLIC_COLUMNS are optional (_id is assigned)
+   @Override
+   public Uri insert(Uri uri, ContentValues values){
+      if (uriMatcher.match(uri) != CONTACTS)
+         throw new IllegalArgumentException("can't insert into " + uri);
+      
+      Contact contact = withValues(new Contact(0, null, null, false, null, null, null), values);
+      requireName(contact.getName());
+      
+      long id = getDatabaseConnector().insertContact(contact.getName(), contact.getEmail(), contact.isFavourite(),
+         contact.getPhone(), contact.getStreet(), contact.getCity());
+      return contactUri(id);
+   }
+   
+   // all the rows in one transaction (one commit instead of one per row), returns how many were inserted
+   @Override
+   public int bulkInsert(Uri uri, ContentValues[] values){
+      long start = Metrics.start();
+      DatabaseConnector databaseConnector = getDatabaseConnector();
+      boolean successful = false;
+      databaseConnector.beginBatch();
+      try{
+         for (ContentValues row : values)
+            insert(uri, row);
+         successful = true;
+      }
+      finally{
+         databaseConnector.endBatch(successful);
+         Metrics.stop("provider.bulkInsert", start, values.length);
+      }
+      return values.length;
+   }
+   
+   // sets the columns in values of every contact uri and selection match, leaving their other columns, returns how many matched
+   // only those columns are written (see DatabaseConnector.updateContactFields), e.g. a sync setting phones doesn't rewrite names
+   // a name in values must not be null or empty, as for insert(...)
+   @Override
+   public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs){
+      if (values.containsKey("name"))
+         requireName(values.getAsString("name")); // before anything is written
+      DatabaseConnector databaseConnector = getDatabaseConnector();
+      int fields = fieldsOf(values);
+      List<Long> ids;
+      boolean successful = false;
+      databaseConnector.beginBatch(); // several contacts are updated in one transaction (and a single one joins an applyBatch's)
+      try{
+         ids = getContactIds(databaseConnector, uri, selection, selectionArgs); // read in the transaction so none can go meanwhile
+         for (long id : ids){
+            databaseConnector.updateContactFields(withValues(databaseConnector.getContact(id), values), fields);
+         }
+         successful = true;
+      }
+      finally{
+         databaseConnector.endBatch(successful);
+      }
+      return ids.size();
+   }
+   
+   // deletes every contact uri and selection match (and their photos), returns how many there were
+   @Override
+   public int delete(Uri uri, String selection, String[] selectionArgs){
+      DatabaseConnector databaseConnector = getDatabaseConnector();
+      List<Long> ids;
+      boolean successful = false;
+      databaseConnector.beginBatch();
+      try{
+         ids = getContactIds(databaseConnector, uri, selection, selectionArgs);
+         // one DELETE ... WHERE _id IN (...) per chunk of ids rather than the shared delete statement once per contact
+         long[] idArray = new long[ids.size()];
+         for (int i = 0; i < idArray.length; i++)
+            idArray[i] = ids.get(i);
+         databaseConnector.deleteContacts(idArray, null);
+         successful = true;
+      }
+      finally{
+         databaseConnector.endBatch(successful);
+      }
+      
+      // a photo can't be rolled back, so it is only deleted once its contact's delete can't be either
+      // (inside an applyBatch(...) that is before the batch commits, if it then fails the contact is back without its photo)
+      for (long id : ids)
+         photos.deletePhoto(id);
+      return ids.size();
+   }
+   
+   // every operation in one transaction: all of them are applied or (if any throws) none, observers are notified once afterwards
+   // (no yield points, a sync's batch is small enough not to hold up the App's own writes for long)
+   @Override
+   public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException{
+      long start = Metrics.start();
+      DatabaseConnector databaseConnector = getDatabaseConnector();
+      boolean successful = false;
+      databaseConnector.beginBatch();
+      try{
+         ContentProviderResult[] results = super.applyBatch(operations); // calls insert/update/delete above for each operation
+         successful = true;
+         return results;
+      }
+      finally{
+         databaseConnector.endBatch(successful);
+         Metrics.stop("provider.applyBatch", start, operations.size());
+      }
+   }
+   
+   // the id in a contacts/<id> Uri, -1 for the contacts Uri
+   private static long contactId(Uri uri){
+      switch (uriMatcher.match(uri)){
+         case CONTACTS:
+            return -1;
+         case CONTACT_ID:
+            return ContentUris.parseId(uri);
+         default:
+            throw new IllegalArgumentException("unknown Uri " + uri);
+      }
+   }
+   
+   // ids of the contacts uri and selection match
+   private static List<Long> getContactIds(DatabaseConnector databaseConnector, Uri uri, String selection, String[] selectionArgs){
+      List<Long> ids = new ArrayList<Long>();
+      Cursor cursor = databaseConnector.queryContacts(contactId(uri), new String[] {"_id"}, selection, selectionArgs, "_id");
+      try{
+         while (cursor.moveToNext())
+            ids.add(cursor.getLong(0));
+      }
+      finally{
+         cursor.close();
+      }
+      return ids;
+   }
+   
+   // a contact must have a name (the list, paging and search all expect one)
+   private static void requireName(String name){
+      if (name == null || name.length() == 0)
+         throw new IllegalArgumentException("a contact must have a name");
+   }
+   
+   // contact with the columns in values replaced (any other column, or a new _id, is refused)
+   private static Contact withValues(Contact contact, ContentValues values){
+      String name = contact.getName(), email = contact.getEmail(), phone = contact.getPhone();
+      String street = contact.getStreet(), city = contact.getCity();
+      boolean favourite = contact.isFavourite();
+      
+      for (String column : values.keySet()){
+         if (column.equals("name"))
+            name = values.getAsString(column);
+         else if (column.equals("email"))
+            email = values.getAsString(column);
+         else if (column.equals("phone"))
+            phone = values.getAsString(column);
+         else if (column.equals("street"))
+            street = values.getAsString(column);
+         else if (column.equals("city"))
+            city = values.getAsString(column);
+         else if (column.equals("favourite"))
+            favourite = isTrue(values.get(column));
+         else
+            throw new IllegalArgumentException("can't write column " + column);
+      }
+      return new Contact(contact.getId(), name, email, favourite, phone, street, city);
+   }
+   
+   // the Contact field bits of the columns in values (withValues(...) refuses any other column)
+   private static int fieldsOf(ContentValues values){
+      int fields = 0;
+      for (String column : values.keySet()){
+         if (column.equals("name"))
+            fields |= Contact.NAME;
+         else if (column.equals("email"))
+            fields |= Contact.EMAIL;
+         else if (column.equals("phone"))
+            fields |= Contact.PHONE;
+         else if (column.equals("street"))
+            fields |= Contact.STREET;
+         else if (column.equals("city"))
+            fields |= Contact.CITY;
+         else if (column.equals("favourite"))
+            fields |= Contact.FAVOURITE;
+      }
+      return fields;
+   }
+   
+   // a favourite value may be given as a Boolean, a number (1/0) or text ("1", "true")
+   private static boolean isTrue(Object value){
+      if (value instanceof Boolean)
+         return (Boolean) value;
+      if (value instanceof Number)
+         return ((Number) value).intValue() != 0;
+      return value != null && (value.toString().equals("1") || value.toString().equalsIgnoreCase("true"));
+   }
+}
@@ -2,102 +2,1206 @@
 // Provides easy connection and creation of UserContacts database.
 package au.edu.monash.fit2081.addressbook;
 
-import android.content.ContentValues;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.os.CancellationSignal;
 
 public class DatabaseConnector{
+   // number of rows committed per transaction by insertContacts(...)/upsertContacts(...) unless the caller says otherwise
+   public static final int DEFAULT_BATCH_SIZE = 500;
+   // most ids bound to one statement by the methods taking a list of ids, well under SQLite's limit of 999 parameters per statement
+   static final int MAX_IDS_PER_STATEMENT = 500;
+   
    // database name
    private static final String DATABASE_NAME = "UserContacts";
-   private SQLiteDatabase database; 				// database object
-   private DatabaseOpenHelper databaseOpenHelper; 	// database helper
+   static final int DATABASE_VERSION = 9; // 2: favourite stored as INTEGER 1/0, indexes for the list order and name/phone/email lookups
+   												  // 3: contacts_fts full text index (see searchContacts)
+   												  // 4: contact_changes log (see getChangesSince)
+   												  // 5: imports table (see commitImportBatch)
+   												  // 6: dedup_keys and duplicates tables (see DuplicateFinder)
+   												  // 7: phone_key column (see findByPhone)
+   												  // 8: sync columns, sync_tombstones and sync_state (see SyncEngine)
+   												  // 9: tags and contact_tags tables (see tagContacts)
+   
+   // contact_changes keeps (about) this many of the most recent changes, a reader further behind than that gets null from getChangesSince
+   static final int CHANGE_LOG_SIZE = 10000;
+   
+   // columns and order of the contact list, contacts_list_index (see DatabaseOpenHelper.upgradeToVersion2) covers exactly these
+   // so the list is read straight out of the index in order, without touching the table or sorting
+   static final String[] LIST_COLUMNS = {"_id", "name", "favourite"};
+   static final String LIST_ORDER = "favourite, name, _id";
+   
+   // the helper and the database object it opens are shared by EVERY DatabaseConnector in the process (hence static)
+   // opening the db file, checking the schema and warming SQLite's page cache happens once, not once per Activity or per save
+   private static DatabaseOpenHelper databaseOpenHelper; 	// database helper (one per process)
+   private static SQLiteDatabase sharedDatabase; 			// database object (one per process, null until first opened)
+   private static int referenceCount; 						// number of open() calls (and in-flight operations) not yet matched by a close()
+   
+   // precompiled statements for the write paths, compiled once per opening of the shared database and reused for every call
+   // SQLite parses and plans each one once instead of on every save/delete, values are bound to the ? placeholders
+   // (package private for DatabaseBenchmarkTest, which times the same SQL)
+   // every local write marks the row dirty (to be pushed by SyncEngine) and stamps updated_at, a new row gets its sync_id here
+   // (computed by SQLite, not bound, so the parameter numbers are unchanged)
+   static final String NOW_MILLIS_SQL = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)"; // ms since 1970, UTC
+   static final String NEW_SYNC_ID_SQL = "lower(hex(randomblob(16)))";
+   static final String INSERT_SQL = 
+      "INSERT INTO contacts (name, email, favourite, phone, street, city, phone_key, sync_id, updated_at) " + 
+      "VALUES (?, ?, ?, ?, ?, ?, ?, " + NEW_SYNC_ID_SQL + ", " + NOW_MILLIS_SQL + ")";
+   static final String UPDATE_SQL = 
+      "UPDATE contacts SET name = ?, email = ?, favourite = ?, phone = ?, street = ?, city = ?, phone_key = ?, " + 
+      "dirty = 1, updated_at = " + NOW_MILLIS_SQL + " WHERE _id = ?";
+   static final String DELETE_SQL = 
+      "DELETE FROM contacts WHERE _id = ?";
+   private static final String INSERT_WITH_ID_SQL = 	// only used by upsertContacts(...), a NULL _id gets the next autoincrement value
+      "INSERT INTO contacts (name, email, favourite, phone, street, city, phone_key, _id, sync_id, updated_at) " + 
+      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, " + NEW_SYNC_ID_SQL + ", " + NOW_MILLIS_SQL + ")";
+   private static SQLiteStatement insertStatement;
+   private static SQLiteStatement updateStatement;
+   private static SQLiteStatement deleteStatement;
+   // UPDATEs of only some columns, indexed by their Contact field bits, each compiled the first time it is used (see updateContactFields)
+   private static final SQLiteStatement[] fieldUpdateStatements = new SQLiteStatement[Contact.ALL_FIELDS + 1];
+   
+   private SQLiteDatabase database; 				// this connector's reference to the shared database object (null when this connector is closed)
 
    // public constructor for DatabaseConnector - the other classes (they are all Activities) create one every time they need a db access
+   // this is now cheap: only the first connector in the process creates the DatabaseOpenHelper, all later ones reuse it
    public DatabaseConnector(Context context){
-      // create a new DatabaseOpenHelper (its an inner class coded below that extends SQLiteOpenHelper, see its constructor for this constructors parameter semantics)
-      databaseOpenHelper = new DatabaseOpenHelper(context, DATABASE_NAME, null, 1);
+      synchronized (DatabaseConnector.class){
+         if (databaseOpenHelper == null)
+            // create a new DatabaseOpenHelper (its a nested class coded below that extends SQLiteOpenHelper, see its constructor for this constructors parameter semantics)
+            // the application context is used since the helper outlives whichever Activity happened to create it
+            databaseOpenHelper = new DatabaseOpenHelper(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+      }
    }
 
    // open the database connection
    public void open() throws SQLException{ //any error in the method will cause the specified (imported) exception
-      // get a reference to a SQLiteDatabase object which we can use to maintain the database's data
-	  // this statement either opens an existing database (with name DATABASE_NAME) or creates a new one with DatabaseOpenHelper.onCreate(...) 
-      database = databaseOpenHelper.getWritableDatabase(); // method inherited from SQLiteOpenHelper which DatabaseOpenHelper extends 
+      // calling open() twice on the same connector only counts once so a single close() always balances it
+      if (database == null)
+         database = acquireDatabase();
    }
 
    // close the database connection
    public void close(){
-      if (database != null)
-         database.close(); //inherited from SQLiteOpenHelper which DatabaseOpenHelper extends
+      // only gives back this connector's reference, the shared database stays open while any other reference is held
+      if (database != null){
+         database = null;
+         releaseDatabase();
+      }
    }
 
+   // hands out a reference to the shared database, opening it first if nobody currently holds one
+   private static synchronized SQLiteDatabase acquireDatabase() throws SQLException{
+      if (sharedDatabase == null)
+         openSharedDatabase();
+      
+      referenceCount++;
+      return sharedDatabase;
+   }
    
-   // insert (Add), update (Edit) and delete do not require any display so no cursor returned (in either case there is a return to the "intenting" Activity as soon as Save/Delete(after confirm dialog) button pressed
-   // inserts a new contact in the database
-   public void insertContact(String name, String email, String favourite, String phone, String state, String city){
-      ContentValues newContact = new ContentValues(); // required as parameter type by SQLiteDatabase.insert(...) - key/value data structure
+   private static void openSharedDatabase(){
+      long start = Metrics.start();
+      // get a reference to a SQLiteDatabase object which we can use to maintain the database's data
+      // this statement either opens an existing database (with name DATABASE_NAME) or creates a new one with DatabaseOpenHelper.onCreate(...) 
+      sharedDatabase = databaseOpenHelper.getWritableDatabase(); // method inherited from SQLiteOpenHelper which DatabaseOpenHelper extends 
       
-      newContact.put("name", name);
-      newContact.put("email", email);
-      newContact.put("favourite",favourite);
-      newContact.put("phone", phone);
-      newContact.put("street", state);
-      newContact.put("city", city);
+      // statements belong to the database object they were compiled against so they are (re)compiled here
+      insertStatement = sharedDatabase.compileStatement(INSERT_SQL);
+      updateStatement = sharedDatabase.compileStatement(UPDATE_SQL);
+      deleteStatement = sharedDatabase.compileStatement(DELETE_SQL);
+      Metrics.stop("db.open", start);
+   }
 
-      open(); 											// open()coded above
-      database.insert("contacts", null, newContact);	// parameters: table, not used here (has to do with inserting empty records), ContentValues object
-      close(); 											// close() coded above
+   // gives back a reference obtained from acquireDatabase(), the database is only really closed when the last one is returned
+   // (AddressBookApplication holds one for the life of the process so in practice the connection stays warm)
+   private static synchronized void releaseDatabase(){
+      if (--referenceCount == 0){
+         closeStatements();
+         databaseOpenHelper.close(); //inherited from SQLiteOpenHelper which DatabaseOpenHelper extends
+         sharedDatabase = null;
+      }
+   }
+   
+   private static void closeStatements(){
+      insertStatement.close();
+      updateStatement.close();
+      deleteStatement.close();
+      insertStatement = updateStatement = deleteStatement = null;
+      synchronized (fieldUpdateStatements){
+         for (int fields = 0; fields < fieldUpdateStatements.length; fields++){
+            if (fieldUpdateStatements[fields] != null){
+               fieldUpdateStatements[fields].close();
+               fieldUpdateStatements[fields] = null;
+            }
+         }
+      }
+   }
+   
+   // makes every DatabaseConnector opened from now on (and every write and getContact(...) call) use the database helper opens
+   // instead, returns the helper used until now so the caller can put it back the same way (package private for DatabaseBenchmarkTest,
+   // which times the public methods against a scratch database), neither helper is closed: connectors opened before keep the
+   // database they have, and the references held stay counted, an open shared database is replaced by helper's straight away
+   // never called by the App itself, a write made by another thread meanwhile goes to whichever database is current
+   static synchronized DatabaseOpenHelper swapOpenHelper(DatabaseOpenHelper helper){
+      DatabaseOpenHelper previous = databaseOpenHelper;
+      databaseOpenHelper = helper;
+      if (sharedDatabase != null){
+         closeStatements();
+         openSharedDatabase();
+      }
+      return previous;
+   }
+
+   
+   // insert (Add), update (Edit) and delete do not require any display so no cursor returned (in either case there is a return to the "intenting" Activity as soon as Save/Delete(after confirm dialog) button pressed
+   // each one holds its own reference for the duration of the call so it does not disturb this connector's open()/close() state
+   // inserts a new contact in the database, returns its id
+   public long insertContact(String name, String email, boolean favourite, String phone, String state, String city){
+      long start = Metrics.start();
+      SQLiteDatabase db = acquireDatabase(); 			// normally just a counter increment, the connection is already open
+      long id;
+      try{
+         // the contact and its duplicate check are committed together (one transaction is also one commit, not two)
+         db.beginTransactionNonExclusive();
+         try{
+            // a statement holds its bound values between calls so only one thread may bind and execute it at a time
+            synchronized (insertStatement){
+               bindContact(insertStatement, name, email, favourite, phone, state, city); // binds parameters 1 to 7
+               id = insertStatement.executeInsert();
+            }
+            recheckDuplicates(db, id, name, email, phone);
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+         TagIndex.contactInserted(id, favourite);
+         ContactCache.contactInserted(id); // bumps the data version so lists know to reload
+      }
+      finally{
+         releaseDatabase(); 							// normally just a counter decrement, the connection stays open
+         Metrics.stop("db.insertContact", start, 1);
+      }
+      return id;
    }
 
    // updates an existing contact in the database
-   public void updateContact(long id, String name, String email, String favourite, String phone, String state, String city){
-      ContentValues editContact = new ContentValues(); // required as parameter type by SQLiteDatabase.update(...) - key/value data structure
-      
-      editContact.put("name", name);
-      editContact.put("email", email);
-      editContact.put("favourite",favourite);
-      editContact.put("phone", phone);
-      editContact.put("street", state);
-      editContact.put("city", city);
+   public void updateContact(long id, String name, String email, boolean favourite, String phone, String state, String city){
+      long start = Metrics.start();
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         db.beginTransactionNonExclusive();
+         try{
+            synchronized (updateStatement){
+               bindContact(updateStatement, name, email, favourite, phone, state, city);
+               updateStatement.bindLong(8, id); 			// the WHERE _id = ? parameter (bound, not concatenated into the SQL)
+               updateStatement.executeUpdateDelete();
+            }
+            recheckDuplicates(db, id, name, email, phone);
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+         TagIndex.favouriteChanged(id, favourite);
+         ContactCache.contactChanged(new Contact(id, name, email, favourite, phone, state, city)); // the next view is a cache hit
+      }
+      finally{
+         releaseDatabase();
+         Metrics.stop("db.updateContact", start, 1);
+      }
+   }
 
-      open();
-      database.update("contacts", editContact, "_id=" + id, null); // parameters: table, ContentValues object, where clause, where arguments (not used here but allows compound where conditions)
-      close();
+   // updates only the given fields (Contact.NAME | Contact.PHONE ...) of contact to its values, e.g. after an edit that changed
+   // just the phone: the UPDATE sets only those columns, so only the indexes and triggers on them do any work - a name that isn't
+   // set leaves contacts_fts, contacts_list_index and the change log alone, and the duplicate check is only redone for a new
+   // name, email or phone (against contact's other values, those the edit started from)
+   public void updateContactFields(Contact contact, int fields){
+      if ((fields & Contact.ALL_FIELDS) == 0)
+         return; // nothing to write
+      long start = Metrics.start();
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         db.beginTransactionNonExclusive();
+         try{
+            SQLiteStatement statement = getFieldUpdateStatement(db, fields & Contact.ALL_FIELDS);
+            synchronized (statement){
+               int index = 1; // parameters in the order getFieldUpdateStatement(...) puts the columns
+               if ((fields & Contact.NAME) != 0)
+                  bindStringOrNull(statement, index++, contact.getName());
+               if ((fields & Contact.EMAIL) != 0)
+                  bindStringOrNull(statement, index++, contact.getEmail());
+               if ((fields & Contact.FAVOURITE) != 0)
+                  statement.bindLong(index++, contact.isFavourite() ? 1 : 0);
+               if ((fields & Contact.PHONE) != 0){
+                  bindStringOrNull(statement, index++, contact.getPhone());
+                  bindStringOrNull(statement, index++, phoneKey(contact.getPhone()));
+               }
+               if ((fields & Contact.STREET) != 0)
+                  bindStringOrNull(statement, index++, contact.getStreet());
+               if ((fields & Contact.CITY) != 0)
+                  bindStringOrNull(statement, index++, contact.getCity());
+               statement.bindLong(index, contact.getId());
+               statement.executeUpdateDelete();
+            }
+            if ((fields & (Contact.NAME | Contact.EMAIL | Contact.PHONE)) != 0)
+               recheckDuplicates(db, contact.getId(), contact.getName(), contact.getEmail(), contact.getPhone());
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+         if ((fields & Contact.FAVOURITE) != 0)
+            TagIndex.favouriteChanged(contact.getId(), contact.isFavourite());
+         ContactCache.contactUpdated(contact.getId());
+      }
+      finally{
+         releaseDatabase();
+         Metrics.stop("db.updateContactFields", start, 1);
+      }
+   }
+   
+   // the UPDATE of the columns of fields (as UPDATE_SQL, a changed phone also sets phone_key), compiled on first use
+   private static SQLiteStatement getFieldUpdateStatement(SQLiteDatabase db, int fields){
+      synchronized (fieldUpdateStatements){
+         if (fieldUpdateStatements[fields] == null){
+            StringBuilder sql = new StringBuilder("UPDATE contacts SET ");
+            if ((fields & Contact.NAME) != 0)
+               sql.append("name = ?, ");
+            if ((fields & Contact.EMAIL) != 0)
+               sql.append("email = ?, ");
+            if ((fields & Contact.FAVOURITE) != 0)
+               sql.append("favourite = ?, ");
+            if ((fields & Contact.PHONE) != 0)
+               sql.append("phone = ?, phone_key = ?, ");
+            if ((fields & Contact.STREET) != 0)
+               sql.append("street = ?, ");
+            if ((fields & Contact.CITY) != 0)
+               sql.append("city = ?, ");
+            sql.append("dirty = 1, updated_at = ").append(NOW_MILLIS_SQL).append(" WHERE _id = ?");
+            fieldUpdateStatements[fields] = db.compileStatement(sql.toString());
+         }
+         return fieldUpdateStatements[fields];
+      }
    }
 
    // delete the contact specified by the given String name
    public void deleteContact(long id){
-      open();
-      // parameters: table, where clause without where, ... 
-      database.delete("contacts", "_id=" + id, null); // parameters: 
-      close();
+      long start = Metrics.start();
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         // the transaction (so the connection) is taken before the statement's lock, as in the other write methods: the other way
+         // round a thread holding the lock could wait for the connection held by a batch that is waiting for the lock
+         db.beginTransactionNonExclusive();
+         try{
+            synchronized (deleteStatement){
+               deleteStatement.bindLong(1, id);
+               deleteStatement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+         TagIndex.contactsDeleted(id);
+         ContactCache.contactDeleted(id);
+      }
+      finally{
+         releaseDatabase();
+         Metrics.stop("db.deleteContact", start, 1);
+      }
+   }
+
+   // deletes the contacts with the given ids (e.g. a selection in the list) in ONE transaction: DELETE ... WHERE _id IN (?, ?, ...)
+   // statements of MAX_IDS_PER_STATEMENT ids each instead of a statement, a commit and a notification per contact
+   // listener (may be null) is told how many of the ids have been done after each statement, returns the number of contacts deleted
+   // (their photos are the caller's, see ContactRepository.deleteContacts)
+   public int deleteContacts(long[] ids, ProgressListener listener){
+      int deleted = writeByIds("DELETE FROM contacts WHERE _id IN ", ids, listener, "db.deleteContacts");
+      TagIndex.contactsDeleted(ids);
+      ContactCache.contactsChanged();
+      return deleted;
+   }
+   
+   // makes the contacts with the given ids favourites (or not) in one transaction like deleteContacts(...), a contact that already
+   // is (or isn't) isn't written at all, so it isn't marked dirty for SyncEngine or logged in contact_changes, returns how many changed
+   public int setFavourite(long[] ids, boolean favourite, ProgressListener listener){
+      int value = favourite ? 1 : 0;
+      int changed = writeByIds("UPDATE contacts SET favourite = " + value + ", dirty = 1, updated_at = " + NOW_MILLIS_SQL +
+         " WHERE favourite <> " + value + " AND _id IN ", ids, listener, "db.setFavourite");
+      TagIndex.favouriteChanged(ids, favourite);
+      ContactCache.contactsChanged();
+      return changed;
+   }
+   
+   // gives the tag called name (created if there is no such tag yet) to those of the contacts with the given ids that exist,
+   // in one transaction like deleteContacts(...), returns how many didn't have it already
+   // tags are the device's own, SyncEngine doesn't send them to the directory
+   public int tagContacts(String name, long[] ids, ProgressListener listener){
+      return writeTag(name, ids, true, listener);
+   }
+   
+   // takes the tag called name from the contacts with the given ids, returns how many had it
+   // (a tag no contact has any more stays in the tags table, unlisted, and is used again if a contact is given it again)
+   public int untagContacts(String name, long[] ids, ProgressListener listener){
+      return writeTag(name, ids, false, listener);
+   }
+   
+   private int writeTag(String name, long[] ids, boolean tagged, ProgressListener listener){
+      SQLiteDatabase db = acquireDatabase();
+      long tagId;
+      int written;
+      try{
+         db.beginTransactionNonExclusive(); // the tag and its contacts together (writeByIds' transaction is nested in this one)
+         try{
+            if (tagged)
+               db.execSQL("INSERT OR IGNORE INTO tags (name) VALUES (?)", new Object[] {name});
+            tagId = getTagId(db, name);
+            if (tagId < 0)
+               written = 0; // (untagging) there is no such tag
+            else if (tagged)
+               written = writeByIds("INSERT OR IGNORE INTO contact_tags (tag_id, contact_id) SELECT " + tagId + ", _id FROM contacts WHERE _id IN ",
+                  ids, listener, "db.tagContacts");
+            else
+               written = writeByIds("DELETE FROM contact_tags WHERE tag_id = " + tagId + " AND contact_id IN ", ids, listener, "db.untagContacts");
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+      }
+      finally{
+         releaseDatabase();
+      }
+      
+      if (tagId >= 0){
+         TagIndex.contactsTagged(tagId, name, ids, tagged);
+         ContactCache.contactsChanged(); // the contacts aren't changed but a list filtered by their tags is
+      }
+      return written;
+   }
+   
+   // the id of the tag called name (ignoring case), -1 if there is no such tag
+   private static long getTagId(SQLiteDatabase db, String name){
+      Cursor cursor = db.rawQuery("SELECT _id FROM tags WHERE name = ?", new String[] {name});
+      try{
+         return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+      }
+      finally{
+         cursor.close();
+      }
+   }
+   
+   // does the work for the methods above taking a list of ids: sql is completed with the placeholder list for each chunk of ids
+   // the caller notifies the whole table once, after the commit (the list then refreshes once, however many contacts were written)
+   private int writeByIds(String sql, long[] ids, ProgressListener listener, String stage){
+      long start = Metrics.start();
+      SQLiteDatabase db = acquireDatabase();
+      SQLiteStatement fullChunk = null; // for MAX_IDS_PER_STATEMENT ids, compiled once and reused for every full chunk
+      int written = 0;
+      
+      try{
+         db.beginTransactionNonExclusive();
+         try{
+            for (int from = 0; from < ids.length; from += MAX_IDS_PER_STATEMENT){
+               int count = Math.min(MAX_IDS_PER_STATEMENT, ids.length - from);
+               SQLiteStatement statement;
+               if (count < MAX_IDS_PER_STATEMENT)
+                  statement = db.compileStatement(sql + placeholders(count)); // the last chunk, only compiled once either way
+               else{
+                  if (fullChunk == null)
+                     fullChunk = db.compileStatement(sql + placeholders(count));
+                  statement = fullChunk;
+               }
+               
+               try{
+                  for (int i = 0; i < count; i++)
+                     statement.bindLong(i + 1, ids[from + i]);
+                  written += statement.executeUpdateDelete();
+               }
+               finally{
+                  if (statement != fullChunk)
+                     statement.close();
+               }
+               
+               if (listener != null)
+                  listener.onProgress(from + count);
+            }
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+      }
+      finally{
+         if (fullChunk != null)
+            fullChunk.close();
+         releaseDatabase();
+         Metrics.stop(stage, start, ids.length);
+      }
+      
+      return written;
+   }
+   
+   // "(?, ?, ..., ?)" with count placeholders
+   private static String placeholders(int count){
+      StringBuilder list = new StringBuilder(count * 3 + 1);
+      list.append('(');
+      for (int i = 0; i < count; i++)
+         list.append((i == 0) ? "?" : ", ?");
+      return list.append(')').toString();
+   }
+   
+   // makes everything this thread writes until endBatch(...) one transaction (e.g. a ContactsProvider.applyBatch(...)), the write
+   // methods' own transactions become part of it, and their change notifications are held back until it has committed
+   // (also holds a reference to the shared database until endBatch(...), like a write method does for its duration)
+   public void beginBatch(){
+      SQLiteDatabase db = acquireDatabase();
+      ContactCache.deferNotifications();
+      db.beginTransactionNonExclusive();
+   }
+   
+   // ends the batch begun by beginBatch(), committing it if successful and rolling back everything written in it otherwise
+   public void endBatch(boolean successful){
+      try{
+         if (successful)
+            sharedDatabase.setTransactionSuccessful();
+         sharedDatabase.endTransaction();
+      }
+      finally{
+         if (!successful)
+            TagIndex.invalidate(); // it may have been given writes that were rolled back
+         ContactCache.sendDeferredNotifications(successful);
+         releaseDatabase();
+      }
+   }
+
+   // callback for the bulk methods below, called (on the importing thread) after each batch is committed
+   public interface ProgressListener{
+      void onProgress(int contactsWritten);
+   }
+
+   // inserts many contacts, batchSize rows per transaction - one commit (and one fsync) per batch instead of one per contact
+   // contacts is only iterated once so it can stream from a file (see ContactCsvReader), returns the number of contacts inserted
+   public int insertContacts(Iterable<Contact> contacts, int batchSize, ProgressListener listener){
+      return writeContacts(false, contacts, batchSize, listener);
+   }
+
+   // as insertContacts(...) but a contact whose id is already in the table replaces that row (a contact with id 0 is always inserted)
+   // (an UPDATE followed by an INSERT if no row was updated, not INSERT OR REPLACE, since REPLACE's implicit delete skips the delete triggers)
+   public int upsertContacts(Iterable<Contact> contacts, int batchSize, ProgressListener listener){
+      return writeContacts(true, contacts, batchSize, listener);
+   }
+
+   // does the work for insertContacts(...) and upsertContacts(...) using statements compiled for this call only 
+   // (so a long import doesn't hold the locks on the shared statements that single saves use)
+   private int writeContacts(boolean upsert, Iterable<Contact> contacts, int batchSize, ProgressListener listener){
+      SQLiteDatabase db = acquireDatabase();
+      SQLiteStatement statement = db.compileStatement(upsert ? INSERT_WITH_ID_SQL : INSERT_SQL);
+      SQLiteStatement update = upsert ? db.compileStatement(UPDATE_SQL) : null;
+      Iterator<Contact> iterator = contacts.iterator();
+      int written = 0;
+      
+      try{
+         while (iterator.hasNext()){
+            // non exclusive so the list can still be read (WAL) while a batch is being written
+            long start = Metrics.start();
+            int writtenBefore = written;
+            db.beginTransactionNonExclusive();
+            try{
+               for (int inBatch = 0; inBatch < batchSize && iterator.hasNext(); inBatch++){
+                  Contact contact = iterator.next();
+                  written++;
+                  
+                  if (upsert && contact.getId() > 0){
+                     bindContact(update, contact.getName(), contact.getEmail(), contact.isFavourite(), 
+                        contact.getPhone(), contact.getStreet(), contact.getCity());
+                     update.bindLong(8, contact.getId());
+                     if (update.executeUpdateDelete() > 0)
+                        continue; // replaced the existing row
+                  }
+                  
+                  bindContact(statement, contact.getName(), contact.getEmail(), contact.isFavourite(), 
+                     contact.getPhone(), contact.getStreet(), contact.getCity());
+                  if (upsert && contact.getId() > 0)
+                     statement.bindLong(8, contact.getId()); // a new row that keeps the id it was given
+                  else if (upsert)
+                     statement.bindNull(8);
+                  statement.executeInsert();
+               }
+               db.setTransactionSuccessful();
+            }
+            finally{
+               db.endTransaction(); // commits if setTransactionSuccessful() was reached, rolls back the batch otherwise
+               TagIndex.invalidate(); // (built again when a filter next needs it)
+               ContactCache.contactsChanged(); // upserts may have changed cached contacts
+               Metrics.stop("db.writeContacts.batch", start, written - writtenBefore);
+            }
+            
+            if (listener != null)
+               listener.onProgress(written);
+         }
+      }
+      finally{
+         statement.close();
+         if (update != null)
+            update.close();
+         releaseDatabase();
+      }
+      
+      return written;
+   }
+
+   // progress of an interrupted import of source (see ContactImporter): {committedOffset, imported, rejected} or null if there is
+   // nothing to resume, i.e. no import of source was interrupted or the file has changed since (length/modified differ)
+   public long[] getImportProgress(String source, long length, long modified){
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         Cursor cursor = db.rawQuery("SELECT committed_offset, imported, rejected FROM imports WHERE source = ? AND length = ? AND modified = ?", 
+            new String[] {source, String.valueOf(length), String.valueOf(modified)});
+         try{
+            return cursor.moveToFirst() ? new long[] {cursor.getLong(0), cursor.getLong(1), cursor.getLong(2)} : null;
+         }
+         finally{
+            cursor.close();
+         }
+      }
+      finally{
+         releaseDatabase();
+      }
+   }
+   
+   // inserts one batch of an import and records how far through source the import has got IN THE SAME TRANSACTION,
+   // so after a crash the recorded offset is exactly the end of the last batch in the table (nothing is lost or imported twice)
+   // imported and rejected are the running totals including this batch
+   public void commitImportBatch(List<Contact> contacts, String source, long length, long modified, long committedOffset, long imported, long rejected){
+      long start = Metrics.start();
+      SQLiteDatabase db = acquireDatabase();
+      SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+      
+      try{
+         db.beginTransactionNonExclusive();
+         try{
+            for (Contact contact : contacts){
+               bindContact(insert, contact.getName(), contact.getEmail(), contact.isFavourite(), 
+                  contact.getPhone(), contact.getStreet(), contact.getCity());
+               insert.executeInsert();
+            }
+            db.execSQL("INSERT OR REPLACE INTO imports (source, length, modified, committed_offset, imported, rejected) VALUES (?, ?, ?, ?, ?, ?)", 
+               new Object[] {source, length, modified, committedOffset, imported, rejected});
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+            TagIndex.invalidate();
+            ContactCache.contactsChanged();
+         }
+      }
+      finally{
+         insert.close();
+         releaseDatabase();
+         Metrics.stop("db.commitImportBatch", start, contacts.size());
+      }
+   }
+   
+   // forgets the progress of an import of source once it has finished
+   public void finishImport(String source){
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         db.execSQL("DELETE FROM imports WHERE source = ?", new Object[] {source});
+      }
+      finally{
+         releaseDatabase();
+      }
+   }
+
+   // incremental duplicate check of one contact that has just been written (in the caller's transaction): replaces its stored
+   // blocking keys and its (not dismissed) duplicates with those found among the contacts sharing one of the keys (see DuplicateFinder)
+   // a few indexed lookups, however big the table - contacts added by a bulk write have no keys until the next DuplicateFinder.scan(...)
+   // (package private for SyncEngine, which checks the contacts it receives the same way)
+   static void recheckDuplicates(SQLiteDatabase db, long id, String name, String email, String phone){
+      long start = Metrics.start();
+      String normalisedName = DuplicateFinder.normaliseName(name);
+      String normalisedEmail = DuplicateFinder.normaliseEmail(email);
+      String normalisedPhone = DuplicateFinder.normalisePhone(phone);
+      String[] keys = DuplicateFinder.blockingKeys(normalisedName, normalisedEmail, normalisedPhone);
+      String contactId = String.valueOf(id);
+      
+      db.execSQL("DELETE FROM dedup_keys WHERE contact_id = ?", new Object[] {id});
+      db.execSQL("DELETE FROM duplicates WHERE (first_id = ? OR second_id = ?) AND dismissed = 0", new Object[] {id, id});
+      
+      // a missing key is bound as '' which no stored key equals
+      String[] args = new String[keys.length + 1];
+      for (int k = 0; k < keys.length; k++){
+         args[k] = (keys[k] == null) ? "" : keys[k];
+         if (keys[k] != null)
+            db.execSQL("INSERT INTO dedup_keys (contact_id, key) VALUES (?, ?)", new Object[] {id, keys[k]});
+      }
+      args[keys.length] = contactId;
+      
+      int compared = 0;
+      Cursor cursor = db.rawQuery(CANDIDATES_SQL, args);
+      try{
+         while (cursor.moveToNext()){
+            compared++;
+            double score = DuplicateFinder.score(normalisedName, normalisedEmail, normalisedPhone, 
+               DuplicateFinder.normaliseName(cursor.getString(1)), DuplicateFinder.normaliseEmail(cursor.getString(2)), 
+               DuplicateFinder.normalisePhone(cursor.getString(3)));
+            if (score >= DuplicateFinder.MIN_SCORE){
+               DuplicateFinder.Duplicate duplicate = new DuplicateFinder.Duplicate(id, cursor.getLong(0), score);
+               // OR IGNORE: a pair the user has already dismissed stays dismissed
+               db.execSQL("INSERT OR IGNORE INTO duplicates (first_id, second_id, score) VALUES (?, ?, ?)", 
+                  new Object[] {duplicate.firstId, duplicate.secondId, score});
+            }
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      Metrics.stopQuery("dedup.recheck", start, CANDIDATES_SQL, compared);
+   }
+   
+   // the other contacts sharing one of 3 keys (each key lookup uses dedup_keys_key_index), at most DuplicateFinder.MAX_BLOCK_SIZE 
+   // of them as a key shared by more is ignored by the full scan too
+   private static final String CANDIDATES_SQL = 
+      "SELECT _id, name, email, phone FROM contacts WHERE _id IN " + 
+      "(SELECT contact_id FROM dedup_keys WHERE key IN (?, ?, ?) AND contact_id <> ? LIMIT " + DuplicateFinder.MAX_BLOCK_SIZE + ")";
+   
+   // replaces every stored blocking key and every duplicate not dismissed by the user with the results of a full scan
+   // keys[i] are the keys of the contact ids[i] (null entries are missing keys), one transaction so the review list never sees half
+   public void saveDuplicateScan(long[] ids, String[][] keys, List<DuplicateFinder.Duplicate> duplicates){
+      long start = Metrics.start();
+      SQLiteDatabase db = acquireDatabase();
+      SQLiteStatement insertKey = db.compileStatement("INSERT INTO dedup_keys (contact_id, key) VALUES (?, ?)");
+      SQLiteStatement insertDuplicate = db.compileStatement("INSERT OR IGNORE INTO duplicates (first_id, second_id, score) VALUES (?, ?, ?)");
+      
+      try{
+         db.beginTransactionNonExclusive();
+         try{
+            db.execSQL("DELETE FROM dedup_keys");
+            db.execSQL("DELETE FROM duplicates WHERE dismissed = 0");
+            for (int i = 0; i < ids.length; i++)
+               for (String key : keys[i])
+                  if (key != null){
+                     insertKey.bindLong(1, ids[i]);
+                     insertKey.bindString(2, key);
+                     insertKey.executeInsert();
+                  }
+            for (DuplicateFinder.Duplicate duplicate : duplicates){
+               insertDuplicate.bindLong(1, duplicate.firstId);
+               insertDuplicate.bindLong(2, duplicate.secondId);
+               insertDuplicate.bindDouble(3, duplicate.score);
+               insertDuplicate.executeInsert();
+            }
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+      }
+      finally{
+         insertKey.close();
+         insertDuplicate.close();
+         releaseDatabase();
+         Metrics.stop("db.saveDuplicateScan", start, ids.length);
+      }
+   }
+   
+   // the stored duplicates the user hasn't dismissed, most alike first, at most limit of them (with both names for the review list)
+   public List<DuplicateFinder.Duplicate> getDuplicates(int limit){
+      List<DuplicateFinder.Duplicate> duplicates = new ArrayList<DuplicateFinder.Duplicate>();
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         Cursor cursor = db.rawQuery(
+            "SELECT d.first_id, d.second_id, d.score, a.name, b.name FROM duplicates d " + 
+            "JOIN contacts a ON a._id = d.first_id JOIN contacts b ON b._id = d.second_id " + 
+            "WHERE d.dismissed = 0 ORDER BY d.score DESC LIMIT ?", new String[] {String.valueOf(limit)});
+         try{
+            while (cursor.moveToNext()){
+               DuplicateFinder.Duplicate duplicate = new DuplicateFinder.Duplicate(cursor.getLong(0), cursor.getLong(1), cursor.getDouble(2));
+               duplicate.firstName = cursor.getString(3);
+               duplicate.secondName = cursor.getString(4);
+               duplicates.add(duplicate);
+            }
+         }
+         finally{
+            cursor.close();
+         }
+      }
+      finally{
+         releaseDatabase();
+      }
+      return duplicates;
+   }
+   
+   // the user says the pair are different people, it isn't offered again (even by later scans)
+   public void dismissDuplicate(DuplicateFinder.Duplicate duplicate){
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         db.execSQL("UPDATE duplicates SET dismissed = 1 WHERE first_id = ? AND second_id = ?", 
+            new Object[] {duplicate.firstId, duplicate.secondId});
+      }
+      finally{
+         releaseDatabase();
+      }
+   }
+   
+   // merges contact removeId into keepId: keepId gets removeId's email, phone, street and city where it has none of its own
+   // and is a favourite if either was, then removeId is deleted and keepId re-checked for further duplicates
+   public void mergeContacts(long keepId, long removeId){
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         db.beginTransactionNonExclusive();
+         try{
+            db.execSQL(MERGE_SQL, new Object[] {removeId, removeId, removeId, removeId, removeId, keepId});
+            db.execSQL("INSERT OR IGNORE INTO contact_tags (tag_id, contact_id) SELECT tag_id, ? FROM contact_tags WHERE contact_id = ?", 
+               new Object[] {keepId, removeId}); // keepId gets removeId's tags too
+            db.execSQL(DELETE_SQL, new Object[] {removeId});
+            
+            Cursor cursor = db.rawQuery("SELECT name, email, phone FROM contacts WHERE _id = ?", new String[] {String.valueOf(keepId)});
+            try{
+               if (cursor.moveToFirst())
+                  recheckDuplicates(db, keepId, cursor.getString(0), cursor.getString(1), cursor.getString(2));
+            }
+            finally{
+               cursor.close();
+            }
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+            TagIndex.invalidate();
+            ContactCache.contactsChanged();
+         }
+      }
+      finally{
+         releaseDatabase();
+      }
+   }
+   
+   private static final String MERGE_SQL = 
+      "UPDATE contacts SET " + 
+      "email = coalesce(nullif(email, ''), (SELECT email FROM contacts WHERE _id = ?)), " + 
+      "phone = coalesce(nullif(phone, ''), (SELECT phone FROM contacts WHERE _id = ?)), " + 
+      "street = coalesce(nullif(street, ''), (SELECT street FROM contacts WHERE _id = ?)), " + 
+      "city = coalesce(nullif(city, ''), (SELECT city FROM contacts WHERE _id = ?)), " + 
+      "favourite = max(favourite, (SELECT favourite FROM contacts WHERE _id = ?)), " + 
+      "dirty = 1, updated_at = " + NOW_MILLIS_SQL + " WHERE _id = ?";
+
+   // binds the contact columns to parameters 1 to 7 of INSERT_SQL or UPDATE_SQL (same column order in both)
+   // (package private for SyncEngine, whose statements for changes from the server start with the same 7)
+   static void bindContact(SQLiteStatement statement, String name, String email, boolean favourite, String phone, String state, String city){
+      bindStringOrNull(statement, 1, name);
+      bindStringOrNull(statement, 2, email);
+      statement.bindLong(3, favourite ? 1 : 0); 	// favourite column is INTEGER 1/0 (since database version 2)
+      bindStringOrNull(statement, 4, phone);
+      bindStringOrNull(statement, 5, state);
+      bindStringOrNull(statement, 6, city);
+      bindStringOrNull(statement, 7, phoneKey(phone)); // derived from phone on every write (since database version 7)
+   }
+
+   // bindString(...) rejects null so a missing value has to be bound as SQL NULL explicitly (ContentValues did this for us)
+   private static void bindStringOrNull(SQLiteStatement statement, int index, String value){
+      if (value == null)
+         statement.bindNull(index);
+      else
+         statement.bindString(index, value);
    }
 
    // viewing all or just one contact require data to be returned (via a cursor) to the call point for display
    // return a Cursor with all contact information in the database
    public Cursor getAllContacts(){
+      long start = Metrics.start();
 	  // parameters: table, columns in a String array, ... other SQL SELECT statement stuff 
-      return database.query("contacts", new String[] {"_id", "name","favourite"}, null, null, null, null, "favourite");
+      return measured("db.getAllContacts", "SELECT _id, name, favourite FROM contacts ORDER BY " + LIST_ORDER, start, 
+         database.query("contacts", LIST_COLUMNS, null, null, null, null, LIST_ORDER));
+   }
+
+   // return a Cursor with at most limit contacts (same columns and order as getAllContacts()) that come after the given sort key
+   // keyset paging: the query seeks straight to (afterFavourite, afterName, afterId) in contacts_list_index instead of skipping rows with OFFSET, 
+   // so every page costs the same - pass afterId = 0 for the first page, otherwise the values of the last row of the previous page
+   public Cursor getContactsPage(int afterFavourite, String afterName, long afterId, int limit){
+      long start = Metrics.start();
+      if (afterId == 0)
+         return measured("db.getContactsPage", "SELECT _id, name, favourite FROM contacts ORDER BY " + LIST_ORDER + " LIMIT ?", start, 
+            database.query("contacts", LIST_COLUMNS, null, null, null, null, LIST_ORDER, String.valueOf(limit)));
+      
+      // (favourite, name, _id) > (afterFavourite, afterName, afterId) spelled out (this SQLite has no row values)
+      // the leading favourite >= ? gives the index a starting point, the _id tie breaker makes the order total so no row is skipped or repeated
+      String favourite = String.valueOf(afterFavourite);
+      if (afterName == null) // NULL names sort first and can't be bound (or compared with >), every named row comes after it
+         return measured("db.getContactsPage", "SELECT _id, name, favourite FROM contacts WHERE " + PAGE_AFTER_NULL_WHERE + " ORDER BY " + LIST_ORDER + " LIMIT ?", start, 
+            database.query("contacts", LIST_COLUMNS, PAGE_AFTER_NULL_WHERE, 
+               new String[] {favourite, favourite, String.valueOf(afterId)}, 
+               null, null, LIST_ORDER, String.valueOf(limit)));
+      return measured("db.getContactsPage", "SELECT _id, name, favourite FROM contacts WHERE " + PAGE_WHERE + " ORDER BY " + LIST_ORDER + " LIMIT ?", start, 
+         database.query("contacts", LIST_COLUMNS, PAGE_WHERE, 
+            new String[] {favourite, favourite, afterName, afterName, String.valueOf(afterId)}, 
+            null, null, LIST_ORDER, String.valueOf(limit)));
+   }
+   
+   // (package private for QueryPlanTest, which checks both are answered from contacts_list_index)
+   static final String PAGE_WHERE = "favourite >= ? AND (favourite > ? OR name > ? OR (name = ? AND _id > ?))";
+   static final String PAGE_AFTER_NULL_WHERE = "favourite >= ? AND (favourite > ? OR name IS NOT NULL OR (name IS NULL AND _id > ?))";
+
+   // return a Cursor (LIST_COLUMNS) with at most limit contacts matching every word of query as a prefix in name, email, phone, street or city
+   // e.g. "jo sm" finds John Smith - contacts matching in the name come first, then the rest, each group in list order
+   // contacts_fts answers this without scanning the table (a LIKE '%jo%' would read every row)
+   public Cursor searchContacts(String query, int limit){
+      return searchContacts(query, limit, null);
+   }
+
+   // as searchContacts(query, limit) but calling cancel() on cancellationSignal (from any thread) abandons the search part way through,
+   // the call then throws an OperationCanceledException (see ContactSearchPipeline, which cancels searches a newer keystroke has made stale)
+   public Cursor searchContacts(String query, int limit, CancellationSignal cancellationSignal){
+      long start = Metrics.start();
+      MatrixCursor results = new MatrixCursor(LIST_COLUMNS); // small (at most limit rows) so it is filled in memory
+      String anyColumn = toMatchExpression(query, "");
+      if (anyColumn == null)
+         return results; // nothing searchable in query (e.g. only punctuation)
+      
+      // best matches: every word found in the name
+      HashSet<Long> found = new HashSet<Long>();
+      addMatches(results, found, toMatchExpression(query, "name:"), limit, cancellationSignal);
+      // then any other contact with every word somewhere in the indexed columns
+      if (found.size() < limit)
+         addMatches(results, found, anyColumn, limit, cancellationSignal);
+      
+      Metrics.stopQuery("db.searchContacts", start, SEARCH_SQL, results.getCount());
+      return results;
+   }
+
+   private static final String SEARCH_SQL = 
+      "SELECT c._id, c.name, c.favourite FROM contacts c JOIN " +
+      "(SELECT docid FROM contacts_fts WHERE contacts_fts MATCH ? LIMIT ?) m ON c._id = m.docid " +
+      "ORDER BY " + LIST_ORDER;
+   
+   // adds contacts matching the FTS expression that are not already in found, until results has limit rows
+   private void addMatches(MatrixCursor results, HashSet<Long> found, String match, int limit, CancellationSignal cancellationSignal){
+      // the MATCH and LIMIT are applied in the index, only the surviving docids are looked up in contacts
+      // limit + found.size() since some of them may already be in results
+      Cursor cursor = database.rawQuery(SEARCH_SQL, new String[] {match, String.valueOf(limit + found.size())}, cancellationSignal);
+      
+      try{
+         while (found.size() < limit && cursor.moveToNext())
+            if (found.add(cursor.getLong(0)))
+               results.addRow(new Object[] {cursor.getLong(0), cursor.getString(1), cursor.getInt(2)});
+      }
+      finally{
+         cursor.close();
+      }
+   }
+
+   // turns free text into an FTS query where each word must appear as a prefix, e.g. ("Jo Sm", "name:") gives "name:jo* name:sm*"
+   // words are split on anything the FTS tokenizer would split on so users can't inject FTS operators, null if there are no words
+   private static String toMatchExpression(String query, String columnFilter){
+      StringBuilder match = new StringBuilder();
+      
+      for (String word : query.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+"))
+         if (word.length() > 0)
+            match.append(match.length() == 0 ? "" : " ").append(columnFilter).append(word).append('*');
+      
+      return (match.length() == 0) ? null : match.toString();
+   }
+
+   // return a Cursor over every contact in _id order with the columns name, email, phone, street, city, favourite
+   // (the order of ContactCsvReader.HEADER), for ContactExporter
+   // one query instead of getAllContacts() plus a getOneContact(...) per row: _id is the table's own order so SQLite just walks the table
+   // (no index lookups, no sort) and as the Cursor moves forward its CursorWindow is refilled, so memory use doesn't grow with the table
+   public Cursor getContactsForExport(CancellationSignal cancellationSignal){
+      return database.rawQuery("SELECT name, email, phone, street, city, favourite FROM contacts ORDER BY _id", null, cancellationSignal);
+   }
+
+   // as getContactsForExport(...) but only the contacts with ids[from] to ids[from + count - 1], count at most MAX_IDS_PER_STATEMENT
+   // (ContactExporter reads a selection of any size a chunk at a time)
+   public Cursor getContactsForExport(long[] ids, int from, int count, CancellationSignal cancellationSignal){
+      String[] args = new String[count];
+      for (int i = 0; i < count; i++)
+         args[i] = String.valueOf(ids[from + i]);
+      return database.rawQuery("SELECT name, email, phone, street, city, favourite FROM contacts WHERE _id IN " + placeholders(count) +
+         " ORDER BY _id", args, cancellationSignal);
+   }
+   
+   // return a Cursor over every contact with the columns _id, name, email, phone for DuplicateFinder.scan(...) (in table order, no sort)
+   public Cursor getContactsForDuplicateScan(CancellationSignal cancellationSignal){
+      return database.rawQuery("SELECT _id, name, email, phone FROM contacts", null, cancellationSignal);
+   }
+
+   // the contact whose phone number is rawNumber (as dialled or received, in any format) or null if there isn't one, e.g. to
+   // show who is calling: the same number with or without its country code or trunk prefix (+61 3 9905 1234, 03 9905 1234,
+   // (03) 9905-1234) matches, as does a number stored without its area code (9905 1234), the closest match wins
+   // one seek into contacts_phone_key_index plus a few candidate rows, then ContactCache - it doesn't need open() and 
+   // the cost doesn't grow with the table
+   public Contact findByPhone(String rawNumber){
+      long start = Metrics.start();
+      long id;
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         id = findIdByPhone(db, phoneKey(rawNumber));
+      }
+      finally{
+         releaseDatabase();
+      }
+      Metrics.stopQuery("db.findByPhone", start, PHONE_RANGE_SQL, (id == 0) ? 0 : 1);
+      return (id == 0) ? null : getContact(id);
+   }
+   
+   // the phone_key of a number: its digits in reverse order ("+61 3 9905-1234" is "43215099316"), null if it has none
+   // reversed so that two numbers ending in the same digits share a key PREFIX, which the index can seek to (see findIdByPhone)
+   // (package private for DatabaseBenchmarkTest, which fills its scratch table the same way)
+   static String phoneKey(String phone){
+      if (phone == null)
+         return null;
+      StringBuilder key = new StringBuilder(phone.length());
+      for (int i = phone.length() - 1; i >= 0; i--){
+         char c = phone.charAt(i);
+         if (c >= '0' && c <= '9')
+            key.append(c);
+      }
+      return (key.length() == 0) ? null : key.toString();
+   }
+   
+   // numbers are matched on at least this many trailing digits (as Android's own PhoneNumberUtils does), shorter numbers 
+   // (emergency and service numbers, extensions) only match exactly
+   static final int PHONE_MIN_MATCH = 7;
+   private static final String PHONE_EXACT_SQL = "SELECT _id, phone_key FROM contacts WHERE phone_key = ? LIMIT 16";
+   private static final String PHONE_RANGE_SQL = "SELECT _id, phone_key FROM contacts WHERE phone_key >= ? AND phone_key < ? LIMIT 16";
+   
+   // _id of the contact whose phone_key best matches key (see phoneMatch) or 0 if none does
+   // (package private and static for DatabaseBenchmarkTest, which times it against its scratch database)
+   static long findIdByPhone(SQLiteDatabase db, String key){
+      if (key == null)
+         return 0;
+      
+      Cursor cursor;
+      if (key.length() < PHONE_MIN_MATCH)
+         cursor = db.rawQuery(PHONE_EXACT_SQL, new String[] {key});
+      else{
+         // every stored key starting with the last PHONE_MIN_MATCH digits, ':' is the character after '9' so this is a range seek
+         String prefix = key.substring(0, PHONE_MIN_MATCH);
+         cursor = db.rawQuery(PHONE_RANGE_SQL, new String[] {prefix, prefix + ':'});
+      }
+      
+      long bestId = 0;
+      int bestMatch = 0;
+      try{
+         while (cursor.moveToNext()){
+            int match = phoneMatch(cursor.getString(1), key);
+            if (match > bestMatch){
+               bestMatch = match;
+               bestId = cursor.getLong(0);
+            }
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      return bestId;
+   }
+   
+   // how well two phone_keys match, 0 if they are different numbers, higher is closer (an exact match is highest)
+   // beyond their common trailing digits what is left of each number must be nothing (one number is the end of the other) or a trunk 
+   // prefix "0" against a country code: 03 9905 1234 matches +61 3 9905 1234 but not 02 9905 1234
+   private static int phoneMatch(String storedKey, String key){
+      int common = 0;
+      while (common < storedKey.length() && common < key.length() && storedKey.charAt(common) == key.charAt(common))
+         common++;
+      
+      if (common == storedKey.length() && common == key.length())
+         return Integer.MAX_VALUE; // the same digits
+      if (common == storedKey.length() || common == key.length())
+         return (common >= PHONE_MIN_MATCH) ? common : 0;
+      
+      String storedPrefix = storedKey.substring(common); // (reversed, so a leading 0 is the last character)
+      String prefix = key.substring(common);
+      if ((storedPrefix.equals("0") && isCountryCode(prefix)) || (prefix.equals("0") && isCountryCode(storedPrefix)))
+         return common;
+      return 0;
+   }
+   
+   // 1 to 3 digits not starting with 0 (reversedDigits is reversed so the first digit is the last character)
+   private static boolean isCountryCode(String reversedDigits){
+      return reversedDigits.length() <= 3 && reversedDigits.charAt(reversedDigits.length() - 1) != '0';
+   }
+
+   // get the contact with the given id or null if there isn't one, from ContactCache if it has been read (or written) recently
+   // unlike the Cursor methods this doesn't need open() (it acquires the shared database itself on a cache miss)
+   public Contact getContact(long id){
+      Contact contact = ContactCache.get(id);
+      if (contact != null)
+         return contact;
+      
+      long start = Metrics.start(); // misses only, a hit costs next to nothing
+      long version = ContactCache.getDataVersion(); // read before the query, see ContactCache.putIfUnchanged
+      SQLiteDatabase db = acquireDatabase();
+      try{
+         Cursor cursor = db.query("contacts", null, "_id = ?", new String[] {String.valueOf(id)}, null, null, null);
+         try{
+            if (!cursor.moveToFirst())
+               return null; // deleted
+            
+            contact = new Contact(id, 
+               cursor.getString(cursor.getColumnIndex("name")), 
+               cursor.getString(cursor.getColumnIndex("email")), 
+               cursor.getInt(cursor.getColumnIndex("favourite")) == 1, 
+               cursor.getString(cursor.getColumnIndex("phone")), 
+               cursor.getString(cursor.getColumnIndex("street")), 
+               cursor.getString(cursor.getColumnIndex("city")));
+         }
+         finally{
+            cursor.close();
+         }
+      }
+      finally{
+         releaseDatabase();
+         Metrics.stopQuery("db.getContact", start, "SELECT * FROM contacts WHERE _id = ?", (contact == null) ? 0 : 1);
+      }
+      
+      ContactCache.putIfUnchanged(contact, version);
+      return contact;
    }
 
    // get a Cursor containing all information about the contact specified by the given id
    public Cursor getOneContact(long id){
 	  // parameters: table, null = return all columns, where clause without where,  ... other SQL SELECT statement stuff 
-      return database.query("contacts", null, "_id=" + id, null, null, null,null);
+      // the id is passed as a where argument so the SQL text is identical for every contact and SQLite's per-connection statement cache gets a hit
+      long start = Metrics.start();
+      return measured("db.getOneContact", "SELECT * FROM contacts WHERE _id = ?", start, 
+         database.query("contacts", null, "_id = ?", new String[] {String.valueOf(id)}, null, null, null));
+   }
+
+
+   // columns other Apps can read (and use in a selection or sort order) through ContactsProvider, phone_key etc. are internal
+   static final String[] PUBLIC_COLUMNS = {"_id", "name", "email", "phone", "street", "city", "favourite"};
+   private static final HashMap<String, String> PUBLIC_COLUMN_MAP = new HashMap<String, String>();
+   static{
+      for (String column : PUBLIC_COLUMNS)
+         PUBLIC_COLUMN_MAP.put(column, column);
+   }
+   
+   // the contacts matching selection for ContactsProvider.query(...), only the one with the given id unless id is -1
+   // projection null means all of PUBLIC_COLUMNS, sortOrder null means LIST_ORDER, other columns are rejected (strict query builder)
+   public Cursor queryContacts(long id, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+      long start = Metrics.start();
+      SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+      builder.setTables("contacts");
+      builder.setProjectionMap(PUBLIC_COLUMN_MAP);
+      builder.setStrict(true);
+      if (id != -1)
+         builder.appendWhere("_id = " + id); // (a long, nothing to escape)
+      Cursor cursor = builder.query(database, (projection == null) ? PUBLIC_COLUMNS : projection, selection, selectionArgs, null, null, 
+         (sortOrder == null) ? LIST_ORDER : sortOrder);
+      if (start != 0) // the SQL is only put together for the report while Metrics is recording (the caller's selection varies)
+         Metrics.stopQuery("db.queryContacts", start, "SELECT ... FROM contacts" + queryWhere(id, selection), cursor.getCount());
+      return cursor;
+   }
+   
+   // the WHERE clause of a queryContacts(...) query as the report shows it, none if there is no condition
+   private static String queryWhere(long id, String selection){
+      if (id == -1)
+         return (selection == null) ? "" : " WHERE " + selection;
+      return " WHERE _id = " + id + ((selection == null) ? "" : " AND (" + selection + ")");
+   }
+
+   // sequence number of the most recent change to the contacts table (0 if there never was one), it only ever increases
+   // every insert, update and delete however it is made (single, bulk, import) gets the next number, see upgradeToVersion4
+   public long getChangeSequence(){
+      Cursor cursor = database.rawQuery("SELECT seq FROM sqlite_sequence WHERE name = 'contact_changes'", null);
+      try{
+         return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+      }
+      finally{
+         cursor.close();
+      }
+   }
+   
+   // return a Cursor with one row per contact changed by the changes numbered afterSequence + 1 up to upToSequence 
+   // (afterSequence is the getChangeSequence() value the caller's copy of the list reflects, upToSequence a later one)
+   // or null if contact_changes no longer goes back that far, the caller then has to reload everything
+   // columns: _id, listed (0 if the contact didn't exist at afterSequence, i.e. its first change since was the insert), 
+   // old_favourite and old_name (its list position at afterSequence), still_exists (0 if it has been deleted since), favourite and name (as now)
+   // the work depends on the number of changes, not on the number of contacts (seq is the rowid and contacts is looked up by _id)
+   public Cursor getChangesSince(long afterSequence, long upToSequence){
+      long start = Metrics.start();
+      Cursor oldest = database.rawQuery("SELECT min(seq) FROM contact_changes", null);
+      try{
+         // change numbers have no gaps so if afterSequence + 1 has been pruned the log can't describe everything since then
+         if (oldest.moveToFirst() && !oldest.isNull(0) && oldest.getLong(0) > afterSequence + 1)
+            return null;
+      }
+      finally{
+         oldest.close();
+      }
+      
+      // the first change since afterSequence has each contact's old list position, its current row (if any) the new one
+      return measured("db.getChangesSince", CHANGES_SQL, start, 
+         database.rawQuery(CHANGES_SQL, new String[] {String.valueOf(afterSequence), String.valueOf(upToSequence)}));
+   }
+   
+   private static final String CHANGES_SQL = 
+      "SELECT ch.contact_id AS _id, ch.operation <> 'I' AS listed, ch.old_favourite, ch.old_name, " + 
+      "c._id IS NOT NULL AS still_exists, c.favourite, c.name FROM contact_changes ch JOIN " + 
+      "(SELECT min(seq) AS first_seq FROM contact_changes WHERE seq > ? AND seq <= ? GROUP BY contact_id) f ON ch.seq = f.first_seq " + 
+      "LEFT JOIN contacts c ON c._id = ch.contact_id";
+   
+   // records a query started at start (see Metrics) with the number of rows it returned and passes the cursor through
+   // a Cursor only runs its query when first moved, so while metrics are enabled getCount() makes it happen now (filling its first 
+   // CursorWindow) and the time measured is the real cost of the query, the caller would have paid it on its first moveToNext() anyway
+   private static Cursor measured(String name, String sql, long start, Cursor cursor){
+      if (start != 0)
+         Metrics.stopQuery(name, start, sql, cursor.getCount());
+      return cursor;
+   }
+
+   
+   // the shared database for SyncEngine, which applies the server's changes with its own statements (open() first)
+   SQLiteDatabase getDatabase(){
+      return database;
+   }
+   
+   // returns the EXPLAIN QUERY PLAN detail lines for sql, one per line (used by QueryPlanTest, the parameters of sql may be left unbound)
+   String explainQueryPlan(String sql){
+      StringBuilder plan = new StringBuilder();
+      Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+      
+      try{
+         // rows are (selectid, order, from, detail), the detail column is the readable part
+         while (cursor.moveToNext())
+            plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+      }
+      finally{
+         cursor.close();
+      }
+      return plan.toString();
    }
 
    
-   private class DatabaseOpenHelper extends SQLiteOpenHelper{
+   // static since a single helper is shared by all DatabaseConnectors (a non-static inner class would tie it to the first connector)
+   // package private so DatabaseBenchmarkTest can create a scratch database with exactly the same schema
+   static class DatabaseOpenHelper extends SQLiteOpenHelper{
 
       public DatabaseOpenHelper(Context context, String name, CursorFactory factory, int version){
     	 // if a db schema version higher than the one on the device is supplied onUpgrade will run to upgrade the schema appropriately (which we must code of course)
     	 // so new versions of the App using new schema versions of the db will be able to update the db schema and will function correctly (without data loss) 
-         super(context, name, factory, version); // parameters: from constructor call (context, DATABASE_NAME, null, 1)
-         										 // null = use the default cursor factory, 1 = version 1 of the database wrt structure (schema) NOT data
+         super(context, name, factory, version); // parameters: from constructor call (context, DATABASE_NAME, null, DATABASE_VERSION)
+         										 // null = use the default cursor factory, version = version of the database wrt structure (schema) NOT data
+         
+         // write-ahead logging: readers (list/detail queries) no longer block behind a writer (save/delete) on the shared connection
+         setWriteAheadLoggingEnabled(true);
       }
 
       // creates the contacts table when the database is created
@@ -112,6 +1216,10 @@ public class DatabaseConnector{
             "street TEXT, city TEXT);";
                   
          db.execSQL(createQuery);
+         
+         // a new database starts as version 1 and goes through the same upgrade steps as an existing one
+         // so there is only one definition of each schema change (in onUpgrade)
+         onUpgrade(db, 1, DATABASE_VERSION);
       }
 
       @Override //required
@@ -119,8 +1227,220 @@ public class DatabaseConnector{
           //code here will update the db schema if version number supplied in constructor
           //is greater than that currently stored in the db (which will also be updated)
           //no data loss during schema change except that associated with deleted schema elements
+          //SQLiteOpenHelper runs onCreate/onUpgrade inside a transaction so a failed step leaves the db at oldVersion
+         
+          // each step takes the schema from the previous version to the next one, a device may be several versions behind
+          if (oldVersion < 2)
+             upgradeToVersion2(db);
+          if (oldVersion < 3)
+             upgradeToVersion3(db);
+          if (oldVersion < 4)
+             upgradeToVersion4(db);
+          if (oldVersion < 5)
+             upgradeToVersion5(db);
+          if (oldVersion < 6)
+             upgradeToVersion6(db);
+          if (oldVersion < 7)
+             upgradeToVersion7(db);
+          if (oldVersion < 8)
+             upgradeToVersion8(db);
+          if (oldVersion < 9)
+             upgradeToVersion9(db);
       }
       
+      // version 2: favourite becomes INTEGER 1/0 (it was the TEXT "*" or " " written by AddEditContact) and indexes are added
+      private void upgradeToVersion2(SQLiteDatabase db){
+         // SQLite can't change a column's type so the table is rebuilt, keeping every _id
+         db.execSQL(
+            "CREATE TABLE contacts_v2" +
+            "(_id integer primary key autoincrement," +
+            "name TEXT, email TEXT, favourite INTEGER NOT NULL DEFAULT 0, phone TEXT," +
+            "street TEXT, city TEXT);");
+         db.execSQL(
+            "INSERT INTO contacts_v2 (_id, name, email, favourite, phone, street, city) " +
+            "SELECT _id, name, email, CASE WHEN favourite = '*' THEN 1 ELSE 0 END, phone, street, city FROM contacts;");
+         db.execSQL("DROP TABLE contacts;");
+         db.execSQL("ALTER TABLE contacts_v2 RENAME TO contacts;");
+         
+         // covers the list query (LIST_COLUMNS in LIST_ORDER) - no table lookups and no temporary sort b-tree
+         db.execSQL("CREATE INDEX contacts_list_index ON contacts (favourite, name, _id);");
+         // lookups by name, phone and email
+         db.execSQL("CREATE INDEX contacts_name_index ON contacts (name);");
+         db.execSQL("CREATE INDEX contacts_phone_index ON contacts (phone);");
+         db.execSQL("CREATE INDEX contacts_email_index ON contacts (email);");
+      }
+      
+      
+      // version 3: a full text index over the searchable columns (see searchContacts)
+      private void upgradeToVersion3(SQLiteDatabase db){
+         // an "external content" FTS4 table: it only stores the index, the text itself stays in contacts (docid = contacts._id)
+         db.execSQL("CREATE VIRTUAL TABLE contacts_fts USING fts4(content=\"contacts\", name, email, phone, street, city);");
+         
+         // the triggers keep the index in step with every insert/update/delete however it is made
+         // old values are removed BEFORE the row changes (FTS needs the old text to find the index entries) and new ones added AFTER
+         db.execSQL("CREATE TRIGGER contacts_fts_before_update BEFORE UPDATE ON contacts BEGIN " +
+            "DELETE FROM contacts_fts WHERE docid = old._id; END;");
+         db.execSQL("CREATE TRIGGER contacts_fts_before_delete BEFORE DELETE ON contacts BEGIN " +
+            "DELETE FROM contacts_fts WHERE docid = old._id; END;");
+         db.execSQL("CREATE TRIGGER contacts_fts_after_update AFTER UPDATE ON contacts BEGIN " +
+            "INSERT INTO contacts_fts (docid, name, email, phone, street, city) " +
+            "VALUES (new._id, new.name, new.email, new.phone, new.street, new.city); END;");
+         db.execSQL("CREATE TRIGGER contacts_fts_after_insert AFTER INSERT ON contacts BEGIN " +
+            "INSERT INTO contacts_fts (docid, name, email, phone, street, city) " +
+            "VALUES (new._id, new.name, new.email, new.phone, new.street, new.city); END;");
+         
+         // index the contacts that are already there
+         db.execSQL("INSERT INTO contacts_fts (contacts_fts) VALUES ('rebuild');");
+      }
+      
+      
+      // version 4: a log of changes to contacts so a list can be brought up to date by applying only what changed (see getChangesSince)
+      private void upgradeToVersion4(SQLiteDatabase db){
+         // AUTOINCREMENT: seq is never reused, even after old changes have been pruned, so it is a reliable "as of" number
+         // the old values are the contact's list position before the change (what a list showing the old data must remove)
+         db.execSQL(
+            "CREATE TABLE contact_changes" +
+            "(seq INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "contact_id INTEGER NOT NULL, operation TEXT NOT NULL, old_favourite INTEGER, old_name TEXT);");
+         
+         // like the contacts_fts triggers these catch every write whichever DatabaseConnector method (or upgrade step) makes it
+         db.execSQL("CREATE TRIGGER contact_changes_after_insert AFTER INSERT ON contacts BEGIN " +
+            "INSERT INTO contact_changes (contact_id, operation) VALUES (new._id, 'I'); END;");
+         db.execSQL("CREATE TRIGGER contact_changes_after_update AFTER UPDATE ON contacts BEGIN " +
+            "INSERT INTO contact_changes (contact_id, operation, old_favourite, old_name) VALUES (old._id, 'U', old.favourite, old.name); END;");
+         db.execSQL("CREATE TRIGGER contact_changes_after_delete AFTER DELETE ON contacts BEGIN " +
+            "INSERT INTO contact_changes (contact_id, operation, old_favourite, old_name) VALUES (old._id, 'D', old.favourite, old.name); END;");
+         
+         // keeps the log bounded: every 1000th change drops everything older than the last CHANGE_LOG_SIZE changes
+         db.execSQL("CREATE TRIGGER contact_changes_prune AFTER INSERT ON contact_changes WHEN new.seq % 1000 = 0 BEGIN " +
+            "DELETE FROM contact_changes WHERE seq <= new.seq - " + CHANGE_LOG_SIZE + "; END;");
+      }
+      
+      
+      // version 5: progress of imports, so an interrupted one can carry on where it stopped (see commitImportBatch)
+      private void upgradeToVersion5(SQLiteDatabase db){
+         // one row per file being imported, identified by path plus length and modification time (a changed file starts again)
+         db.execSQL(
+            "CREATE TABLE imports" +
+            "(source TEXT PRIMARY KEY, length INTEGER NOT NULL, modified INTEGER NOT NULL," +
+            "committed_offset INTEGER NOT NULL, imported INTEGER NOT NULL, rejected INTEGER NOT NULL);");
+      }
+      
+      
+      // version 6: blocking keys and probable duplicates found by DuplicateFinder (both empty until the first scan)
+      private void upgradeToVersion6(SQLiteDatabase db){
+         // the keys are computed in Java (Soundex etc.) so DatabaseConnector and DuplicateFinder write them, not triggers
+         db.execSQL("CREATE TABLE dedup_keys (contact_id INTEGER NOT NULL, key TEXT NOT NULL);");
+         db.execSQL("CREATE INDEX dedup_keys_key_index ON dedup_keys (key, contact_id);"); 	// the contacts sharing a key
+         db.execSQL("CREATE INDEX dedup_keys_contact_index ON dedup_keys (contact_id);"); 		// a contact's keys, to replace them
+         
+         // one row per pair (first_id < second_id), a dismissed pair is kept so it isn't offered again
+         db.execSQL(
+            "CREATE TABLE duplicates" +
+            "(first_id INTEGER NOT NULL, second_id INTEGER NOT NULL, score REAL NOT NULL, dismissed INTEGER NOT NULL DEFAULT 0," +
+            "PRIMARY KEY (first_id, second_id));");
+         db.execSQL("CREATE INDEX duplicates_second_index ON duplicates (second_id);");
+         
+         // a deleted contact (however it is deleted) takes its keys and pairs with it
+         db.execSQL("CREATE TRIGGER dedup_after_delete AFTER DELETE ON contacts BEGIN " +
+            "DELETE FROM dedup_keys WHERE contact_id = old._id; " +
+            "DELETE FROM duplicates WHERE first_id = old._id OR second_id = old._id; END;");
+      }
+      
+      
+      // version 7: phone_key, the digits of phone reversed, so a number can be looked up by its trailing digits (see findByPhone)
+      private void upgradeToVersion7(SQLiteDatabase db){
+         db.execSQL("ALTER TABLE contacts ADD COLUMN phone_key TEXT;");
+         
+         // the full text index only needs updating when an indexed column changes, not for phone_key (or anything added later)
+         // so the backfill below, which rewrites every row, doesn't re-index every contact
+         db.execSQL("DROP TRIGGER contacts_fts_before_update;");
+         db.execSQL("DROP TRIGGER contacts_fts_after_update;");
+         db.execSQL("CREATE TRIGGER contacts_fts_before_update BEFORE UPDATE OF name, email, phone, street, city ON contacts BEGIN " +
+            "DELETE FROM contacts_fts WHERE docid = old._id; END;");
+         db.execSQL("CREATE TRIGGER contacts_fts_after_update AFTER UPDATE OF name, email, phone, street, city ON contacts BEGIN " +
+            "INSERT INTO contacts_fts (docid, name, email, phone, street, city) " +
+            "VALUES (new._id, new.name, new.email, new.phone, new.street, new.city); END;");
+         
+         // likewise the change log, which would otherwise log the backfill as a change to every contact (and every list would
+         // reload in full after the upgrade)
+         narrowChangeLogUpdateTrigger(db);
+         
+         // the key is computed in Java (SQLite has no function to reverse a string), DatabaseConnector sets it on every write from now on
+         SQLiteStatement update = db.compileStatement("UPDATE contacts SET phone_key = ? WHERE _id = ?");
+         Cursor cursor = db.rawQuery("SELECT _id, phone FROM contacts WHERE phone IS NOT NULL AND phone <> ''", null);
+         try{
+            while (cursor.moveToNext()){
+               String key = phoneKey(cursor.getString(1));
+               if (key != null){
+                  update.bindString(1, key);
+                  update.bindLong(2, cursor.getLong(0));
+                  update.executeUpdateDelete();
+               }
+            }
+         }
+         finally{
+            cursor.close();
+            update.close();
+         }
+         
+         // created after the backfill, building an index in one go is quicker than updating it row by row
+         db.execSQL("CREATE INDEX contacts_phone_key_index ON contacts (phone_key);");
+      }
+      
+      
+      // the change log is only read for list positions, so only a write to name or favourite is logged as an update
+      // (a column written on its own, e.g. phone_key or the sync bookkeeping, isn't)
+      private void narrowChangeLogUpdateTrigger(SQLiteDatabase db){
+         db.execSQL("DROP TRIGGER IF EXISTS contact_changes_after_update;");
+         db.execSQL("CREATE TRIGGER contact_changes_after_update AFTER UPDATE OF name, favourite ON contacts BEGIN " +
+            "INSERT INTO contact_changes (contact_id, operation, old_favourite, old_name) VALUES (old._id, 'U', old.favourite, old.name); END;");
+      }
+      
+      
+      // version 8: what SyncEngine needs to exchange only the changed rows with the server
+      private void upgradeToVersion8(SQLiteDatabase db){
+         // sync_id: the contact's id on every device and the server (_id is only local)
+         // version: the server's version of the row when it was last synced (0 = never), the base a push is checked against
+         // updated_at: when the row was last changed (ms since 1970), used to settle conflicts
+         // dirty: changed locally since it was last synced, every local write sets it (see INSERT_SQL/UPDATE_SQL/MERGE_SQL)
+         db.execSQL("ALTER TABLE contacts ADD COLUMN sync_id TEXT;");
+         db.execSQL("ALTER TABLE contacts ADD COLUMN version INTEGER NOT NULL DEFAULT 0;");
+         db.execSQL("ALTER TABLE contacts ADD COLUMN updated_at INTEGER NOT NULL DEFAULT 0;");
+         db.execSQL("ALTER TABLE contacts ADD COLUMN dirty INTEGER NOT NULL DEFAULT 1;");
+         
+         // the sync bookkeeping (version, dirty) doesn't need logging either, nor does the backfill below
+         // (already the case if version 7 was reached since it narrowed the trigger, not on a device upgraded to 7 before that)
+         narrowChangeLogUpdateTrigger(db);
+         
+         // the existing contacts have never been synced, so they are all new to the server (dirty already defaults to 1)
+         db.execSQL("UPDATE contacts SET sync_id = " + NEW_SYNC_ID_SQL + ", updated_at = " + NOW_MILLIS_SQL + ";");
+         db.execSQL("CREATE UNIQUE INDEX contacts_sync_id_index ON contacts (sync_id);");
+         db.execSQL("CREATE INDEX contacts_dirty_index ON contacts (dirty, _id);"); // the rows to push, in pushing order
+         
+         // tombstones rather than a deleted column in contacts, so no list, search or export query has to leave deleted rows out
+         // a contact the server has never seen (version 0) has nothing to tell it, however it is deleted
+         db.execSQL("CREATE TABLE sync_tombstones (sync_id TEXT PRIMARY KEY, version INTEGER NOT NULL, deleted_at INTEGER NOT NULL);");
+         db.execSQL("CREATE TRIGGER sync_tombstones_after_delete AFTER DELETE ON contacts WHEN old.version > 0 BEGIN " +
+            "INSERT OR REPLACE INTO sync_tombstones (sync_id, version, deleted_at) VALUES (old.sync_id, old.version, " + NOW_MILLIS_SQL + "); END;");
+         
+         // name/value pairs, e.g. the server's sync token (written in the same transaction as the changes it covers)
+         db.execSQL("CREATE TABLE sync_state (name TEXT PRIMARY KEY, value TEXT);");
+      }
+      
+      // version 9: tags (team, region, customer tier...) and the contacts that have them, TagIndex holds them in memory as bitmaps
+      private void upgradeToVersion9(SQLiteDatabase db){
+         db.execSQL("CREATE TABLE tags (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL UNIQUE COLLATE NOCASE);");
+         
+         // one row per contact and tag, the primary key's index lists a tag's contacts in _id order (how TagIndex reads them),
+         // the other one a contact's tags
+         db.execSQL("CREATE TABLE contact_tags (tag_id INTEGER NOT NULL, contact_id INTEGER NOT NULL, PRIMARY KEY (tag_id, contact_id));");
+         db.execSQL("CREATE INDEX contact_tags_contact_index ON contact_tags (contact_id);");
+         
+         // a deleted contact (however it is deleted) takes its tags with it
+         db.execSQL("CREATE TRIGGER contact_tags_after_delete AFTER DELETE ON contacts BEGIN " +
+            "DELETE FROM contact_tags WHERE contact_id = old._id; END;");
+      }
    }
 }
 
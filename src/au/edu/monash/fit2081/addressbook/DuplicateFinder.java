@@ -0,0 +1,313 @@
+// DuplicateFinder.java
+// Finds contacts that are probably the same person, e.g. after the same file has been imported twice or a contact was re-entered.
+// Comparing every pair of contacts is out of the question at 100k contacts (5 billion pairs) so only contacts that share a
+// "blocking key" are compared: the normalised phone number, the lower case email address or a phonetic key of the name.
+// Each contact has at most 3 keys and a key is shared by a handful of contacts, so the work grows about linearly with the table.
+// Pairs that score at least MIN_SCORE are stored in the duplicates table for the user to review (merge or dismiss).
+//
+// scan(...) checks the whole table on several threads and rebuilds the stored keys, DatabaseConnector re-checks a single contact
+// incrementally (against the stored keys) every time insertContact(...)/updateContact(...) writes one.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+
+public class DuplicateFinder{
+   public static final double MIN_SCORE = 0.85; 		// pairs scoring at least this are offered for review
+   public static final int MAX_BLOCK_SIZE = 1000; 	// a key shared by more contacts than this (a switchboard number, "info@...") is ignored
+   public static final int SCAN_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+   
+   // key prefixes keep the three kinds of key apart in the one dedup_keys column
+   private static final String PHONE_KEY = "p:", EMAIL_KEY = "e:", NAME_KEY = "n:";
+   private static final int PHONE_DIGITS = 9; 		// numbers are compared on their last 9 digits so 04xx xxx xxx and +61 4xx xxx xxx match
+   private static final int MIN_PHONE_DIGITS = 6; 	// fewer digits than this is an extension or a typo, not a useful key
+   
+   // a pair of probable duplicates, firstId < secondId
+   public static class Duplicate{
+      public final long firstId;
+      public final long secondId;
+      public final double score; 		// MIN_SCORE to 1
+      public String firstName; 		// filled in by DatabaseConnector.getDuplicates(...) for the review list
+      public String secondName;
+      
+      public Duplicate(long id, long otherId, double score){
+         this.firstId = Math.min(id, otherId);
+         this.secondId = Math.max(id, otherId);
+         this.score = score;
+      }
+   }
+   
+   private final DatabaseConnector databaseConnector; 	// must be open
+   
+   public DuplicateFinder(DatabaseConnector databaseConnector){
+      this.databaseConnector = databaseConnector;
+   }
+   
+   // checks every contact against every other contact sharing a key on SCAN_THREADS threads, then replaces the stored keys and
+   // the (not dismissed) stored duplicates with what it found and returns the number of pairs found
+   // run it on the repository's writer thread so no contact changes between reading the table and storing the results
+   // calling cancel() on cancellationSignal (any thread) stops the scan with an OperationCanceledException, nothing is stored
+   public int scan(CancellationSignal cancellationSignal) throws InterruptedException{
+      long start = Metrics.start();
+      
+      // one pass over the table into parallel arrays (4 columns of 100k contacts is a few MB)
+      Cursor cursor = databaseConnector.getContactsForDuplicateScan(cancellationSignal);
+      int count = cursor.getCount();
+      final long[] ids = new long[count];
+      final String[] names = new String[count];
+      final String[] emails = new String[count];
+      final String[] phones = new String[count];
+      final String[][] keys = new String[count][];
+      try{
+         for (int i = 0; cursor.moveToNext(); i++){
+            ids[i] = cursor.getLong(0);
+            names[i] = normaliseName(cursor.getString(1));
+            emails[i] = normaliseEmail(cursor.getString(2));
+            phones[i] = normalisePhone(cursor.getString(3));
+            keys[i] = blockingKeys(names[i], emails[i], phones[i]);
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      
+      // blocks: the contacts (positions in the arrays) sharing each key
+      final HashMap<String, int[]> blocks = new HashMap<String, int[]>();
+      for (int i = 0; i < count; i++)
+         for (String key : keys[i])
+            if (key != null){
+               int[] block = blocks.get(key);
+               if (block == null)
+                  blocks.put(key, new int[] {1, i}); 	// [0] is the number of contacts in the rest of the array
+               else{
+                  if (block[0] + 1 == block.length)
+                     blocks.put(key, block = Arrays.copyOf(block, block.length * 2));
+                  block[++block[0]] = i;
+               }
+            }
+      final List<String> blockKeys = new ArrayList<String>();
+      for (String key : blocks.keySet())
+         if (isChecked(blocks.get(key)))
+            blockKeys.add(key);
+      
+      // the threads take the next unchecked block until there are none left, so one big block doesn't hold up the others
+      // (they only read the arrays and blocks, which are complete before any thread starts)
+      final AtomicInteger nextBlock = new AtomicInteger();
+      final CancellationSignal signal = cancellationSignal;
+      ExecutorService threads = Executors.newFixedThreadPool(SCAN_THREADS);
+      List<Future<List<Duplicate>>> results = new ArrayList<Future<List<Duplicate>>>();
+      try{
+         for (int t = 0; t < SCAN_THREADS; t++)
+            results.add(threads.submit(new Callable<List<Duplicate>>(){
+               @Override
+               public List<Duplicate> call(){
+                  List<Duplicate> found = new ArrayList<Duplicate>();
+                  for (int b = nextBlock.getAndIncrement(); b < blockKeys.size(); b = nextBlock.getAndIncrement()){
+                     if (signal != null && signal.isCanceled())
+                        break;
+                     
+                     String key = blockKeys.get(b);
+                     int position = keyPosition(key);
+                     int[] block = blocks.get(key);
+                     for (int x = 1; x <= block[0]; x++)
+                        for (int y = x + 1; y <= block[0]; y++){
+                           int i = block[x], j = block[y];
+                           if (!comparedInEarlierBlock(keys[i], keys[j], position)){
+                              double score = score(names[i], emails[i], phones[i], names[j], emails[j], phones[j]);
+                              if (score >= MIN_SCORE)
+                                 found.add(new Duplicate(ids[i], ids[j], score));
+                           }
+                        }
+                  }
+                  return found;
+               }
+               
+               // a pair sharing more than one key is only compared in the (checked) block of the first key they share
+               private boolean comparedInEarlierBlock(String[] keys1, String[] keys2, int position){
+                  for (int k = 0; k < position; k++)
+                     if (keys1[k] != null && keys1[k].equals(keys2[k]) && isChecked(blocks.get(keys1[k])))
+                        return true;
+                  return false;
+               }
+            }));
+         
+         List<Duplicate> duplicates = new ArrayList<Duplicate>();
+         for (Future<List<Duplicate>> result : results)
+            duplicates.addAll(result.get());
+         if (cancellationSignal != null)
+            cancellationSignal.throwIfCanceled();
+         
+         databaseConnector.saveDuplicateScan(ids, keys, duplicates);
+         Metrics.stop("dedup.scan", start, count);
+         return duplicates.size();
+      }
+      catch (ExecutionException e){
+         throw new RuntimeException(e.getCause()); // a bug, the comparisons don't throw anything checked
+      }
+      finally{
+         threads.shutdownNow();
+      }
+   }
+   
+   
+   // a block with one contact has no pairs and a block of more than MAX_BLOCK_SIZE says nothing about any pair in it
+   private static boolean isChecked(int[] block){
+      return block[0] > 1 && block[0] <= MAX_BLOCK_SIZE;
+   }
+   
+   // position of key in the array blockingKeys(...) returns
+   private static int keyPosition(String key){
+      return key.startsWith(PHONE_KEY) ? 0 : key.startsWith(EMAIL_KEY) ? 1 : 2;
+   }
+   
+   // the blocking keys of a contact whose values have been normalised by the methods below, a missing key is null
+   // (always 3 entries in the same order, phone, email, name, so the keys of two contacts can be compared position by position)
+   static String[] blockingKeys(String normalisedName, String normalisedEmail, String normalisedPhone){
+      String nameKey = phoneticKey(normalisedName);
+      return new String[] {
+         (normalisedPhone == null) ? null : PHONE_KEY + normalisedPhone,
+         (normalisedEmail == null) ? null : EMAIL_KEY + normalisedEmail,
+         (nameKey == null) ? null : NAME_KEY + nameKey};
+   }
+   
+   // how alike two contacts (normalised values) are, 0 to 1: the name similarity counts twice, then the email and the phone once
+   // each if both contacts have one (a different number only counts against a pair when both numbers are known)
+   static double score(String name1, String email1, String phone1, String name2, String email2, String phone2){
+      double total = 2 * similarity(name1, name2);
+      int weight = 2;
+      if (email1 != null && email2 != null){
+         total += email1.equals(email2) ? 1 : 0;
+         weight++;
+      }
+      if (phone1 != null && phone2 != null){
+         total += phone1.equals(phone2) ? 1 : 0;
+         weight++;
+      }
+      return total / weight;
+   }
+   
+   // lower case words in alphabetical order separated by single spaces ("Doe,  Jane" and "jane doe" both become "doe jane"),
+   // "" if there are none
+   static String normaliseName(String name){
+      if (name == null)
+         return "";
+      String[] words = name.toLowerCase(Locale.US).replaceAll("[^\\p{L}\\p{Nd}]+", " ").trim().split(" ");
+      Arrays.sort(words);
+      StringBuilder normalised = new StringBuilder(name.length());
+      for (String word : words)
+         if (word.length() > 0)
+            normalised.append((normalised.length() == 0) ? "" : " ").append(word);
+      return normalised.toString();
+   }
+   
+   // trimmed and lower case (the domain is case insensitive and in practice so is the rest), null if it isn't an address
+   static String normaliseEmail(String email){
+      if (email == null)
+         return null;
+      email = email.trim().toLowerCase(Locale.US);
+      return (email.indexOf('@') > 0) ? email : null;
+   }
+   
+   // the last PHONE_DIGITS digits (punctuation, spaces and the country or trunk prefix dropped), null if there are too few digits
+   static String normalisePhone(String phone){
+      if (phone == null)
+         return null;
+      StringBuilder digits = new StringBuilder(phone.length());
+      for (int i = 0; i < phone.length(); i++)
+         if (phone.charAt(i) >= '0' && phone.charAt(i) <= '9')
+            digits.append(phone.charAt(i));
+      if (digits.length() < MIN_PHONE_DIGITS)
+         return null;
+      return digits.substring(Math.max(0, digits.length() - PHONE_DIGITS));
+   }
+   
+   // Soundex codes of the first and last word of a normalised name ("jon smyth" and "john smith" both give J500S530),
+   // null for an empty name
+   static String phoneticKey(String normalisedName){
+      if (normalisedName.length() == 0)
+         return null;
+      int space = normalisedName.lastIndexOf(' ');
+      if (space < 0)
+         return soundex(normalisedName);
+      return soundex(normalisedName.substring(0, normalisedName.indexOf(' '))) + soundex(normalisedName.substring(space + 1));
+   }
+   
+   // American Soundex: first letter then the codes of the following consonants (letters with the same code next to each other,
+   // or separated only by h or w, count once), padded or cut to 4 characters; non a-z characters are ignored
+   static String soundex(String word){
+      final String codes = "01230120022455012623010202"; // a to z
+      StringBuilder key = new StringBuilder(4);
+      char last = 0;
+      for (int i = 0; i < word.length() && key.length() < 4; i++){
+         char c = word.charAt(i);
+         if (c < 'a' || c > 'z')
+            continue;
+         char code = codes.charAt(c - 'a');
+         if (key.length() == 0)
+            key.append(Character.toUpperCase(c));
+         else if (code != '0' && code != last)
+            key.append(code);
+         if (c != 'h' && c != 'w')
+            last = code;
+      }
+      if (key.length() == 0)
+         return word; // no a-z letters (another alphabet or digits), the word itself is the best key there is
+      while (key.length() < 4)
+         key.append('0');
+      return key.toString();
+   }
+   
+   // Jaro-Winkler similarity of two strings, 1 if they are equal, 0 if they have nothing in common
+   // (tolerant of typos and transposed letters, and favours strings with a common start such as "jon smith"/"jonathan smith")
+   static double similarity(String s1, String s2){
+      if (s1.equals(s2))
+         return 1;
+      int length1 = s1.length(), length2 = s2.length();
+      if (length1 == 0 || length2 == 0)
+         return 0;
+      
+      // characters match if they are equal and no further apart than half the longer string
+      int window = Math.max(0, Math.max(length1, length2) / 2 - 1);
+      boolean[] matched1 = new boolean[length1];
+      boolean[] matched2 = new boolean[length2];
+      int matches = 0;
+      for (int i = 0; i < length1; i++)
+         for (int j = Math.max(0, i - window); j < Math.min(length2, i + window + 1); j++)
+            if (!matched2[j] && s1.charAt(i) == s2.charAt(j)){
+               matched1[i] = matched2[j] = true;
+               matches++;
+               break;
+            }
+      if (matches == 0)
+         return 0;
+      
+      // transpositions: matched characters that are in a different order
+      int transpositions = 0;
+      for (int i = 0, j = 0; i < length1; i++)
+         if (matched1[i]){
+            while (!matched2[j])
+               j++;
+            if (s1.charAt(i) != s2.charAt(j++))
+               transpositions++;
+         }
+      double jaro = ((double) matches / length1 + (double) matches / length2 + (matches - transpositions / 2.0) / matches) / 3;
+      
+      // Winkler's boost for a common prefix of up to 4 characters
+      int prefix = 0;
+      while (prefix < Math.min(4, Math.min(length1, length2)) && s1.charAt(prefix) == s2.charAt(prefix))
+         prefix++;
+      return jaro + prefix * 0.1 * (1 - jaro);
+   }
+}
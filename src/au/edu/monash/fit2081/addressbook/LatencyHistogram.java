@@ -0,0 +1,73 @@
+// LatencyHistogram.java
+// Fixed size histogram of durations for Metrics, in the style of HdrHistogram: each power of two range of values is split into
+// SUB_BUCKETS equal buckets, so any value is stored to within about 6% whatever its size, in constant memory and without allocating.
+// Not thread safe (Metrics only uses it while holding its lock).
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.Arrays;
+
+public class LatencyHistogram{
+   private static final int SUB_BITS = 4;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS; 	// buckets per power of two (16, i.e. 1/16 = ~6% resolution)
+   
+   // values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS buckets for each exponent up to 62 (any positive long)
+   private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+   private long count;
+   private long total;
+   private long max;
+   
+   // adds one value (negative values are counted as 0)
+   public void record(long value){
+      value = Math.max(0, value);
+      counts[bucketOf(value)]++;
+      count++;
+      total += value;
+      max = Math.max(max, value);
+   }
+   
+   public long getCount(){
+      return count;
+   }
+   
+   public long getMax(){
+      return max;
+   }
+   
+   public double getMean(){
+      return (count == 0) ? 0 : (double) total / count;
+   }
+   
+   // value that percentile percent of the recorded values are less than or equal to (to within a bucket), 0 if nothing was recorded
+   public long getValueAtPercentile(double percent){
+      long rank = (long) Math.ceil(percent / 100 * count);
+      long seen = 0;
+      for (int bucket = 0; bucket < counts.length; bucket++){
+         seen += counts[bucket];
+         if (seen >= rank && seen > 0)
+            return Math.min(max, highestValueOf(bucket)); // never report more than was actually recorded
+      }
+      return 0;
+   }
+   
+   public void reset(){
+      Arrays.fill(counts, 0);
+      count = total = max = 0;
+   }
+   
+   // bucket index for a value: the exponent of its highest bit selects the range, the next SUB_BITS bits the bucket within it
+   private static int bucketOf(long value){
+      if (value < SUB_BUCKETS)
+         return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+   }
+   
+   // largest value that falls in bucket
+   private static long highestValueOf(int bucket){
+      if (bucket < SUB_BUCKETS)
+         return bucket;
+      int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+      return lowest + (1L << (exponent - SUB_BITS)) - 1;
+   }
+}
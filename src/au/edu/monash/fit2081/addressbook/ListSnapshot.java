@@ -0,0 +1,75 @@
+// ListSnapshot.java
+// The first screenful of the contact list saved to a small file (files/list_snapshot) as the list is left, so the next cold start
+// can show real contacts in its very first frame, before the database is even open, instead of an empty list until the whole
+// ContactIndex has been loaded. CompactContactAdapter shows it until that load replaces it (a few rows may be out of date
+// meanwhile if another App changed them through ContactsProvider, they are corrected as soon as the index arrives).
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+
+public final class ListSnapshot{
+   private static final String TAG = "ListSnapshot";
+   public static final int ROWS = 40; 				// more rows than any screen shows at once
+   private static final String FILE_NAME = "list_snapshot";
+   private static final int FORMAT = 1; 			// written first, a snapshot in any other format is ignored
+   
+   private ListSnapshot(){} // only static members
+   
+   // the saved rows, or null if there are none (never saved, or unreadable)
+   // reads a file of a few KB, cheap enough for the GUI thread where the first frame needs it
+   public static ContactIndex read(Context context){
+      long start = Metrics.start();
+      File file = new File(context.getFilesDir(), FILE_NAME);
+      try{
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         try{
+            if (in.readInt() != FORMAT)
+               return null;
+            ContactIndex snapshot = ContactIndex.readFrom(in);
+            Metrics.stop("snapshot.read", start, snapshot.size());
+            return snapshot;
+         }
+         finally{
+            in.close();
+         }
+      }
+      catch (FileNotFoundException e){
+         return null; // nothing saved yet
+      }
+      catch (IOException e){
+         Log.w(TAG, "ignoring unreadable " + file, e);
+         return null;
+      }
+   }
+   
+   // saves the first ROWS of index (on a background thread), written to a temporary file that only replaces the snapshot once complete
+   public static void write(Context context, ContactIndex index) throws IOException{
+      long start = Metrics.start();
+      File file = new File(context.getFilesDir(), FILE_NAME);
+      File partial = new File(file.getPath() + ".partial");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+      try{
+         out.writeInt(FORMAT);
+         index.writeTo(out, ROWS);
+      }
+      finally{
+         out.close();
+      }
+      if (!partial.renameTo(file)){
+         partial.delete();
+         throw new IOException("could not rename " + partial + " to " + file);
+      }
+      Metrics.stop("snapshot.write", start);
+   }
+}
@@ -0,0 +1,148 @@
+// Metrics.java
+// Process wide registry of timings for the database and list/detail loading hot paths: a LatencyHistogram and a row count per
+// named stage (e.g. "db.getContactsPage", "repository.read.queued", "list.bind") plus samples of the slowest queries with their SQL.
+// report() formats it all as text, dump(...) writes that to a file, AddressBook shows it from its menu (debug builds only).
+//
+// Usage:   long start = Metrics.start();   ...work...   Metrics.stop("stage.name", start);
+// While disabled start() returns 0 and stop(...) returns straight away, so an instrumented call costs one field read and a branch
+// (stage names are constants so nothing is allocated either way). AddressBookApplication enables it in debuggable builds.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+public final class Metrics{
+   public static final long SLOW_QUERY_NANOS = 50000000; 	// queries slower than this (50ms) are kept as samples
+   public static final int SLOW_QUERY_SAMPLES = 20; 		// the most recent ones are kept
+   
+   private static volatile boolean enabled;
+   
+   // guarded by the class lock like the methods below
+   private static final HashMap<String, Stage> stages = new HashMap<String, Stage>();
+   private static final LinkedList<SlowQuery> slowQueries = new LinkedList<SlowQuery>();
+   
+   private Metrics(){} // only static members
+   
+   public static void setEnabled(boolean enable){
+      enabled = enable;
+   }
+   
+   public static boolean isEnabled(){
+      return enabled;
+   }
+   
+   // start of a timed stage, pass the value to stop(...) (0 while disabled, which stop(...) ignores)
+   public static long start(){
+      return enabled ? System.nanoTime() : 0;
+   }
+   
+   // records the time since start against stage name
+   public static void stop(String name, long start){
+      if (start != 0)
+         record(name, System.nanoTime() - start, -1, null);
+   }
+   
+   // as stop(name, start) and also counts the rows the stage read or wrote
+   public static void stop(String name, long start, int rows){
+      if (start != 0)
+         record(name, System.nanoTime() - start, rows, null);
+   }
+   
+   // as stop(name, start, rows) for a query, a slow one is also kept as a sample with its sql
+   public static void stopQuery(String name, long start, String sql, int rows){
+      if (start != 0)
+         record(name, System.nanoTime() - start, rows, sql);
+   }
+   
+   private static synchronized void record(String name, long nanos, int rows, String sql){
+      Stage stage = stages.get(name);
+      if (stage == null){
+         stage = new Stage();
+         stages.put(name, stage);
+      }
+      
+      stage.histogram.record(nanos);
+      if (rows >= 0){
+         stage.rows += rows;
+         stage.counted++;
+      }
+      
+      if (sql != null && nanos >= SLOW_QUERY_NANOS){
+         if (slowQueries.size() == SLOW_QUERY_SAMPLES)
+            slowQueries.removeFirst();
+         slowQueries.add(new SlowQuery(name, sql, nanos, rows, Thread.currentThread().getName()));
+      }
+   }
+   
+   // forget everything recorded so far
+   public static synchronized void reset(){
+      stages.clear();
+      slowQueries.clear();
+   }
+   
+   // one line per stage (count, percentiles and max in milliseconds, rows per call), then the slow query samples
+   public static synchronized String report(){
+      StringBuilder report = new StringBuilder();
+      report.append(String.format(Locale.US, "%-28s %7s %8s %8s %8s %8s %8s%n", "stage", "count", "p50 ms", "p90 ms", "p99 ms", "max ms", "rows/op"));
+      
+      List<String> names = new ArrayList<String>(stages.keySet());
+      Collections.sort(names);
+      for (String name : names){
+         Stage stage = stages.get(name);
+         LatencyHistogram histogram = stage.histogram;
+         report.append(String.format(Locale.US, "%-28s %7d %8.2f %8.2f %8.2f %8.2f %8s%n", name, histogram.getCount(),
+            histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+            histogram.getValueAtPercentile(99) / 1e6, histogram.getMax() / 1e6,
+            (stage.counted == 0) ? "-" : String.format(Locale.US, "%.1f", (double) stage.rows / stage.counted)));
+      }
+      
+      report.append(String.format(Locale.US, "%nslowest queries (over %d ms, most recent last)%n", SLOW_QUERY_NANOS / 1000000));
+      for (SlowQuery slowQuery : slowQueries)
+         report.append(String.format(Locale.US, "%8.1f ms %6d rows  %s [%s]%n    %s%n", slowQuery.nanos / 1e6, slowQuery.rows,
+            slowQuery.name, slowQuery.thread, slowQuery.sql));
+      
+      return report.toString();
+   }
+   
+   // writes report() to file (replacing it)
+   public static void dump(File file) throws IOException{
+      Writer writer = new FileWriter(file);
+      try{
+         writer.write(report());
+      }
+      finally{
+         writer.close();
+      }
+   }
+   
+   // what is recorded for one stage name
+   private static class Stage{
+      final LatencyHistogram histogram = new LatencyHistogram(); // nanoseconds
+      long rows; 		// total rows of the calls that reported a row count
+      long counted; 	// number of those calls
+   }
+   
+   private static class SlowQuery{
+      final String name;
+      final String sql;
+      final long nanos;
+      final int rows;
+      final String thread;
+      
+      SlowQuery(String name, String sql, long nanos, int rows, String thread){
+         this.name = name;
+         this.sql = sql;
+         this.nanos = nanos;
+         this.rows = rows;
+         this.thread = thread;
+      }
+   }
+}
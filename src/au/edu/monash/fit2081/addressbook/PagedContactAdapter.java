@@ -0,0 +1,566 @@
+// PagedContactAdapter.java
+// ListView adapter for the AddressBook list that loads contacts a page at a time as the user scrolls
+// (rather than one Cursor over the whole table) and only keeps a bounded number of pages in memory.
+// refresh() brings the loaded rows up to date by applying only the changes made since they were loaded.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+public class PagedContactAdapter extends BaseAdapter implements ContactListAdapter{
+   public static final int PAGE_SIZE = 100; 				// rows fetched per query
+   public static final int PREFETCH_DISTANCE = 50; 		// start fetching the next page when the list gets this close to the last known row
+   public static final int MAX_PAGES_IN_MEMORY = 10; 	// pages further from the scroll position than this are evicted (re-fetched if scrolled back to)
+   public static final int MAX_CHANGES = 500; 			// refresh() reloads from the first page when more contacts than this have changed (e.g. an import)
+   private static final int REFETCH_SLACK = 16; 		// extra rows asked for when re-fetching an evicted page in case its size is slightly off
+   
+   private final ContactRepository repository;
+   private final LayoutInflater inflater;
+   private final AvatarLoader avatarLoader;
+   private final int avatarSize; 	// pixels
+   
+   private final SparseArray<Page> pages = new SparseArray<Page>(); 	// loaded pages by page number
+   private final Set<Integer> pagesLoading = new HashSet<Integer>(); 	// page numbers being fetched
+   
+   // keyset for each page: page n is the rows after (afterFavourites[n], afterNames[n], afterIds[n]) in list order up to and including
+   // the key of page n + 1 (the last page has no upper end), there is one more key than discovered pages until the end has been reached
+   // kept even when the page itself is evicted (three values per page) so any page can be re-fetched directly
+   // the keys stay put when rows are inserted or deleted, the pages just grow or shrink (see refresh())
+   private final ArrayList<Integer> afterFavourites = new ArrayList<Integer>();
+   private final ArrayList<String> afterNames = new ArrayList<String>();
+   private final ArrayList<Long> afterIds = new ArrayList<Long>();
+   private final ArrayList<Integer> pageSizes = new ArrayList<Integer>(); 	// rows in each discovered page, loaded or not
+   private int[] pageStarts = new int[0]; 	// position of the first row of each discovered page (running total of pageSizes)
+   
+   private int count; 					// rows discovered so far (what the ListView is told it has)
+   private boolean endReached; 			// true once a page came back short, i.e. there are no more rows to discover
+   private int currentPage; 			// page of the row the ListView most recently asked for (eviction keeps the pages around it)
+   private int generation; 				// incremented by reset() so tasks started before it are ignored when they finish
+   private long sequence; 				// DatabaseConnector change sequence the rows reflect (see refresh())
+   private boolean refreshing; 			// a refresh() is waiting for its changes
+   private boolean refreshAgain; 		// refresh() was called again meanwhile
+   
+   public PagedContactAdapter(Context context){
+      repository = ContactRepository.getInstance(context);
+      inflater = LayoutInflater.from(context);
+      avatarLoader = AvatarLoader.getInstance(context);
+      avatarSize = context.getResources().getDimensionPixelSize(R.dimen.avatar_list_size);
+   }
+   
+   // forget everything and load the first page again (e.g. when the contacts may have changed)
+   public void reset(){
+      clear();
+      afterFavourites.add(0); // page 0 starts at the beginning of the table (afterId 0, see DatabaseConnector.getContactsPage)
+      afterNames.add(null);
+      afterIds.add(0L);
+      requestPage(0);
+   }
+   
+   // release all loaded rows (e.g. while the Activity is not visible), reset() loads them again
+   public void clear(){
+      generation++;
+      repository.cancel(this);
+      pages.clear();
+      pagesLoading.clear();
+      afterFavourites.clear();
+      afterNames.clear();
+      afterIds.clear();
+      pageSizes.clear();
+      pageStarts = new int[0];
+      count = 0;
+      endReached = false;
+      currentPage = 0;
+      refreshing = refreshAgain = false;
+      notifyDataSetChanged();
+   }
+   
+   // bring the list up to date with the database: only the contacts changed since the rows were loaded are read and each one
+   // is moved/added/removed in place, so after a single edit this costs a few small queries instead of reloading the list
+   // and the ListView keeps its scroll position (falls back to reset() if nothing is loaded yet or too much has changed)
+   @Override
+   public void refresh(){
+      if (afterFavourites.isEmpty()){
+         reset();
+         return;
+      }
+      if (refreshing){
+         refreshAgain = true; // the one in flight may have read the changes before the latest write
+         return;
+      }
+      
+      // pages being fetched now might come back without (or with) changes this refresh also applies, getView asks for them again
+      repository.cancel(this);
+      pagesLoading.clear();
+      refreshing = true;
+      
+      final long afterSequence = sequence;
+      final int requestGeneration = generation;
+      
+      repository.read(this, new Callable<ChangeSet>(){
+            @Override
+            public ChangeSet call(){ // reader thread
+               return readChanges(repository.getDatabaseConnector(), afterSequence, MAX_CHANGES);
+            }
+         },
+         new ContactRepository.Callback<ChangeSet>(){
+            @Override
+            public void onResult(ChangeSet result){ // GUI thread
+               if (requestGeneration != generation)
+                  return; // reset()/clear() was called meanwhile
+               
+               refreshing = false;
+               if (result == null || result.changes == null){
+                  reset();
+                  return;
+               }
+               
+               applyChanges(result);
+               if (refreshAgain){
+                  refreshAgain = false;
+                  refresh();
+               }
+            }
+            
+            @Override
+            public void onError(Exception e){ // GUI thread
+               if (requestGeneration != generation)
+                  return;
+               refreshing = false; // the rows stay as they were, the next refresh() (the next change, or refreshAgain) tries again
+               if (refreshAgain){
+                  refreshAgain = false;
+                  refresh();
+               }
+            }
+         });
+   }
+   
+   // reads the contacts changed since afterSequence (see DatabaseConnector.getChangesSince), on a reader thread
+   // the result's changes are null if the list has to be reloaded instead (the log doesn't go back that far or more than maxChanges changed)
+   // (package private, CompactContactAdapter brings its ContactIndex up to date with the same changes)
+   static ChangeSet readChanges(DatabaseConnector databaseConnector, long afterSequence, int maxChanges){
+      ChangeSet changeSet = new ChangeSet();
+      changeSet.sequence = databaseConnector.getChangeSequence();
+      if (changeSet.sequence == afterSequence)
+         return changeSet; // nothing changed
+      
+      Cursor cursor = databaseConnector.getChangesSince(afterSequence, changeSet.sequence);
+      if (cursor == null || cursor.getCount() > maxChanges){
+         if (cursor != null)
+            cursor.close();
+         changeSet.changes = null; // reload instead
+         return changeSet;
+      }
+      
+      try{
+         while (cursor.moveToNext()){
+            Change change = new Change(); // column order as in getChangesSince: _id, listed, old_favourite, old_name, still_exists, favourite, name
+            change.id = cursor.getLong(0);
+            change.listed = (cursor.getInt(1) == 1);
+            change.oldFavourite = cursor.getInt(2);
+            change.oldName = cursor.getString(3);
+            change.exists = (cursor.getInt(4) == 1);
+            change.favourite = cursor.getInt(5);
+            change.name = cursor.getString(6);
+            changeSet.changes.add(change);
+         }
+         return changeSet;
+      }
+      finally{
+         cursor.close();
+      }
+   }
+   
+   // moves each changed contact from its old place in the list (if it was listed) to its new one (if it still exists)
+   // a change in an evicted page only changes that page's size (it is re-fetched if scrolled back to),
+   // one beyond the discovered pages is ignored (it is read when that part of the list is discovered)
+   private void applyChanges(ChangeSet changeSet){
+      long start = Metrics.start();
+      for (Change change : changeSet.changes){
+         if (change.listed)
+            removeRow(change.id, change.oldFavourite, change.oldName);
+         if (change.exists)
+            insertRow(change.id, change.favourite, change.name);
+      }
+      
+      sequence = changeSet.sequence;
+      if (!changeSet.changes.isEmpty()){
+         updatePageStarts();
+         notifyDataSetChanged(); // the ListView rebinds the visible rows, nothing is re-queried
+      }
+      Metrics.stop("list.applyChanges", start, changeSet.changes.size());
+   }
+   
+   // removes the row with the given id and list key (does nothing if it is not there, e.g. the page was fetched after the change)
+   private void removeRow(long id, int favourite, String name){
+      int pageNumber = pageFor(favourite, name, id);
+      if (pageNumber == pageSizes.size())
+         return; // not discovered yet
+      
+      Page page = pages.get(pageNumber);
+      if (page == null){
+         pageSizes.set(pageNumber, Math.max(0, pageSizes.get(pageNumber) - 1));
+         return;
+      }
+      
+      for (int row = 0; row < page.size; row++)
+         if (page.ids[row] == id){
+            page.remove(row);
+            pageSizes.set(pageNumber, page.size);
+            return;
+         }
+   }
+   
+   // inserts the row in list order (does nothing if it is already there)
+   private void insertRow(long id, int favourite, String name){
+      int pageNumber = pageFor(favourite, name, id);
+      if (pageNumber == pageSizes.size())
+         return; // not discovered yet
+      
+      Page page = pages.get(pageNumber);
+      if (page == null){
+         pageSizes.set(pageNumber, pageSizes.get(pageNumber) + 1);
+         return;
+      }
+      
+      int row = 0;
+      while (row < page.size && compareKeys(page.favourites[row] ? 1 : 0, page.names[row], page.ids[row], favourite, name, id) < 0)
+         row++;
+      if (row < page.size && page.ids[row] == id)
+         return;
+      
+      page.insert(row, id, name, favourite == 1);
+      pageSizes.set(pageNumber, page.size);
+   }
+   
+   // number of the page whose key range holds the given key, pageSizes.size() if that is the undiscovered rest of the list
+   // (binary search on the page keys, page 0 has no lower end)
+   private int pageFor(int favourite, String name, long id){
+      int low = 0; 							// a page known to start before the key
+      int high = afterFavourites.size() - 1;
+      while (low < high){
+         int middle = (low + high + 1) / 2;
+         if (compareKeys(afterFavourites.get(middle), afterNames.get(middle), afterIds.get(middle), favourite, name, id) < 0)
+            low = middle;
+         else
+            high = middle - 1;
+      }
+      return low;
+   }
+   
+   // compares two list keys the way SQLite orders LIST_ORDER (favourite, name, _id): NULL names first,
+   // names by code point (the BINARY collation compares UTF-8 bytes, which is the same order)
+   static int compareKeys(int favourite1, String name1, long id1, int favourite2, String name2, long id2){
+      if (favourite1 != favourite2)
+         return (favourite1 < favourite2) ? -1 : 1;
+      
+      if (name1 == null || name2 == null){
+         if (name1 != name2)
+            return (name1 == null) ? -1 : 1;
+      }
+      else{
+         int i1 = 0, i2 = 0;
+         while (i1 < name1.length() && i2 < name2.length()){
+            int c1 = name1.codePointAt(i1), c2 = name2.codePointAt(i2);
+            if (c1 != c2)
+               return (c1 < c2) ? -1 : 1;
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+         }
+         if (i1 < name1.length() || i2 < name2.length())
+            return (i1 < name1.length()) ? 1 : -1; // the longer name comes after its prefix
+      }
+      
+      return (id1 == id2) ? 0 : (id1 < id2) ? -1 : 1;
+   }
+   
+   @Override
+   public int getCount(){
+      return count;
+   }
+   
+   // contact at position or null if its page is not in memory at the moment (it is being fetched)
+   @Override
+   public Object getItem(int position){
+      int pageNumber = pageAt(position);
+      Page page = pages.get(pageNumber);
+      return (page == null) ? null : page.names[position - pageStarts[pageNumber]];
+   }
+   
+   // row _id (passed to OnItemClickListener.onItemClick) or -1 if the row's page is not in memory at the moment
+   @Override
+   public long getItemId(int position){
+      int pageNumber = pageAt(position);
+      Page page = pages.get(pageNumber);
+      return (page == null) ? -1 : page.ids[position - pageStarts[pageNumber]];
+   }
+   
+   @Override
+   public boolean hasStableIds(){
+      return true;
+   }
+   
+   @Override
+   public View getView(int position, View convertView, ViewGroup parent){
+      long start = Metrics.start();
+      currentPage = pageAt(position);
+      
+      // prefetch so the next page normally arrives before the user scrolls to it
+      if (!endReached && position >= count - PREFETCH_DISTANCE)
+         requestPage(pageSizes.size());
+      
+      // reuse the row View the ListView hands back (and the references to its widgets saved in its tag)
+      ViewHolder holder;
+      if (convertView == null){
+         convertView = inflater.inflate(R.layout.contact_list_item, parent, false);
+         holder = new ViewHolder();
+         holder.nameTextView = (TextView) convertView.findViewById(R.id.contactTextView);
+         holder.favouriteCheckBox = (CheckBox) convertView.findViewById(R.id.favouriteCheckBox); // null if the layout doesn't have one
+         holder.avatarImageView = (ImageView) convertView.findViewById(R.id.avatarImageView); 		// likewise
+         convertView.setTag(holder);
+      }
+      else
+         holder = (ViewHolder) convertView.getTag();
+      
+      Page page = pages.get(currentPage);
+      if (page == null){
+         // scrolled back to an evicted page, show an empty row until it has been fetched again
+         requestPage(currentPage);
+         holder.nameTextView.setText(null);
+         if (holder.favouriteCheckBox != null)
+            holder.favouriteCheckBox.setChecked(false);
+         if (holder.avatarImageView != null)
+            avatarLoader.clear(holder.avatarImageView);
+      }
+      else{
+         int row = position - pageStarts[currentPage];
+         holder.nameTextView.setText(page.names[row]);
+         if (holder.favouriteCheckBox != null)
+            holder.favouriteCheckBox.setChecked(page.favourites[row]);
+         if (holder.avatarImageView != null)
+            avatarLoader.load(holder.avatarImageView, page.ids[row], avatarSize); // decoded off the GUI thread unless cached
+      }
+      
+      Metrics.stop("list.bind", start);
+      return convertView;
+   }
+   
+   // number of the discovered page holding position (binary search on pageStarts, pages emptied by refresh() are skipped)
+   private int pageAt(int position){
+      int low = 0, high = pageStarts.length - 1;
+      while (low < high){
+         int middle = (low + high + 1) / 2;
+         if (pageStarts[middle] <= position)
+            low = middle;
+         else
+            high = middle - 1;
+      }
+      return low;
+   }
+   
+   // recomputes pageStarts and count after page sizes have changed
+   private void updatePageStarts(){
+      if (pageStarts.length != pageSizes.size())
+         pageStarts = new int[pageSizes.size()];
+      
+      count = 0;
+      for (int i = 0; i < pageStarts.length; i++){
+         pageStarts[i] = count;
+         count += pageSizes.get(i);
+      }
+   }
+   
+   // starts fetching pageNumber unless it is already in memory or on its way
+   private void requestPage(int pageNumber){
+      if (pages.get(pageNumber) != null || pagesLoading.contains(pageNumber))
+         return;
+      
+      pagesLoading.add(pageNumber);
+      
+      // fetched on one of the repository's reader threads (so a save being written doesn't hold it up)
+      final int afterFavourite = afterFavourites.get(pageNumber); 	// the keyset the page starts after
+      final String afterName = afterNames.get(pageNumber);
+      final long afterId = afterIds.get(pageNumber);
+      // a new page is PAGE_SIZE rows, an evicted one is fetched again up to (and including) the next page's key
+      final boolean discovering = (pageNumber == pageSizes.size());
+      final int limit = discovering ? PAGE_SIZE : pageSizes.get(pageNumber) + REFETCH_SLACK;
+      final boolean last = (pageNumber + 1 == afterFavourites.size());
+      final int endFavourite = last ? 0 : afterFavourites.get(pageNumber + 1);
+      final String endName = last ? null : afterNames.get(pageNumber + 1);
+      final long endId = last ? 0 : afterIds.get(pageNumber + 1);
+      final boolean firstPage = (pageNumber == 0 && discovering); 	// the rows reset() loads first, sequence is read with them
+      final int requestGeneration = generation;
+      final int requestedPage = pageNumber;
+      
+      repository.read(this, new Callable<Page>(){
+            @Override
+            public Page call(){ // reader thread
+               DatabaseConnector databaseConnector = repository.getDatabaseConnector();
+               Page page = new Page(limit);
+               // read first, changes made while the page is fetched are applied (again) by the next refresh(), which is harmless
+               if (firstPage)
+                  page.sequence = databaseConnector.getChangeSequence();
+               
+               Cursor cursor = databaseConnector.getContactsPage(afterFavourite, afterName, afterId, limit);
+               try{
+                  while (cursor.moveToNext()){
+                     // column order as in getContactsPage: _id, name, favourite
+                     if (!last && compareKeys(cursor.getInt(2), cursor.getString(1), cursor.getLong(0), endFavourite, endName, endId) > 0)
+                        break; // belongs to the next page
+                     page.ids[page.size] = cursor.getLong(0);
+                     page.names[page.size] = cursor.getString(1);
+                     page.favourites[page.size] = (cursor.getInt(2) == 1);
+                     page.size++;
+                  }
+                  return page;
+               }
+               finally{
+                  cursor.close();
+               }
+            }
+         },
+         new ContactRepository.Callback<Page>(){
+            @Override
+            public void onResult(Page result){ // GUI thread
+               if (requestGeneration == generation) // otherwise reset()/clear() was called while this page was being fetched
+                  pageLoaded(requestedPage, result, firstPage);
+            }
+            
+            @Override
+            public void onError(Exception e){ // GUI thread
+               if (requestGeneration == generation)
+                  pagesLoading.remove(requestedPage); // getView asks for it again when one of its rows is next bound
+            }
+         });
+   }
+   
+   // stop waiting for pages being fetched (e.g. the Activity is stopping), any that are still needed are requested again by getView
+   @Override
+   public boolean cancelLoads(){
+      boolean abandoned = refreshing;
+      repository.cancel(this);
+      pagesLoading.clear();
+      refreshing = refreshAgain = false; // a cancelled refresh is not delivered, the next refresh() reads its changes again
+      return abandoned;
+   }
+   
+   // called on the GUI thread when a page has been fetched
+   private void pageLoaded(int pageNumber, Page page, boolean firstPage){
+      pagesLoading.remove(pageNumber);
+      pages.put(pageNumber, page);
+      if (firstPage){
+         sequence = page.sequence;
+         StartupTrace.listLoaded(page.size == 0); // the first page is all a cold start waits for
+      }
+      
+      if (pageNumber == pageSizes.size()){
+         // the first time the last known page is fetched it tells us where the next one starts (or that there isn't one)
+         pageSizes.add(page.size);
+         if (page.size < PAGE_SIZE)
+            endReached = true;
+         else{
+            afterFavourites.add(page.favourites[page.size - 1] ? 1 : 0);
+            afterNames.add(page.names[page.size - 1]);
+            afterIds.add(page.ids[page.size - 1]);
+         }
+      }
+      else
+         pageSizes.set(pageNumber, page.size); // normally unchanged, corrects it if changes were counted twice (see requestPage)
+      updatePageStarts();
+      
+      evictDistantPages();
+      notifyDataSetChanged();
+   }
+   
+   // drop the pages furthest from the current scroll position until at most MAX_PAGES_IN_MEMORY remain
+   private void evictDistantPages(){
+      while (pages.size() > MAX_PAGES_IN_MEMORY){
+         int furthest = 0;
+         for (int i = 1; i < pages.size(); i++)
+            if (Math.abs(pages.keyAt(i) - currentPage) > Math.abs(pages.keyAt(furthest) - currentPage))
+               furthest = i;
+         pages.removeAt(furthest);
+      }
+   }
+   
+   // rows of one page copied out of their Cursor (so no CursorWindow is kept per page)
+   private static class Page{
+      long[] ids;
+      String[] names;
+      boolean[] favourites;
+      int size;
+      long sequence; 	// only set for the first page
+      
+      Page(int capacity){
+         ids = new long[capacity];
+         names = new String[capacity];
+         favourites = new boolean[capacity];
+      }
+      
+      void remove(int row){
+         System.arraycopy(ids, row + 1, ids, row, size - row - 1);
+         System.arraycopy(names, row + 1, names, row, size - row - 1);
+         System.arraycopy(favourites, row + 1, favourites, row, size - row - 1);
+         names[--size] = null;
+      }
+      
+      void insert(int row, long id, String name, boolean favourite){
+         if (size == ids.length){ // full, grow by half
+            int capacity = size + size / 2 + 1;
+            long[] newIds = new long[capacity];
+            String[] newNames = new String[capacity];
+            boolean[] newFavourites = new boolean[capacity];
+            System.arraycopy(ids, 0, newIds, 0, size);
+            System.arraycopy(names, 0, newNames, 0, size);
+            System.arraycopy(favourites, 0, newFavourites, 0, size);
+            ids = newIds;
+            names = newNames;
+            favourites = newFavourites;
+         }
+         
+         System.arraycopy(ids, row, ids, row + 1, size - row);
+         System.arraycopy(names, row, names, row + 1, size - row);
+         System.arraycopy(favourites, row, favourites, row + 1, size - row);
+         ids[row] = id;
+         names[row] = name;
+         favourites[row] = favourite;
+         size++;
+      }
+   }
+   
+   // what refresh() reads: the changed contacts (null if the list has to be reloaded) and the sequence they bring the list up to
+   static class ChangeSet{
+      ArrayList<Change> changes = new ArrayList<Change>();
+      long sequence;
+   }
+   
+   // one changed contact, see DatabaseConnector.getChangesSince
+   static class Change{
+      long id;
+      boolean listed; 		// in the list before (at oldFavourite, oldName)
+      int oldFavourite;
+      String oldName;
+      boolean exists; 		// in the list now (at favourite, name)
+      int favourite;
+      String name;
+   }
+   
+   // widget references for one recycled row View
+   private static class ViewHolder{
+      TextView nameTextView;
+      CheckBox favouriteCheckBox;
+      ImageView avatarImageView;
+   }
+}
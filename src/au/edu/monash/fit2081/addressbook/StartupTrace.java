@@ -0,0 +1,75 @@
+// StartupTrace.java
+// Times a cold start: the milestones from process start (as near as the App's own code gets, AddressBookApplication's constructor)
+// to the first contact row drawn and to the whole list being loaded, e.g.
+//    StartupTrace: application.onCreate +12ms, activity.onCreate +35ms, prewarm.databaseOpen +41ms, firstRow.snapshot +88ms, list.loaded +240ms
+// logged once per process whatever the build, and recorded as Metrics stages "startup.<milestone>" in debug builds.
+// A process started for something else (e.g. ContactsProvider) whose list is only shown later isn't a cold start, so isn't traced.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+public final class StartupTrace{
+   private static final String TAG = "StartupTrace";
+   public static final long MAX_COLD_START_MILLIS = 10000; // an Activity created later than this after process start isn't part of it
+   
+   private static long processStart; 		// System.nanoTime(), 0 until processStarted()
+   // guarded by the class lock
+   private static final StringBuilder trace = new StringBuilder();
+   private static boolean firstRow, listLoaded; 	// the milestones the trace waits for
+   private static boolean finished; 			// logged, or abandoned
+   
+   private StartupTrace(){} // only static members
+   
+   // called as the App's process starts
+   static synchronized void processStarted(){
+      processStart = System.nanoTime();
+   }
+   
+   // called as the list Activity is created, the trace is abandoned if that isn't soon after process start (or not the first time)
+   static synchronized void activityCreated(){
+      if (processStart == 0 || System.nanoTime() - processStart > TimeUnit.MILLISECONDS.toNanos(MAX_COLD_START_MILLIS))
+         finished = true;
+      mark("activity.onCreate");
+   }
+   
+   // the time since process start of milestone (any thread), nothing once the trace is over
+   static synchronized void mark(String milestone){
+      if (finished || processStart == 0)
+         return;
+      long nanos = System.nanoTime() - processStart;
+      if (Metrics.isEnabled())
+         Metrics.stop("startup." + milestone, processStart);
+      if (trace.length() > 0)
+         trace.append(", ");
+      trace.append(milestone).append(" +").append(TimeUnit.NANOSECONDS.toMillis(nanos)).append("ms");
+   }
+   
+   // the first contact row is about to be drawn, fromSnapshot if it is ListSnapshot's rather than the loaded list's
+   static synchronized void firstRowVisible(boolean fromSnapshot){
+      if (firstRow)
+         return;
+      firstRow = true;
+      mark(fromSnapshot ? "firstRow.snapshot" : "firstRow.list");
+      finishIfComplete();
+   }
+   
+   // the whole list has been loaded (and is being shown), an empty one has no first row to wait for
+   static synchronized void listLoaded(boolean empty){
+      if (listLoaded)
+         return;
+      listLoaded = true;
+      if (empty)
+         firstRow = true;
+      mark("list.loaded");
+      finishIfComplete();
+   }
+   
+   private static void finishIfComplete(){
+      if (firstRow && listLoaded && !finished){
+         finished = true;
+         Log.i(TAG, trace.toString());
+      }
+   }
+}
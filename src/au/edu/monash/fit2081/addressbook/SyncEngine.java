@@ -0,0 +1,694 @@
+// SyncEngine.java
+// Keeps the contacts in step with the central directory by exchanging only what changed since the last sync, in both directions:
+//    pull   GET  <server>changes?since=<token>&limit=<n>&client=<id>   the directory's changes since token (leaving out the ones
+//           this client made), PULL_PAGE_SIZE at a time, each page applied in ONE transaction together with the token it brings us up to
+//    push   POST <server>changes?client=<id>   the rows changed here (dirty = 1) and the contacts deleted here (sync_tombstones), PUSH_BATCH_SIZE a request
+// Bodies are gzipped JSON both ways. A pushed row carries base_version, the directory's version it was last synced at, so the server
+// refuses (a conflict) a change to a row somebody else has changed since - resolve(...) then keeps the newer of the two (by updated_at,
+// the directory's on a tie). Failed requests (I/O errors, 429 and 5xx) are retried with exponential backoff plus jitter.
+// A steady-state sync therefore transfers the rows that changed and nothing else, a sync with nothing to do is one small GET.
+// Does network and database I/O on the calling thread, never call it on the GUI thread (see ContactRepository.sync(...)).
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+public class SyncEngine{
+   public static final int PULL_PAGE_SIZE = 500; 		// changes per GET (and per transaction applying them)
+   public static final int PUSH_BATCH_SIZE = 200; 		// changes per POST
+   public static final int MAX_ATTEMPTS = 5; 			// tries of one request before the sync fails
+   public static final int MAX_PUSH_ROUNDS = 3; 		// pushes of a row that keeps losing to newer changes on the server
+   public static final int TIMEOUT_MILLIS = 15000; 	// connect and read timeouts of each request
+   
+   // what resolve(...) did with a change from the server
+   private static final int UNCHANGED = 0, CHANGED = 1, KEPT_LOCAL = 2;
+   
+   // a sync's outcome, the row and byte counts are what was transferred (so a no-op sync has 0 rows)
+   public static class Result{
+      public int pulled; 				// changes received
+      public int pushed; 				// changes sent and accepted
+      public int conflicts; 			// changes made both here and on the server, see resolve(...)
+      public int rejected; 			// changes from the server the App refuses to store (e.g. no name), see resolve(...)
+      public int attempts; 			// HTTP requests made, including retries
+      public long bytesSent, bytesReceived; // compressed body sizes
+      public final List<Long> deletedIds = new ArrayList<Long>(); // contacts deleted because they were deleted on the server
+      
+      @Override
+      public String toString(){
+         return "pulled " + pulled + ", pushed " + pushed + ", conflicts " + conflicts + ", rejected " + rejected + ", " + attempts + " requests, " +
+            bytesSent + " bytes sent, " + bytesReceived + " received";
+      }
+   }
+   
+   private final SQLiteDatabase db;
+   private final URL server; 					// base URL of the directory's sync API, ending with '/'
+   private final boolean notifyChanges; 	// tell ContactCache (and so the App's observers) when the server's changes are applied
+   private final Random random = new Random();
+   private long initialBackoffMillis = 1000, maxBackoffMillis = 60000;
+   
+   // statements and client id of one sync(...) call
+   private String clientId;
+   private SQLiteStatement insertRemote, updateRemote, deleteRemote, deleteTombstone;
+   
+   // db is the App's database (see DatabaseConnector.getDatabase()) or a scratch one of the same schema (see SyncTest)
+   // notifyChanges is only for the App's own database, whose contacts ContactCache caches
+   public SyncEngine(SQLiteDatabase db, URL server, boolean notifyChanges){
+      this.db = db;
+      this.server = server;
+      this.notifyChanges = notifyChanges;
+   }
+   
+   // the wait before the first retry (doubled for each further one, up to maxMillis), e.g. shorter for SyncTest
+   public void setBackoff(long initialMillis, long maxMillis){
+      initialBackoffMillis = initialMillis;
+      maxBackoffMillis = maxMillis;
+   }
+   
+   // pulls the server's changes, then pushes ours, cancellationSignal (may be null) stops it between requests
+   // (with an OperationCanceledException) - whatever was applied by then stays applied, the next sync carries on from there
+   public Result sync(CancellationSignal cancellationSignal) throws IOException{
+      long start = Metrics.start();
+      Result result = new Result();
+      clientId = getClientId();
+      insertRemote = db.compileStatement(INSERT_REMOTE_SQL);
+      updateRemote = db.compileStatement(UPDATE_REMOTE_SQL);
+      deleteRemote = db.compileStatement("DELETE FROM contacts WHERE _id = ?");
+      deleteTombstone = db.compileStatement("DELETE FROM sync_tombstones WHERE sync_id = ?");
+      
+      try{
+         // pulling first means a row changed on both sides is mostly settled here, before it is pushed (and refused)
+         pull(result, cancellationSignal);
+         for (int round = 0; round < MAX_PUSH_ROUNDS; round++)
+            if (!push(result, cancellationSignal))
+               break; // nothing kept local changes over the server's, so nothing needs pushing again
+      }
+      finally{
+         insertRemote.close();
+         updateRemote.close();
+         deleteRemote.close();
+         deleteTombstone.close();
+         Metrics.stop("sync", start, result.pulled + result.pushed);
+      }
+      return result;
+   }
+   
+   
+   // pull
+   
+   // the server's changes as a remote write: values, version and updated_at from the server and not dirty (it has them already)
+   // parameters 1 to 7 as DatabaseConnector.INSERT_SQL, so DatabaseConnector.bindContact(...) binds them
+   private static final String INSERT_REMOTE_SQL =
+      "INSERT INTO contacts (name, email, favourite, phone, street, city, phone_key, version, updated_at, dirty, sync_id) " +
+      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?)";
+   private static final String UPDATE_REMOTE_SQL =
+      "UPDATE contacts SET name = ?, email = ?, favourite = ?, phone = ?, street = ?, city = ?, phone_key = ?, " +
+      "version = ?, updated_at = ?, dirty = 0 WHERE _id = ?";
+   
+   // one page of GET changes
+   private static class Page{
+      final List<Change> changes = new ArrayList<Change>();
+      String token; 	// where the next page (or the next sync) starts
+      boolean more; 	// there is another page
+   }
+   
+   private void pull(Result result, CancellationSignal cancellationSignal) throws IOException{
+      String token = getState("token");
+      if (token == null)
+         token = "0"; // never synced, everything the server has is new
+      boolean more = true;
+      while (more){
+         String query = "changes?since=" + URLEncoder.encode(token, "UTF-8") + "&limit=" + PULL_PAGE_SIZE +
+            "&client=" + URLEncoder.encode(clientId, "UTF-8");
+         Page page = readPage(request("GET", new URL(server, query), null, result, cancellationSignal));
+         
+         boolean changed = false;
+         db.beginTransactionNonExclusive(); // the changes and the token covering them are committed together, or neither is
+         try{
+            for (Change change : page.changes)
+               if (resolve(change, result) == CHANGED)
+                  changed = true;
+            setState("token", page.token);
+            db.setTransactionSuccessful();
+         }
+         finally{
+            db.endTransaction();
+         }
+         
+         result.pulled += page.changes.size();
+         if (changed)
+            TagIndex.invalidate(); // (built again when a filter next needs it)
+         if (changed && notifyChanges)
+            ContactCache.contactsChanged(); // once per page, however many contacts it changed
+         token = page.token;
+         more = page.more;
+      }
+   }
+   
+   // merges one change from the server (pulled, or sent back with a refused push) into the local table, in the caller's transaction
+   // a row not changed here takes the server's version, so does one changed on both sides unless our change is newer (by updated_at),
+   // then it stays dirty but is now based on the server's version, so the next push replaces the server's
+   // a change the App wouldn't accept from the user (see validate) is never stored: a contact we have is kept and pushed back over
+   // the server's, one we don't have is left out, either way it is counted in result.rejected
+   private int resolve(Change remote, Result result){
+      boolean valid = remote.deleted || validate(remote);
+      Cursor local = db.rawQuery("SELECT _id, version, updated_at, dirty FROM contacts WHERE sync_id = ?", new String[] {remote.syncId});
+      try{
+         if (local.moveToFirst()){
+            long id = local.getLong(0);
+            if (local.getLong(1) >= remote.version)
+               return UNCHANGED; // we have this version already
+            if (!valid){
+               result.rejected++;
+               db.execSQL("UPDATE contacts SET version = ?, dirty = 1 WHERE _id = ?", new Object[] {remote.version, id});
+               return KEPT_LOCAL;
+            }
+            if (local.getInt(3) != 0){
+               result.conflicts++;
+               if (local.getLong(2) > remote.updatedAt){
+                  db.execSQL("UPDATE contacts SET version = ? WHERE _id = ?", new Object[] {remote.version, id});
+                  return KEPT_LOCAL;
+               }
+            }
+            if (remote.deleted)
+               deleteLocal(id, remote.syncId, result);
+            else
+               updateLocal(id, remote);
+            return CHANGED;
+         }
+      }
+      finally{
+         local.close();
+      }
+      
+      if (!valid){
+         result.rejected++;
+         return UNCHANGED;
+      }
+      
+      // no such contact here, it may have been deleted here since the last sync
+      Cursor tombstone = db.rawQuery("SELECT deleted_at FROM sync_tombstones WHERE sync_id = ?", new String[] {remote.syncId});
+      try{
+         if (tombstone.moveToFirst()){
+            if (remote.deleted){
+               deleteTombstone(remote.syncId); // deleted on both sides, nothing to push
+               return UNCHANGED;
+            }
+            result.conflicts++;
+            if (tombstone.getLong(0) > remote.updatedAt){
+               db.execSQL("UPDATE sync_tombstones SET version = ? WHERE sync_id = ?", new Object[] {remote.version, remote.syncId});
+               return KEPT_LOCAL;
+            }
+            deleteTombstone(remote.syncId); // changed on the server after we deleted it, so it is back
+         }
+      }
+      finally{
+         tombstone.close();
+      }
+      
+      if (remote.deleted)
+         return UNCHANGED; // created and deleted since our last sync, we never had it
+      insertLocal(remote);
+      return CHANGED;
+   }
+   
+   // checks a change from the server the way ContactImporter.validate(...) checks an imported contact (the same rule
+   // ContactsProvider applies): false if it has no name, otherwise its values are trimmed as an imported contact's are
+   private static boolean validate(Change remote){
+      Contact contact;
+      try{
+         contact = ContactImporter.validate(new Contact(remote.name, remote.email, remote.favourite, remote.phone, remote.street, remote.city));
+      }
+      catch (IllegalArgumentException e){
+         return false;
+      }
+      remote.name = contact.getName();
+      remote.email = contact.getEmail();
+      remote.phone = contact.getPhone();
+      remote.street = contact.getStreet();
+      remote.city = contact.getCity();
+      return true;
+   }
+   
+   private void insertLocal(Change remote){
+      DatabaseConnector.bindContact(insertRemote, remote.name, remote.email, remote.favourite, remote.phone, remote.street, remote.city);
+      insertRemote.bindLong(8, remote.version);
+      insertRemote.bindLong(9, remote.updatedAt);
+      insertRemote.bindString(10, remote.syncId);
+      long id = insertRemote.executeInsert();
+      DatabaseConnector.recheckDuplicates(db, id, remote.name, remote.email, remote.phone); // as for a contact added here
+   }
+   
+   private void updateLocal(long id, Change remote){
+      DatabaseConnector.bindContact(updateRemote, remote.name, remote.email, remote.favourite, remote.phone, remote.street, remote.city);
+      updateRemote.bindLong(8, remote.version);
+      updateRemote.bindLong(9, remote.updatedAt);
+      updateRemote.bindLong(10, id);
+      updateRemote.executeUpdateDelete();
+      DatabaseConnector.recheckDuplicates(db, id, remote.name, remote.email, remote.phone);
+   }
+   
+   // a delete from the server isn't one to send back, so the tombstone the delete trigger has just written goes again
+   private void deleteLocal(long id, String syncId, Result result){
+      deleteRemote.bindLong(1, id);
+      deleteRemote.executeUpdateDelete();
+      deleteTombstone(syncId);
+      result.deletedIds.add(id);
+   }
+   
+   private void deleteTombstone(String syncId){
+      deleteTombstone.bindString(1, syncId);
+      deleteTombstone.executeUpdateDelete();
+   }
+   
+   private static Page readPage(byte[] body) throws IOException{
+      Page page = new Page();
+      JsonReader reader = new JsonReader(utf8(body));
+      try{
+         reader.beginObject();
+         while (reader.hasNext()){
+            String name = reader.nextName();
+            if (name.equals("changes")){
+               reader.beginArray();
+               while (reader.hasNext())
+                  page.changes.add(Change.read(reader));
+               reader.endArray();
+            }
+            else if (name.equals("token"))
+               page.token = reader.nextString();
+            else if (name.equals("more"))
+               page.more = reader.nextBoolean();
+            else
+               reader.skipValue();
+         }
+         reader.endObject();
+      }
+      finally{
+         reader.close();
+      }
+      
+      if (page.token == null)
+         throw new IOException("changes response without a token");
+      return page;
+   }
+   
+   
+   // push
+   
+   // pushes every dirty row and tombstone, keyset paged (by _id, then sync_id) so each batch is an index range scan
+   // returns true if a conflict kept a local change that has to be pushed again (now based on the server's version)
+   private boolean push(Result result, CancellationSignal cancellationSignal) throws IOException{
+      boolean again = false;
+      long afterId = 0;
+      List<Change> batch;
+      while (!(batch = readDirty(afterId)).isEmpty()){
+         again |= send(batch, result, cancellationSignal);
+         afterId = batch.get(batch.size() - 1).localId;
+      }
+      
+      String afterSyncId = "";
+      while (!(batch = readTombstones(afterSyncId)).isEmpty()){
+         again |= send(batch, result, cancellationSignal);
+         afterSyncId = batch.get(batch.size() - 1).syncId;
+      }
+      return again;
+   }
+   
+   // the next PUSH_BATCH_SIZE dirty rows after afterId (contacts_dirty_index)
+   private List<Change> readDirty(long afterId){
+      List<Change> batch = new ArrayList<Change>();
+      Cursor cursor = db.rawQuery(
+         "SELECT _id, sync_id, version, updated_at, name, email, phone, street, city, favourite FROM contacts " +
+         "WHERE dirty = 1 AND _id > ? ORDER BY _id LIMIT " + PUSH_BATCH_SIZE, new String[] {String.valueOf(afterId)});
+      try{
+         while (cursor.moveToNext()){
+            Change change = new Change();
+            change.localId = cursor.getLong(0);
+            change.syncId = cursor.getString(1);
+            change.version = cursor.getLong(2);
+            change.updatedAt = cursor.getLong(3);
+            change.name = cursor.getString(4);
+            change.email = cursor.getString(5);
+            change.phone = cursor.getString(6);
+            change.street = cursor.getString(7);
+            change.city = cursor.getString(8);
+            change.favourite = cursor.getInt(9) != 0;
+            batch.add(change);
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      return batch;
+   }
+   
+   // the next PUSH_BATCH_SIZE tombstones after afterSyncId (its primary key)
+   private List<Change> readTombstones(String afterSyncId){
+      List<Change> batch = new ArrayList<Change>();
+      Cursor cursor = db.rawQuery(
+         "SELECT sync_id, version, deleted_at FROM sync_tombstones WHERE sync_id > ? ORDER BY sync_id LIMIT " + PUSH_BATCH_SIZE,
+         new String[] {afterSyncId});
+      try{
+         while (cursor.moveToNext()){
+            Change change = new Change();
+            change.syncId = cursor.getString(0);
+            change.version = cursor.getLong(1);
+            change.updatedAt = cursor.getLong(2);
+            change.deleted = true;
+            batch.add(change);
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      return batch;
+   }
+   
+   // POSTs batch and applies the server's answer for each change in one transaction, returns true as push(...) does
+   private boolean send(List<Change> batch, Result result, CancellationSignal cancellationSignal) throws IOException{
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(body), "UTF-8"));
+      writer.beginObject().name("changes").beginArray();
+      for (Change change : batch)
+         change.write(writer, "base_version");
+      writer.endArray().endObject();
+      writer.close(); // finishes the gzip stream
+      
+      byte[] response = request("POST", new URL(server, "changes?client=" + URLEncoder.encode(clientId, "UTF-8")), body.toByteArray(),
+         result, cancellationSignal);
+      Map<String, Change> sent = new HashMap<String, Change>();
+      for (Change change : batch)
+         sent.put(change.syncId, change);
+      
+      boolean again = false, changed = false;
+      JsonReader reader = new JsonReader(utf8(response));
+      db.beginTransactionNonExclusive();
+      try{
+         reader.beginObject();
+         while (reader.hasNext()){
+            if (!reader.nextName().equals("results")){
+               reader.skipValue();
+               continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()){
+               int resolved = readResult(reader, sent, result);
+               again |= resolved == KEPT_LOCAL;
+               changed |= resolved == CHANGED;
+            }
+            reader.endArray();
+         }
+         reader.endObject();
+         db.setTransactionSuccessful();
+      }
+      finally{
+         db.endTransaction();
+         reader.close();
+      }
+      
+      if (changed)
+         TagIndex.invalidate();
+      if (changed && notifyChanges)
+         ContactCache.contactsChanged();
+      return again;
+   }
+   
+   // one element of a POST's results: {"id": ..., "status": "applied", "version": ...} or {"id": ..., "status": "conflict", "current": change}
+   // (sent: the batch by sync_id)
+   private int readResult(JsonReader reader, Map<String, Change> sent, Result result) throws IOException{
+      String syncId = null, status = null;
+      long version = 0;
+      Change current = null;
+      reader.beginObject();
+      while (reader.hasNext()){
+         String name = reader.nextName();
+         if (name.equals("id"))
+            syncId = reader.nextString();
+         else if (name.equals("status"))
+            status = reader.nextString();
+         else if (name.equals("version"))
+            version = reader.nextLong();
+         else if (name.equals("current"))
+            current = Change.read(reader);
+         else
+            reader.skipValue();
+      }
+      reader.endObject();
+      
+      Change change = sent.get(syncId);
+      if (change == null)
+         throw new IOException("push result for " + syncId + ", which wasn't pushed");
+      if ("applied".equals(status)){
+         result.pushed++;
+         if (change.deleted)
+            deleteTombstone(syncId);
+         else
+            // a row written again while the push was on its way (so updated_at has moved on) is still dirty
+            db.execSQL("UPDATE contacts SET version = ?, dirty = CASE WHEN updated_at = ? THEN 0 ELSE 1 END WHERE sync_id = ?",
+               new Object[] {version, change.updatedAt, syncId});
+         return UNCHANGED;
+      }
+      if ("conflict".equals(status) && current != null)
+         return resolve(current, result);
+      throw new IOException("unexpected push result " + status + " for " + syncId);
+   }
+   
+   
+   // HTTP
+   
+   // makes a request (GET if body is null, otherwise a POST of the gzipped body) and returns the response body (gunzipped)
+   // retries an I/O error, 429 (too many requests) or 5xx after a random wait of between 1/2 and all of the backoff, which doubles
+   // for each retry (up to maxBackoffMillis), or after the server's Retry-After if that is longer - any other status fails at once
+   private byte[] request(String method, URL url, byte[] body, Result result, CancellationSignal cancellationSignal) throws IOException{
+      long backoff = initialBackoffMillis;
+      for (int attempt = 1; ; attempt++){
+         if (cancellationSignal != null)
+            cancellationSignal.throwIfCanceled();
+         
+         long start = Metrics.start();
+         result.attempts++;
+         IOException failure = null;
+         long retryAfter = 0;
+         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+         try{
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestProperty("Accept-Encoding", "gzip"); // set explicitly, so the body is ours to gunzip
+            if (body != null){
+               connection.setRequestMethod(method);
+               connection.setDoOutput(true);
+               connection.setFixedLengthStreamingMode(body.length); // sent as it is written, not buffered again
+               connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+               connection.setRequestProperty("Content-Encoding", "gzip");
+               OutputStream out = connection.getOutputStream();
+               try{
+                  out.write(body);
+               }
+               finally{
+                  out.close();
+               }
+               result.bytesSent += body.length;
+            }
+            
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_OK){
+               byte[] response = readFully(connection.getInputStream());
+               result.bytesReceived += response.length;
+               Metrics.stop("sync." + method, start);
+               return "gzip".equals(connection.getContentEncoding()) ? gunzip(response) : response;
+            }
+            
+            failure = new IOException(method + " " + url + ": HTTP " + status);
+            if (status != 429 && status < 500)
+               throw failure; // a request the server won't take won't be taken on a retry either
+            retryAfter = retryAfterMillis(connection.getHeaderField("Retry-After"));
+         }
+         catch (IOException e){
+            if (e == failure)
+               throw e;
+            failure = e;
+         }
+         finally{
+            connection.disconnect();
+         }
+         
+         if (attempt == MAX_ATTEMPTS)
+            throw failure;
+         long wait = Math.max(retryAfter, backoff / 2 + (long) (random.nextDouble() * (backoff / 2)));
+         backoff = Math.min(backoff * 2, maxBackoffMillis);
+         try{
+            Thread.sleep(wait);
+         }
+         catch (InterruptedException e){
+            throw new InterruptedIOException("sync interrupted");
+         }
+      }
+   }
+   
+   // a Retry-After of delay-seconds (the HTTP-date form isn't used by the directory), 0 if there is none
+   private static long retryAfterMillis(String retryAfter){
+      if (retryAfter == null)
+         return 0;
+      try{
+         return Long.parseLong(retryAfter.trim()) * 1000;
+      }
+      catch (NumberFormatException e){
+         return 0;
+      }
+   }
+   
+   // (package private for MockSyncServer, as are utf8 and gunzip)
+   static byte[] readFully(InputStream in) throws IOException{
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      try{
+         int read;
+         while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+      }
+      finally{
+         in.close();
+      }
+      return out.toByteArray();
+   }
+   
+   static byte[] gunzip(byte[] compressed) throws IOException{
+      return readFully(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+   }
+   
+   static Reader utf8(byte[] json) throws IOException{
+      return new InputStreamReader(new ByteArrayInputStream(json), "UTF-8");
+   }
+   
+   
+   // sync_state
+   
+   private String getState(String name){
+      Cursor cursor = db.rawQuery("SELECT value FROM sync_state WHERE name = ?", new String[] {name});
+      try{
+         return cursor.moveToFirst() ? cursor.getString(0) : null;
+      }
+      finally{
+         cursor.close();
+      }
+   }
+   
+   private void setState(String name, String value){
+      db.execSQL("INSERT OR REPLACE INTO sync_state (name, value) VALUES (?, ?)", new Object[] {name, value});
+   }
+   
+   // identifies this database to the server, which leaves the changes we pushed out of what we pull (we have them already)
+   private String getClientId(){
+      String client = getState("client_id");
+      if (client == null){
+         client = UUID.randomUUID().toString();
+         setState("client_id", client);
+      }
+      return client;
+   }
+   
+   
+   // one contact as sent either way: {"id": sync_id, "version" or "base_version": n, "updated_at": ms, "deleted": true/false,
+   // and unless deleted "name", "email", "phone", "street", "city" (strings or null) and "favourite" (true/false)}
+   static class Change{
+      String syncId;
+      long version; 		// the server's version of the row (a pushed change: the version it is based on)
+      long updatedAt;
+      boolean deleted;
+      String name, email, phone, street, city;
+      boolean favourite;
+      long localId; 		// _id of a pushed row (not sent)
+      
+      void write(JsonWriter writer, String versionName) throws IOException{
+         writer.beginObject();
+         writer.name("id").value(syncId);
+         writer.name(versionName).value(version);
+         writer.name("updated_at").value(updatedAt);
+         writer.name("deleted").value(deleted);
+         if (!deleted){
+            writeString(writer, "name", name);
+            writeString(writer, "email", email);
+            writeString(writer, "phone", phone);
+            writeString(writer, "street", street);
+            writeString(writer, "city", city);
+            writer.name("favourite").value(favourite);
+         }
+         writer.endObject();
+      }
+      
+      private static void writeString(JsonWriter writer, String name, String value) throws IOException{
+         writer.name(name);
+         if (value == null)
+            writer.nullValue();
+         else
+            writer.value(value);
+      }
+      
+      static Change read(JsonReader reader) throws IOException{
+         Change change = new Change();
+         reader.beginObject();
+         while (reader.hasNext()){
+            String name = reader.nextName();
+            if (name.equals("id"))
+               change.syncId = reader.nextString();
+            else if (name.equals("version") || name.equals("base_version"))
+               change.version = reader.nextLong();
+            else if (name.equals("updated_at"))
+               change.updatedAt = reader.nextLong();
+            else if (name.equals("deleted"))
+               change.deleted = reader.nextBoolean();
+            else if (name.equals("favourite"))
+               change.favourite = reader.nextBoolean();
+            else if (name.equals("name"))
+               change.name = readString(reader);
+            else if (name.equals("email"))
+               change.email = readString(reader);
+            else if (name.equals("phone"))
+               change.phone = readString(reader);
+            else if (name.equals("street"))
+               change.street = readString(reader);
+            else if (name.equals("city"))
+               change.city = readString(reader);
+            else
+               reader.skipValue();
+         }
+         reader.endObject();
+         if (change.syncId == null)
+            throw new IOException("change without an id");
+         return change;
+      }
+      
+      private static String readString(JsonReader reader) throws IOException{
+         if (reader.peek() == JsonToken.NULL){
+            reader.nextNull();
+            return null;
+         }
+         return reader.nextString();
+      }
+   }
+}
@@ -0,0 +1,226 @@
+// TagFilter.java
+// A filter on the contacts' tags typed by the user, e.g.
+//    team AND (vic OR nsw) AND NOT "former customer"
+// parsed once into a tree that TagIndex evaluates against its bitmaps. AND binds tighter than OR and NOT tighter than both,
+// adjacent terms are ANDed (team vic is team AND vic), & | ! may be used for AND OR NOT, a name with spaces or any of ( ) & | ! "
+// in it is quoted. Names are matched ignoring case as the tags table does, favourite means the favourite contacts.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public abstract class TagFilter{
+   public static final String FAVOURITE = "favourite"; 	// the name that stands for the favourites (not a tag)
+   
+   private String expression; 							// as typed, set on the root of the tree by parse(...)
+   
+   TagFilter(){} // only the nested classes below
+   
+   // the contacts this filter matches, with TagIndex's lock held (the result may be one of TagIndex's own bitmaps)
+   abstract ContactBitmap evaluate();
+   
+   // the tag names this filter refers to (not favourite), to check they exist
+   abstract void addNames(List<String> names);
+   
+   public List<String> getNames(){
+      List<String> names = new ArrayList<String>();
+      addNames(names);
+      return names;
+   }
+   
+   // the expression this filter was parsed from
+   @Override
+   public String toString(){
+      return expression;
+   }
+   
+   // throws an IllegalArgumentException saying what is wrong if expression isn't a well formed filter
+   public static TagFilter parse(String expression){
+      Parser parser = new Parser(expression);
+      TagFilter filter = parser.parseOr();
+      if (parser.token != null)
+         throw new IllegalArgumentException("unexpected " + parser.token);
+      filter.expression = expression.trim();
+      return filter;
+   }
+   
+   
+   // recursive descent over the tokens, one token of lookahead
+   private static class Parser{
+      private final String text;
+      private int position;
+      String token; 		// the current token: a name, AND, OR, NOT, ( or ), null at the end
+      boolean quoted; 	// token was a quoted name (so "and" is a name, not AND)
+      
+      Parser(String text){
+         this.text = text;
+         next();
+      }
+      
+      // or := and (OR and)*
+      TagFilter parseOr(){
+         TagFilter filter = parseAnd();
+         while (isOperator("OR")){
+            next();
+            filter = new Or(filter, parseAnd());
+         }
+         return filter;
+      }
+      
+      // and := not ((AND)? not)*
+      TagFilter parseAnd(){
+         TagFilter filter = parseNot();
+         while (token != null && !isOperator("OR") && !isOperator(")")){
+            if (isOperator("AND"))
+               next();
+            filter = new And(filter, parseNot());
+         }
+         return filter;
+      }
+      
+      // not := NOT not | ( or ) | name
+      TagFilter parseNot(){
+         if (token == null)
+            throw new IllegalArgumentException("a tag name is missing at the end");
+         if (isOperator("NOT")){
+            next();
+            return new Not(parseNot());
+         }
+         if (isOperator("(")){
+            next();
+            TagFilter filter = parseOr();
+            if (!isOperator(")"))
+               throw new IllegalArgumentException("a ) is missing");
+            next();
+            return filter;
+         }
+         if (!quoted && (isOperator("AND") || isOperator("OR") || isOperator(")")))
+            throw new IllegalArgumentException("a tag name is missing before " + token);
+         
+         String name = token;
+         next();
+         return new Tag(name, !quoted && name.equalsIgnoreCase(FAVOURITE));
+      }
+      
+      private boolean isOperator(String operator){
+         return !quoted && operator.equalsIgnoreCase(token);
+      }
+      
+      // reads the next token, the symbols are turned into the words they stand for
+      void next(){
+         while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+            position++;
+         quoted = false;
+         if (position == text.length()){
+            token = null;
+            return;
+         }
+         
+         char c = text.charAt(position);
+         if (c == '(' || c == ')'){
+            token = String.valueOf(c);
+            position++;
+         }
+         else if (c == '&' || c == '|' || c == '!'){
+            token = (c == '&') ? "AND" : (c == '|') ? "OR" : "NOT";
+            position++;
+         }
+         else if (c == '"'){
+            int end = text.indexOf('"', position + 1);
+            if (end < 0)
+               throw new IllegalArgumentException("a closing \" is missing");
+            token = text.substring(position + 1, end);
+            quoted = true;
+            position = end + 1;
+         }
+         else{
+            int start = position;
+            while (position < text.length() && !Character.isWhitespace(text.charAt(position)) && "()&|!\"".indexOf(text.charAt(position)) < 0)
+               position++;
+            token = text.substring(start, position);
+         }
+      }
+   }
+   
+   private static class Tag extends TagFilter{
+      final String name;
+      final boolean favourite;
+      
+      Tag(String name, boolean favourite){
+         this.name = name;
+         this.favourite = favourite;
+      }
+      
+      @Override
+      ContactBitmap evaluate(){
+         return favourite ? TagIndex.favourites() : TagIndex.members(name);
+      }
+      
+      @Override
+      void addNames(List<String> names){
+         if (!favourite)
+            names.add(name);
+      }
+   }
+   
+   private static class Not extends TagFilter{
+      final TagFilter operand;
+      
+      Not(TagFilter operand){
+         this.operand = operand;
+      }
+      
+      @Override
+      ContactBitmap evaluate(){
+         return TagIndex.all().andNot(operand.evaluate());
+      }
+      
+      @Override
+      void addNames(List<String> names){
+         operand.addNames(names);
+      }
+   }
+   
+   private static class And extends TagFilter{
+      final TagFilter left, right;
+      
+      And(TagFilter left, TagFilter right){
+         this.left = left;
+         this.right = right;
+      }
+      
+      @Override
+      ContactBitmap evaluate(){
+         // a NOT on the right is this AND NOT that, without building the complement of that first
+         if (right instanceof Not)
+            return left.evaluate().andNot(((Not) right).operand.evaluate());
+         return left.evaluate().and(right.evaluate());
+      }
+      
+      @Override
+      void addNames(List<String> names){
+         left.addNames(names);
+         right.addNames(names);
+      }
+   }
+   
+   private static class Or extends TagFilter{
+      final TagFilter left, right;
+      
+      Or(TagFilter left, TagFilter right){
+         this.left = left;
+         this.right = right;
+      }
+      
+      @Override
+      ContactBitmap evaluate(){
+         return left.evaluate().or(right.evaluate());
+      }
+      
+      @Override
+      void addNames(List<String> names){
+         left.addNames(names);
+         right.addNames(names);
+      }
+   }
+}
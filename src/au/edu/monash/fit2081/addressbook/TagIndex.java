@@ -0,0 +1,258 @@
+// TagIndex.java
+// Process wide in-memory index of the contacts' tags (see DatabaseConnector.tagContacts): a ContactBitmap of the _ids having each tag,
+// one of the favourites and one of every contact (for NOT), so a TagFilter such as team AND (vic OR nsw) AND NOT favourite is a few
+// operations on compressed bitmaps, microseconds, rather than a query joining contact_tags once per tag.
+// Built the first time it is needed (one pass over contacts, tags and contact_tags) and from then on kept current by DatabaseConnector:
+// each of its writes calls one of the methods below once it has committed, a bulk write (an import, a merge, a sync) just drops
+// the index to be built again when it is next needed.
+// The build reads without holding the class lock, so the writer thread's updates never wait for it: an update made meanwhile is
+// kept and applied to the new bitmaps before they are swapped in. The updates are idempotent, so one the build has already read
+// does no harm, and a bulk write meanwhile (invalidate()) discards the build.
+package au.edu.monash.fit2081.addressbook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+public final class TagIndex{
+   // guarded by the class lock like the methods below
+   private static Bitmaps index; 				// null until built, and again after invalidate()
+   private static List<Update> pending; 		// updates made while a build is reading (applied to it before it is swapped in), else null
+   private static final Object buildLock = new Object(); // one build at a time, a second caller waits for it (writers never take it)
+   
+   private TagIndex(){} // only static members
+   
+   // the contacts filter matches (a bitmap the caller may keep), call on a database thread since the first call builds the index
+   public static ContactBitmap evaluate(DatabaseConnector databaseConnector, TagFilter filter){
+      while (true){
+         load(databaseConnector);
+         synchronized (TagIndex.class){
+            if (index == null)
+               continue; // invalidated since it was built
+            long start = Metrics.start();
+            ContactBitmap matches = filter.evaluate();
+            if (matches == index.all || matches == index.favourites || index.members.containsValue(matches))
+               matches = matches.copy(); // (a filter of a single tag) the index's own bitmap changes with the next write
+            Metrics.stop("tags.evaluate", start, matches.getCardinality());
+            return matches;
+         }
+      }
+   }
+   
+   // the tags at least one contact has, by name (in name order) with the number of contacts having each
+   public static SortedMap<String, Integer> getTagCounts(DatabaseConnector databaseConnector){
+      while (true){
+         load(databaseConnector);
+         synchronized (TagIndex.class){
+            if (index == null)
+               continue;
+            SortedMap<String, Integer> counts = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, Long> tag : index.tagIds.entrySet()){
+               ContactBitmap tagged = index.members.get(tag.getValue());
+               if (tagged != null && tagged.getCardinality() > 0)
+                  counts.put(tag.getKey(), tagged.getCardinality());
+            }
+            return counts;
+         }
+      }
+   }
+   
+   // for TagFilter.evaluate(), with the lock held (the bitmaps are the index's own, not to be modified)
+   static ContactBitmap all(){
+      return index.all;
+   }
+   
+   static ContactBitmap favourites(){
+      return index.favourites;
+   }
+   
+   // the contacts with the tag called name, none if there is no such tag
+   static ContactBitmap members(String name){
+      Long tagId = index.tagIds.get(name);
+      ContactBitmap tagged = (tagId == null) ? null : index.members.get(tagId);
+      return (tagged == null) ? new ContactBitmap() : tagged;
+   }
+   
+   // builds the index unless it is already built, the reads are made without the class lock
+   private static void load(DatabaseConnector databaseConnector){
+      synchronized (buildLock){
+         synchronized (TagIndex.class){
+            if (index != null)
+               return;
+            pending = new ArrayList<Update>(); // from now on every update is kept for the new bitmaps
+         }
+         
+         Bitmaps built = null;
+         try{
+            built = read(databaseConnector);
+         }
+         finally{
+            synchronized (TagIndex.class){
+               if (built != null && pending != null){ // (pending is null if invalidate() was called meanwhile)
+                  for (Update update : pending)
+                     update.applyTo(built);
+                  index = built;
+               }
+               pending = null;
+            }
+         }
+      }
+   }
+   
+   // reads every contact's id and favourite and every tag and membership into new bitmaps
+   private static Bitmaps read(DatabaseConnector databaseConnector){
+      long start = Metrics.start();
+      SQLiteDatabase db = databaseConnector.getDatabase();
+      Bitmaps built = new Bitmaps();
+      
+      // in rowid order (a walk of the table), so every id is appended to the end of its bitmap
+      Cursor cursor = db.rawQuery("SELECT _id, favourite FROM contacts", null);
+      try{
+         while (cursor.moveToNext()){
+            built.all.add(cursor.getLong(0));
+            if (cursor.getInt(1) == 1)
+               built.favourites.add(cursor.getLong(0));
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      
+      cursor = db.rawQuery("SELECT _id, name FROM tags", null);
+      try{
+         while (cursor.moveToNext())
+            built.tagIds.put(cursor.getString(1), cursor.getLong(0));
+      }
+      finally{
+         cursor.close();
+      }
+      
+      // read straight out of the primary key's index, a tag at a time in contact order
+      cursor = db.rawQuery("SELECT tag_id, contact_id FROM contact_tags ORDER BY tag_id, contact_id", null);
+      try{
+         ContactBitmap tagged = null;
+         long tagId = -1;
+         while (cursor.moveToNext()){
+            if (cursor.getLong(0) != tagId){
+               tagId = cursor.getLong(0);
+               tagged = new ContactBitmap();
+               built.members.put(tagId, tagged);
+            }
+            tagged.add(cursor.getLong(1));
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      
+      Metrics.stop("tags.load", start, built.all.getCardinality());
+      return built;
+   }
+   
+   
+   // called by DatabaseConnector after its writes have committed, nothing to do while the index isn't built (or being built)
+   
+   // a contact was inserted
+   static void contactInserted(final long id, final boolean favourite){
+      update(new Update(){
+         @Override
+         void applyTo(Bitmaps bitmaps){
+            bitmaps.all.add(id);
+            if (favourite)
+               bitmaps.favourites.add(id);
+         }
+      });
+   }
+   
+   // a contact's favourite was (or may have been) written, nothing happens if there is no such contact
+   static void favouriteChanged(long id, boolean favourite){
+      favouriteChanged(new long[] {id}, favourite);
+   }
+   
+   static void favouriteChanged(final long[] ids, final boolean favourite){
+      update(new Update(){
+         @Override
+         void applyTo(Bitmaps bitmaps){
+            for (long id : ids){
+               if (!bitmaps.all.contains(id))
+                  continue;
+               if (favourite)
+                  bitmaps.favourites.add(id);
+               else
+                  bitmaps.favourites.remove(id);
+            }
+         }
+      });
+   }
+   
+   // contacts were deleted, with their tags
+   static void contactsDeleted(final long... ids){
+      update(new Update(){
+         @Override
+         void applyTo(Bitmaps bitmaps){
+            for (long id : ids){
+               bitmaps.all.remove(id);
+               bitmaps.favourites.remove(id);
+               for (ContactBitmap tagged : bitmaps.members.values())
+                  tagged.remove(id);
+            }
+         }
+      });
+   }
+   
+   // tag tagId (called name) was given to (or taken from) those of the contacts that exist
+   static void contactsTagged(final long tagId, final String name, final long[] ids, final boolean tagged){
+      update(new Update(){
+         @Override
+         void applyTo(Bitmaps bitmaps){
+            bitmaps.tagIds.put(name, tagId);
+            ContactBitmap bitmap = bitmaps.members.get(tagId);
+            if (bitmap == null){
+               bitmap = new ContactBitmap();
+               bitmaps.members.put(tagId, bitmap);
+            }
+            for (long id : ids){
+               if (!tagged)
+                  bitmap.remove(id);
+               else if (bitmaps.all.contains(id))
+                  bitmap.add(id);
+            }
+         }
+      });
+   }
+   
+   // any number of contacts may have changed (bulk writes, or a batch that rolled back), the index is built again when next needed
+   // (a build reading now is discarded, it may have read some of the changes but not all)
+   static synchronized void invalidate(){
+      index = null;
+      pending = null;
+   }
+   
+   // applies update to the index if it is built, keeps it for the build if one is reading
+   private static synchronized void update(Update update){
+      if (index != null)
+         update.applyTo(index);
+      else if (pending != null)
+         pending.add(update);
+   }
+   
+   
+   // one write's change to the bitmaps
+   private static abstract class Update{
+      abstract void applyTo(Bitmaps bitmaps);
+   }
+   
+   // the index itself: every contact, the favourites and each tag's contacts
+   private static final class Bitmaps{
+      final ContactBitmap all = new ContactBitmap(), favourites = new ContactBitmap();
+      final Map<Long, ContactBitmap> members = new HashMap<Long, ContactBitmap>(); 	// by tag id
+      // tag ids by name, ignoring case like the tags table does (COLLATE NOCASE)
+      final Map<String, Long> tagIds = new TreeMap<String, Long>(String.CASE_INSENSITIVE_ORDER);
+   }
+}
@@ -7,14 +7,14 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.CheckBox;
+import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class ViewContact extends Activity{
    private long rowID; // selected contact's name
@@ -24,6 +24,10 @@ public class ViewContact extends Activity{
    private CheckBox favouriteCheckBox;
    private TextView streetTextView; // displays contact's street
    private TextView cityTextView; // displays contact's city/state/zip
+   private ImageView photoImageView; // displays contact's photo (if it has one)
+   private long shownVersion = -1; // ContactCache data version of the values on screen (-1 = nothing shown yet)
+   private long version; 			// ContactCache data version when the current load started
+   private ContactRepository repository; // runs the database work (see ContactRepository.java)
 
    // called when the activity is first created
    @Override
@@ -39,10 +43,13 @@ public class ViewContact extends Activity{
       favouriteCheckBox =(CheckBox) findViewById(R.id.favouriteCheckBox);
       streetTextView 	= (TextView) findViewById(R.id.streetTextView);
       cityTextView 		= (TextView) findViewById(R.id.cityTextView);
+      photoImageView 	= (ImageView) findViewById(R.id.photoImageView);
       
       // get the selected contact's unique row ID passed with the Intent that launched this Activity
       Bundle extras = getIntent().getExtras();
       rowID = extras.getLong(AddressBook.ROW_ID); 
+      
+      repository = ContactRepository.getInstance(this);
    }
 
    
@@ -51,58 +58,51 @@ public class ViewContact extends Activity{
    protected void onResume(){
       super.onResume();
       
-      // instantiate a new anonymous LoadContactTask (it's an AsyncTask) and execute it
-      new LoadContactTask().execute(rowID); //rowID is passed and becomes input parameter to doInBackground
+      // nothing to do if no contact has been written since this one was displayed (e.g. back from a cancelled edit)
+      if (shownVersion == ContactCache.getDataVersion())
+         return;
+      
+      version = ContactCache.getDataVersion(); // read first, a write during the load must cause another load next time
+      
+      // get the contact with the given id on a ContactRepository reader thread (normally straight from ContactCache)
+      // the callback runs on the GUI thread once it has been retrieved, unless this Activity has stopped by then (see onStop)
+      repository.getContact(this, rowID, contactLoaded);
    }
    
+   // executes whenever the Activity is completely hidden
+   @Override
+   protected void onStop(){
+      repository.cancel(this); // don't fill in the views of an Activity nobody can see (onResume loads again)
+      
+      super.onStop();
+   }
    
-   // REFER to notes for AsyncTask in AddressBook.java
-   // performs database query outside GUI thread
-   // first generic type is long since execute passes a long to doInBackground, second not used, third Cursor again
-   private class LoadContactTask extends AsyncTask<Long, Object, Cursor>{
-      DatabaseConnector databaseConnector = new DatabaseConnector(ViewContact.this);
-
-      // perform the database access
-      @Override
-      protected Cursor doInBackground(Long... params){ //any number of longs
-         databaseConnector.open();
-         
-         // get a cursor containing all data on given entry
-         return databaseConnector.getOneContact(params[0]); //first and only long passed
-      }
-
-      // use the Cursor returned from the doInBackground method
-      @Override
-      protected void onPostExecute(Cursor result){ // executes on the GUI thread after doInBackground completes
-         super.onPostExecute(result);
    
-         result.moveToFirst(); // move to the first (and only) row, cursor is before the first row initially
+   // use the Contact retrieved by the repository (null if it has been deleted)
+   ContactRepository.Callback<Contact> contactLoaded = new ContactRepository.Callback<Contact>(){
+      @Override
+      public void onResult(Contact result){ // executes on the GUI thread
+         if (result == null){
+            finish(); // the contact no longer exists (e.g. deleted by a sync), nothing to show
+            return;
+         }
    
-         // get the column index for each data item
-         int nameIndex 		= result.getColumnIndex("name");
-         int phoneIndex 	= result.getColumnIndex("phone");
-         int emailIndex 	= result.getColumnIndex("email");
-         int favouriteIndex = result.getColumnIndex("favourite");
-         int streetIndex 	= result.getColumnIndex("street");
-         int cityIndex 		= result.getColumnIndex("city");
-         boolean checked = (result.getInt(favouriteIndex)==1);
          // fill TextViews with the retrieved data
-         nameTextView.setText(result.getString(nameIndex));
-         phoneTextView.setText(result.getString(phoneIndex));
-         emailTextView.setText(result.getString(emailIndex));
-//         if(checked==true)
-//            favouriteCheckBox.setChecked(!favouriteCheckBox.isChecked());
-//         else
-//            favouriteCheckBox.setChecked(false);
-         favouriteCheckBox.setChecked(checked);
-
-         streetTextView.setText(result.getString(streetIndex));
-         cityTextView.setText(result.getString(cityIndex));
-   
-         result.close(); // close the result cursor
-         databaseConnector.close();
+         long start = Metrics.start();
+         nameTextView.setText(result.getName());
+         phoneTextView.setText(result.getPhone());
+         emailTextView.setText(result.getEmail());
+         favouriteCheckBox.setChecked(result.isFavourite());
+         streetTextView.setText(result.getStreet());
+         cityTextView.setText(result.getCity());
+         // decoded off the GUI thread at the ImageView's size (and shown again by AvatarLoader if the photo is changed)
+         AvatarLoader.getInstance(ViewContact.this).load(photoImageView, rowID, 
+            getResources().getDimensionPixelSize(R.dimen.avatar_detail_size));
+         Metrics.stop("viewContact.bind", start);
+         
+         shownVersion = version;
       }
-   } // end inner class
+   };
       
    // create the Activity's menu from a menu resource XML file
    @Override
@@ -125,16 +125,10 @@ public class ViewContact extends Activity{
             // create an Intent to launch the AddEditContact Activity
             Intent addEditContact = new Intent(this, AddEditContact.class);
             
-            // pass the selected contact's data as extras with the Intent
+            // pass only the selected contact's id, AddEditContact reads the contact itself (normally from ContactCache, where this
+            // Activity's load left it) so what it edits is the stored contact, not whatever these TextViews last showed
             addEditContact.putExtra(AddressBook.ROW_ID, rowID); //ROW_ID is public, rowID is class level in this class and set during onCreate
             
-            addEditContact.putExtra("name", nameTextView.getText());
-            addEditContact.putExtra("phone", phoneTextView.getText());
-            addEditContact.putExtra("email", emailTextView.getText());
-            addEditContact.putExtra("favourite",favouriteCheckBox.isChecked());
-            addEditContact.putExtra("street", streetTextView.getText());
-            addEditContact.putExtra("city", cityTextView.getText());
-            
             startActivity(addEditContact); // start the Activity
             
             return true; // handled the event
@@ -160,27 +154,19 @@ public class ViewContact extends Activity{
          {
             @Override
             public void onClick(DialogInterface dialog, int button){
-               // get a DatabaseConnector reference for use in AsyncTask (lack of closure in Java requires final) 
-               final DatabaseConnector databaseConnector = new DatabaseConnector(ViewContact.this);
-
-               // create an AsyncTask that deletes the contact in another thread, then calls finish after the deletion to return to Activity the "intented" this one 
-               // here for the first time we are declaring and instantiating an AsyncTask object in the same statement
-               AsyncTask<Long, Object, Object> deleteTask = new AsyncTask<Long, Object, Object>(){
+               // delete the contact on the repository's writer thread, then call finish after the deletion to return to Activity the "intented" this one 
+               // here for the first time we are declaring and instantiating a callback object in the same statement
+               repository.deleteContact(ViewContact.this, rowID, new ContactRepository.Callback<Void>(){ //rowID is class level and set in onCreate
                      @Override
-                     protected Object doInBackground(Long... params){
-                        databaseConnector.deleteContact(params[0]); 
-                        return null;
-                     }
-
-                     @Override
-                     protected void onPostExecute(Object result){
+                     public void onResult(Void result){
                         finish(); // finish this Activity and return to the Activity which Intent(ed) this one i.e. the AddressBook Activity
                      }
                      
-                  }; // end AsyncTask subclass definition/instantiation (JLS SE7 15.9.1)
-
-               // execute the AsyncTask defined and instantiated above to delete contact at rowID
-               deleteTask.execute(rowID); //one and only long. rowID is class level and set in onCreate               
+                     @Override
+                     public void onError(Exception e){ // the contact is still there, so is this Activity
+                        Toast.makeText(ViewContact.this, R.string.delete_failed, Toast.LENGTH_LONG).show();
+                     }
+                  }); // end callback definition/instantiation (JLS SE7 15.9.1)
             }
          } // end anonymous inner class that defines an instantiates the listener for positive button clicks
       
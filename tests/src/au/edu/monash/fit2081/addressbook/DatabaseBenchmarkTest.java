@@ -0,0 +1,409 @@
+// DatabaseBenchmarkTest.java
+// Benchmark of the DatabaseConnector operations at 1k to 1M contacts: throughput, latency percentiles and allocations per operation
+// plus cold and warm open times, written as JSON so the results of two builds can be compared (e.g. with a diff or a script).
+// Run it on its own, e.g. adb shell am instrument -w -e class au.edu.monash.fit2081.addressbook.DatabaseBenchmarkTest
+// -e label before-change au.edu.monash.fit2081.addressbook.test/android.test.InstrumentationTestRunner, then pull the file it logs
+// with adb. It takes minutes at 1M rows, add e.g. -e sizes 1000,10000 for a quick check.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.JsonWriter;
+import android.util.Log;
+
+@LargeTest
+public class DatabaseBenchmarkTest extends InstrumentationTestCase{
+   private static final String TAG = "DatabaseBenchmarkTest";
+   private static final String BENCHMARK_DATABASE_NAME = "DatabaseBenchmark"; // scratch db, the user's contacts are never touched
+   private static final int[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000}; 	// contacts in the table while the operations are timed
+   private static final int OPERATIONS = 1000; 		// timed calls of each single contact operation per size
+   private static final int WARMUP_OPERATIONS = 100; 	// untimed calls before them (JIT, statement and page cache)
+   private static final int LIST_READS = 5; 			// timed full reads of the list per size (each one reads every row)
+   private static final int OPENS = 5; 				// timed warm opens per size
+   private static final String CITY = "Clayton VIC 3800"; 	// every contact's
+   
+   private Context context; 		// the App's (the scratch database and the results are written in its directories)
+   private File databaseFile;
+   private final Random random = new Random(2081); 	// fixed seed, every run touches the same rows
+   
+   @Override
+   protected void setUp() throws Exception{
+      super.setUp();
+      context = getInstrumentation().getTargetContext();
+      databaseFile = context.getDatabasePath(BENCHMARK_DATABASE_NAME);
+   }
+   
+   @Override
+   protected void tearDown() throws Exception{
+      SQLiteDatabase.deleteDatabase(databaseFile); // also removes the -wal and -shm files
+      super.tearDown();
+   }
+   
+   // runs the benchmark and writes the results to a JSON file in the App's external files directory
+   // the label (e.g. a commit id, "-e label ...", default "latest") is recorded in the results and used in the file name
+   // the sizes ("-e sizes ..." comma separated, default DEFAULT_SIZES) are the contacts in the table while the operations are timed
+   public void testBenchmark() throws IOException{
+      Bundle arguments = (getInstrumentation() instanceof InstrumentationTestRunner) ? 
+         ((InstrumentationTestRunner) getInstrumentation()).getArguments() : null;
+      String label = (arguments != null && arguments.getString("label") != null) ? arguments.getString("label") : "latest";
+      int[] sizes = DEFAULT_SIZES;
+      if (arguments != null && arguments.getString("sizes") != null){
+         String[] values = arguments.getString("sizes").split(",");
+         sizes = new int[values.length];
+         for (int i = 0; i < values.length; i++)
+            sizes[i] = Integer.parseInt(values[i].trim());
+      }
+      
+      File results = run(label, sizes);
+      assertTrue("no results written to " + results, results.length() > 0);
+   }
+   
+   // returns the JSON file the results were written to
+   private File run(String label, int... sizes) throws IOException{
+      File results = new File(context.getExternalFilesDir(null), "benchmark-" + label + ".json");
+      JsonWriter json = new JsonWriter(new FileWriter(results));
+      json.setIndent("  ");
+      
+      try{
+         json.beginObject();
+         json.name("label").value(label);
+         json.name("timestamp").value(System.currentTimeMillis());
+         json.name("device").value(Build.MANUFACTURER + " " + Build.MODEL);
+         json.name("sdk").value(Build.VERSION.SDK_INT);
+         json.name("schemaVersion").value(DatabaseConnector.DATABASE_VERSION);
+         json.name("sizes").beginArray();
+         
+         for (int rows : sizes){
+            Log.i(TAG, "benchmarking " + rows + " contacts");
+            json.beginObject();
+            json.name("rows").value(rows);
+            runSize(json, rows);
+            json.endObject();
+         }
+         
+         json.endArray();
+         json.endObject();
+      }
+      finally{
+         json.close();
+      }
+      
+      Log.i(TAG, "results written to " + results);
+      return results;
+   }
+   
+   // fills a fresh scratch database with rows contacts then times each operation against it
+   private void runSize(JsonWriter json, int rows) throws IOException{
+      SQLiteDatabase.deleteDatabase(databaseFile);
+      databaseFile.getParentFile().mkdirs();
+      
+      // the same helper (so the same schema, indexes and triggers) as DatabaseConnector
+      DatabaseConnector.DatabaseOpenHelper helper = newHelper();
+      SQLiteDatabase db = helper.getWritableDatabase();
+      populate(db, rows);
+      helper.close();
+      
+      // cold: the first open of the file in this process after it was written, warm: opening it again (SQLite and OS caches filled)
+      // each open includes a first query since a connection does some of its work lazily
+      json.name("coldOpen");
+      writeStats(json, new long[] {timeOpen()}, 0, 0);
+      long[] warmOpens = new long[OPENS];
+      for (int i = 0; i < OPENS; i++)
+         warmOpens[i] = timeOpen();
+      json.name("warmOpen");
+      writeStats(json, warmOpens, 0, 0);
+      
+      // every operation is a call of the DatabaseConnector method the App makes (with its transaction, statement locks, duplicate
+      // check, TagIndex, ContactCache and Metrics work), the connectors are pointed at the scratch database meanwhile
+      helper = newHelper();
+      DatabaseConnector.DatabaseOpenHelper appHelper = DatabaseConnector.swapOpenHelper(helper);
+      DatabaseConnector databaseConnector = new DatabaseConnector(context);
+      databaseConnector.open();
+      
+      try{
+         json.name("operations").beginObject();
+         
+         // each operation is timed one call at a time, as the App makes them
+         long[] insertedIds = new long[OPERATIONS];
+         for (int pass = 0; pass < 2; pass++){ // pass 0 warms up, pass 1 is timed
+            int operations = (pass == 0) ? WARMUP_OPERATIONS : OPERATIONS;
+            Timer timer = new Timer(operations);
+            for (int i = 0; i < operations; i++){
+               int n = rows + i;
+               timer.start();
+               insertedIds[i] = databaseConnector.insertContact(name(n), email(n), favourite(n), phone(n), street(n), CITY);
+               timer.stop();
+            }
+            if (pass == 1){
+               json.name("insertContact");
+               timer.write(json);
+            }
+            else
+               for (int i = 0; i < operations; i++)
+                  databaseConnector.deleteContact(insertedIds[i]);
+         }
+         
+         for (int pass = 0; pass < 2; pass++){
+            int operations = (pass == 0) ? WARMUP_OPERATIONS : OPERATIONS;
+            Timer timer = new Timer(operations);
+            for (int i = 0; i < operations; i++){
+               long id = 1 + random.nextInt(rows);
+               int n = random.nextInt(rows);
+               timer.start();
+               databaseConnector.updateContact(id, name(n), email(n), favourite(n), phone(n), street(n), CITY);
+               timer.stop();
+            }
+            if (pass == 1){
+               json.name("updateContact");
+               timer.write(json);
+            }
+         }
+         
+         for (int pass = 0; pass < 2; pass++){
+            int operations = (pass == 0) ? WARMUP_OPERATIONS : OPERATIONS;
+            Timer timer = new Timer(operations);
+            for (int i = 0; i < operations; i++){
+               long id = 1 + random.nextInt(rows);
+               timer.start();
+               // plus what ViewContact does with the Cursor: read every column of the row
+               Cursor cursor = databaseConnector.getOneContact(id);
+               try{
+                  if (cursor.moveToFirst())
+                     for (int column = 0; column < cursor.getColumnCount(); column++)
+                        cursor.getString(column);
+               }
+               finally{
+                  cursor.close();
+               }
+               timer.stop();
+            }
+            if (pass == 1){
+               json.name("getOneContact");
+               timer.write(json);
+            }
+         }
+         
+         // random ids, so mostly ContactCache misses (as for a list scrolled through a large table)
+         for (int pass = 0; pass < 2; pass++){
+            int operations = (pass == 0) ? WARMUP_OPERATIONS : OPERATIONS;
+            Timer timer = new Timer(operations);
+            for (int i = 0; i < operations; i++){
+               long id = 1 + random.nextInt(rows);
+               timer.start();
+               databaseConnector.getContact(id);
+               timer.stop();
+            }
+            if (pass == 1){
+               json.name("getContact");
+               timer.write(json);
+            }
+         }
+         
+         // a caller lookup, the number in international format so it has to be matched on its trailing digits
+         for (int pass = 0; pass < 2; pass++){
+            int operations = (pass == 0) ? WARMUP_OPERATIONS : OPERATIONS;
+            Timer timer = new Timer(operations);
+            for (int i = 0; i < operations; i++){
+               String number = "+61 400 " + (100000 + random.nextInt(rows));
+               timer.start();
+               databaseConnector.findByPhone(number);
+               timer.stop();
+            }
+            if (pass == 1){
+               json.name("findByPhone");
+               timer.write(json);
+            }
+         }
+         
+         // the whole list, every row moved to and read as an adapter would when scrolled to the end
+         Timer listTimer = new Timer(LIST_READS);
+         for (int i = 0; i < LIST_READS + 1; i++){ // the first read warms up
+            if (i > 0)
+               listTimer.start();
+            Cursor cursor = databaseConnector.getAllContacts();
+            try{
+               while (cursor.moveToNext()){
+                  cursor.getLong(0);
+                  cursor.getString(1);
+                  cursor.getInt(2);
+               }
+            }
+            finally{
+               cursor.close();
+            }
+            if (i > 0)
+               listTimer.stop();
+         }
+         json.name("getAllContacts");
+         listTimer.write(json);
+         
+         // deletes the contacts inserted by the timed inserts so the table is back to rows contacts
+         Timer deleteTimer = new Timer(OPERATIONS);
+         for (int i = 0; i < OPERATIONS; i++){
+            deleteTimer.start();
+            databaseConnector.deleteContact(insertedIds[i]);
+            deleteTimer.stop();
+         }
+         json.name("deleteContact");
+         deleteTimer.write(json);
+         assertEquals("contacts left after the timed deletes", rows, DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), "contacts"));
+         
+         json.endObject();
+      }
+      finally{
+         databaseConnector.close();
+         DatabaseConnector.swapOpenHelper(appHelper);
+         helper.close();
+         forgetScratchContacts();
+      }
+   }
+   
+   // nanoseconds to open the scratch database through a DatabaseConnector (compiling its statements) and read the first row of the list
+   private long timeOpen(){
+      DatabaseConnector.DatabaseOpenHelper helper = newHelper();
+      long start = System.nanoTime();
+      DatabaseConnector.DatabaseOpenHelper appHelper = DatabaseConnector.swapOpenHelper(helper);
+      DatabaseConnector databaseConnector = new DatabaseConnector(context);
+      databaseConnector.open();
+      Cursor cursor = databaseConnector.getAllContacts();
+      cursor.moveToFirst();
+      cursor.close();
+      long elapsed = System.nanoTime() - start;
+      
+      databaseConnector.close();
+      DatabaseConnector.swapOpenHelper(appHelper);
+      helper.close();
+      return elapsed;
+   }
+   
+   // the scratch contacts' writes went through ContactCache and TagIndex like the App's, so both forget them (they are rebuilt
+   // from the App's database as they are next needed)
+   private static void forgetScratchContacts(){
+      TagIndex.invalidate();
+      ContactCache.contactsChanged();
+   }
+   
+   private DatabaseConnector.DatabaseOpenHelper newHelper(){
+      return new DatabaseConnector.DatabaseOpenHelper(context, BENCHMARK_DATABASE_NAME, null, DatabaseConnector.DATABASE_VERSION);
+   }
+   
+   // inserts rows contacts in DatabaseConnector.DEFAULT_BATCH_SIZE transactions, straight into the table (the setup, not timed)
+   private static void populate(SQLiteDatabase db, int rows){
+      SQLiteStatement insert = db.compileStatement(DatabaseConnector.INSERT_SQL);
+      try{
+         for (int start = 0; start < rows; start += DatabaseConnector.DEFAULT_BATCH_SIZE){
+            db.beginTransaction();
+            try{
+               for (int n = start; n < Math.min(rows, start + DatabaseConnector.DEFAULT_BATCH_SIZE); n++){
+                  bindContact(insert, n);
+                  insert.executeInsert();
+               }
+               db.setTransactionSuccessful();
+            }
+            finally{
+               db.endTransaction();
+            }
+         }
+      }
+      finally{
+         insert.close();
+      }
+   }
+   
+   private static void bindContact(SQLiteStatement statement, int n){
+      DatabaseConnector.bindContact(statement, name(n), email(n), favourite(n), phone(n), street(n), CITY); // binds parameters 1 to 7
+   }
+   
+   // contact n, names spread over the alphabet so the list index is not just appended to
+   private static String name(int n){
+      return (char) ('A' + n * 7 % 26) + "ontact " + n;
+   }
+   
+   private static String email(int n){
+      return "contact" + n + "@example.com";
+   }
+   
+   private static boolean favourite(int n){
+      return n % 10 == 0;
+   }
+   
+   private static String phone(int n){
+      return "0400 " + (100000 + n);
+   }
+   
+   private static String street(int n){
+      return n + " Example Street";
+   }
+   
+   // writes {count, opsPerSecond, p50, p90, p99 and max (microseconds), allocations and bytesAllocated (per operation)}
+   private static void writeStats(JsonWriter json, long[] nanos, long allocations, long bytesAllocated) throws IOException{
+      long[] sorted = nanos.clone();
+      Arrays.sort(sorted);
+      long total = 0;
+      for (long n : sorted)
+         total += n;
+      
+      json.beginObject();
+      json.name("count").value(sorted.length);
+      json.name("opsPerSecond").value(total == 0 ? 0 : sorted.length * 1e9 / total);
+      json.name("p50Micros").value(percentile(sorted, 50) / 1000.0);
+      json.name("p90Micros").value(percentile(sorted, 90) / 1000.0);
+      json.name("p99Micros").value(percentile(sorted, 99) / 1000.0);
+      json.name("maxMicros").value(sorted[sorted.length - 1] / 1000.0);
+      json.name("allocationsPerOp").value((double) allocations / sorted.length);
+      json.name("bytesPerOp").value((double) bytesAllocated / sorted.length);
+      json.endObject();
+   }
+   
+   // nearest rank percentile of sorted values
+   private static long percentile(long[] sorted, int percent){
+      int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+      return sorted[Math.max(0, rank - 1)];
+   }
+   
+   // records the duration of each timed call and the objects allocated by this thread during them
+   private static class Timer{
+      private final long[] nanos;
+      private int count;
+      private long started;
+      private long allocations, bytesAllocated;
+      private int allocationsAtStart, bytesAtStart;
+      
+      Timer(int operations){
+         nanos = new long[operations];
+      }
+      
+      void start(){
+         Debug.startAllocCounting(); // (counts are per thread, only this thread's allocations are counted)
+         allocationsAtStart = Debug.getThreadAllocCount();
+         bytesAtStart = Debug.getThreadAllocSize();
+         started = System.nanoTime();
+      }
+      
+      void stop(){
+         nanos[count++] = System.nanoTime() - started;
+         allocations += Debug.getThreadAllocCount() - allocationsAtStart;
+         bytesAllocated += Debug.getThreadAllocSize() - bytesAtStart;
+         Debug.stopAllocCounting();
+      }
+      
+      void write(JsonWriter json) throws IOException{
+         writeStats(json, Arrays.copyOf(nanos, count), allocations, bytesAllocated);
+      }
+   }
+}
@@ -0,0 +1,274 @@
+// MockSyncServer.java
+// In-process stand-in for the central directory's sync API (see SyncEngine for the protocol) so a sync can be run end to end
+// without a network: a minimal HTTP/1.1 server on a loopback port, one connection at a time, keeping the directory in memory.
+// Each row has the version of the directory's clock that last wrote it, a deleted row stays as a tombstone so it can be pulled.
+// failNext(...) makes the next requests fail, to exercise SyncEngine's retries.
+// Used by SyncTest, it is not part of the App.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+public class MockSyncServer{
+   private static final String TAG = "MockSyncServer";
+   
+   private final ServerSocket serverSocket;
+   private final Thread thread;
+   
+   // guarded by this
+   private final Map<String, SyncEngine.Change> rows = new HashMap<String, SyncEngine.Change>(); 	// by sync id
+   private final Map<String, String> writers = new HashMap<String, String>(); 	// client that wrote each row's current version
+   private final TreeMap<Long, String> byVersion = new TreeMap<Long, String>(); 	// sync id of each row's current version
+   private long clock; 		// the latest version
+   private int failuresLeft, failureStatus;
+   private int requests, changesSent, changesReceived;
+   
+   // starts serving on a free port
+   public MockSyncServer() throws IOException{
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      thread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+               while (!serverSocket.isClosed()){
+                  try{
+                     Socket socket = serverSocket.accept();
+                     try{
+                        serve(socket);
+                     }
+                     finally{
+                        socket.close();
+                     }
+                  }
+                  catch (IOException e){
+                     if (!serverSocket.isClosed())
+                        Log.w(TAG, "request failed", e);
+                  }
+               }
+            }
+         }, TAG);
+      thread.start();
+   }
+   
+   // the base URL to give SyncEngine
+   public URL getUrl(){
+      try{
+         return new URL("http", "127.0.0.1", serverSocket.getLocalPort(), "/");
+      }
+      catch (MalformedURLException e){
+         throw new AssertionError(e);
+      }
+   }
+   
+   public void close() throws IOException{
+      serverSocket.close();
+      try{
+         thread.join();
+      }
+      catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }
+   
+   // the next count requests are answered with status (e.g. 503) and not carried out
+   public synchronized void failNext(int count, int status){
+      failuresLeft = count;
+      failureStatus = status;
+   }
+   
+   // requests received, including failed ones
+   public synchronized int getRequests(){
+      return requests;
+   }
+   
+   // changes sent to (pulled by) and received from (pushed by) the clients
+   public synchronized int getChangesSent(){
+      return changesSent;
+   }
+   
+   public synchronized int getChangesReceived(){
+      return changesReceived;
+   }
+   
+   // rows not deleted
+   public synchronized int size(){
+      int size = 0;
+      for (SyncEngine.Change row : rows.values())
+         if (!row.deleted)
+            size++;
+      return size;
+   }
+   
+   
+   private void serve(Socket socket) throws IOException{
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      String[] requestLine = readLine(in).split(" ");
+      int contentLength = 0;
+      boolean gzipped = false;
+      String header;
+      while ((header = readLine(in)).length() > 0){
+         int colon = header.indexOf(':');
+         if (colon < 0)
+            continue;
+         String name = header.substring(0, colon).trim(), value = header.substring(colon + 1).trim();
+         if (name.equalsIgnoreCase("Content-Length"))
+            contentLength = Integer.parseInt(value);
+         else if (name.equalsIgnoreCase("Content-Encoding"))
+            gzipped = value.equalsIgnoreCase("gzip");
+      }
+      byte[] body = new byte[contentLength];
+      for (int read = 0; read < contentLength; ){
+         int n = in.read(body, read, contentLength - read);
+         if (n < 0)
+            throw new IOException("request body cut short");
+         read += n;
+      }
+      if (gzipped)
+         body = SyncEngine.gunzip(body);
+      
+      int status = 200;
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      synchronized (this){
+         requests++;
+         String method = requestLine[0], target = (requestLine.length > 1) ? requestLine[1] : "";
+         int question = target.indexOf('?');
+         Map<String, String> query = parseQuery((question < 0) ? "" : target.substring(question + 1));
+         String path = (question < 0) ? target : target.substring(0, question);
+         if (failuresLeft > 0){
+            failuresLeft--;
+            status = failureStatus;
+         }
+         else if (method.equals("GET") && path.equals("/changes"))
+            pull(query, response);
+         else if (method.equals("POST") && path.equals("/changes"))
+            push(body, query.get("client"), response);
+         else
+            status = 404;
+      }
+      
+      OutputStream out = socket.getOutputStream();
+      String head = "HTTP/1.1 " + status + " " + ((status == 200) ? "OK" : "Error") + "\r\n" +
+         "Content-Type: application/json; charset=utf-8\r\n" +
+         ((status == 200) ? "Content-Encoding: gzip\r\n" : "") +
+         "Content-Length: " + response.size() + "\r\n" +
+         "Connection: close\r\n\r\n";
+      out.write(head.getBytes("ISO-8859-1"));
+      response.writeTo(out);
+      out.flush();
+   }
+   
+   // GET changes?since=&limit=&client=: the rows written after version since (except by client), oldest first, at most limit
+   private void pull(Map<String, String> query, ByteArrayOutputStream response) throws IOException{
+      long since = Long.parseLong(query.get("since"));
+      int limit = Integer.parseInt(query.get("limit"));
+      String client = query.get("client");
+      
+      JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(response), "UTF-8"));
+      writer.beginObject().name("changes").beginArray();
+      long token = since;
+      int count = 0;
+      boolean more = false;
+      for (Map.Entry<Long, String> entry : byVersion.tailMap(since, false).entrySet()){
+         if (count == limit){
+            more = true;
+            break;
+         }
+         token = entry.getKey();
+         if (client != null && client.equals(writers.get(entry.getValue())))
+            continue; // the client has this version already, it wrote it
+         rows.get(entry.getValue()).write(writer, "version");
+         count++;
+      }
+      if (!more)
+         token = Math.max(token, clock); // (the client is up to date)
+      writer.endArray();
+      writer.name("token").value(String.valueOf(token));
+      writer.name("more").value(more);
+      writer.endObject();
+      writer.close();
+      changesSent += count;
+   }
+   
+   // POST changes?client=: each change is applied if based on the row's current version (a new row's is 0), otherwise it is a conflict
+   // and the row's current version is sent back instead
+   private void push(byte[] body, String client, ByteArrayOutputStream response) throws IOException{
+      JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(response), "UTF-8"));
+      writer.beginObject().name("results").beginArray();
+      JsonReader reader = new JsonReader(SyncEngine.utf8(body));
+      reader.beginObject();
+      while (reader.hasNext()){
+         String name = reader.nextName();
+         if (!name.equals("changes")){
+            reader.skipValue();
+            continue;
+         }
+         reader.beginArray();
+         while (reader.hasNext()){
+            SyncEngine.Change change = SyncEngine.Change.read(reader);
+            changesReceived++;
+            SyncEngine.Change current = rows.get(change.syncId);
+            writer.beginObject().name("id").value(change.syncId);
+            if (current == null || current.version == change.version){
+               if (current != null)
+                  byVersion.remove(current.version);
+               change.version = ++clock;
+               rows.put(change.syncId, change);
+               byVersion.put(change.version, change.syncId);
+               writers.put(change.syncId, client);
+               writer.name("status").value("applied").name("version").value(change.version);
+            }
+            else{
+               writer.name("status").value("conflict").name("current");
+               current.write(writer, "version");
+            }
+            writer.endObject();
+         }
+         reader.endArray();
+      }
+      reader.endObject();
+      reader.close();
+      writer.endArray().endObject();
+      writer.close();
+   }
+   
+   private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException{
+      Map<String, String> parameters = new HashMap<String, String>();
+      for (String parameter : query.split("&")){
+         int equals = parameter.indexOf('=');
+         if (equals > 0)
+            parameters.put(parameter.substring(0, equals), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+      }
+      return parameters;
+   }
+   
+   // one CRLF terminated line of the request head (without the CRLF)
+   private static String readLine(InputStream in) throws IOException{
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != '\n'){
+         if (c < 0)
+            throw new IOException("request cut short");
+         if (c != '\r')
+            line.append((char) c);
+      }
+      return line.toString();
+   }
+}
@@ -0,0 +1,51 @@
+// QueryPlanTest.java
+// Checks (with EXPLAIN QUERY PLAN) that the contact list queries are answered from contacts_list_index without a sort.
+package au.edu.monash.fit2081.addressbook;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class QueryPlanTest extends AndroidTestCase{
+   private static final String TAG = "QueryPlanTest";
+   private static final String COLUMNS = "_id, name, favourite"; // DatabaseConnector.LIST_COLUMNS
+   
+   private DatabaseConnector databaseConnector;
+   
+   @Override
+   protected void setUp() throws Exception{
+      super.setUp();
+      databaseConnector = new DatabaseConnector(getContext()); // the App's own database (only read)
+      databaseConnector.open(); // runs DatabaseOpenHelper.onUpgrade first if the db is still an older version
+   }
+   
+   @Override
+   protected void tearDown() throws Exception{
+      databaseConnector.close();
+      super.tearDown();
+   }
+   
+   // getAllContacts() and the first page of getContactsPage(...)
+   public void testFirstPageUsesListIndex(){
+      checkPlan("SELECT " + COLUMNS + " FROM contacts ORDER BY " + DatabaseConnector.LIST_ORDER);
+   }
+   
+   // any later page of getContactsPage(...)
+   public void testLaterPageUsesListIndex(){
+      checkPlan("SELECT " + COLUMNS + " FROM contacts WHERE " + DatabaseConnector.PAGE_WHERE + 
+         " ORDER BY " + DatabaseConnector.LIST_ORDER + " LIMIT 100");
+   }
+   
+   // a later page after a contact with no name
+   public void testPageAfterNullNameUsesListIndex(){
+      checkPlan("SELECT " + COLUMNS + " FROM contacts WHERE " + DatabaseConnector.PAGE_AFTER_NULL_WHERE + 
+         " ORDER BY " + DatabaseConnector.LIST_ORDER + " LIMIT 100");
+   }
+   
+   // fails if the query needs a temporary b-tree (i.e. a sort) or doesn't read contacts_list_index at all
+   private void checkPlan(String query){
+      String plan = databaseConnector.explainQueryPlan(query);
+      Log.i(TAG, query + "\n" + plan);
+      assertFalse("list query sorts instead of using contacts_list_index:\n" + query + "\n" + plan, plan.contains("TEMP B-TREE"));
+      assertTrue("list query does not use contacts_list_index:\n" + query + "\n" + plan, plan.contains("contacts_list_index"));
+   }
+}
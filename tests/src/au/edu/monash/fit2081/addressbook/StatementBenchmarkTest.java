@@ -0,0 +1,185 @@
+// StatementBenchmarkTest.java
+// Microbenchmark comparing the old ContentValues write path with the precompiled SQLiteStatements used by DatabaseConnector.
+// The times are only logged (a test can't assert them reliably on every device), read them with adb logcat -s StatementBenchmarkTest.
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.File;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+@LargeTest
+public class StatementBenchmarkTest extends AndroidTestCase{
+   private static final String TAG = "StatementBenchmarkTest";
+   private static final String BENCHMARK_DATABASE_NAME = "StatementBenchmark"; // scratch db, the user's contacts are never touched
+   private static final int WARMUP_ROWS = 500; 	// rows inserted/updated/deleted before timing starts (JIT, page cache)
+   private static final int ROWS = 5000; 			// rows timed per operation and per path
+   private static final String UPDATE_SQL = "UPDATE contacts SET name = ?, email = ?, favourite = ?, phone = ?, street = ?, city = ? WHERE _id = ?";
+   
+   private File databaseFile;
+   private SQLiteDatabase db;
+   
+   @Override
+   protected void setUp() throws Exception{
+      super.setUp();
+      databaseFile = getContext().getDatabasePath(BENCHMARK_DATABASE_NAME);
+      db = openScratchDatabase();
+   }
+   
+   @Override
+   protected void tearDown() throws Exception{
+      db.close();
+      SQLiteDatabase.deleteDatabase(databaseFile); // also removes the -wal and -shm files
+      super.tearDown();
+   }
+   
+   // runs both paths on the scratch database and logs a one line per operation report
+   public void testWritePaths(){
+      // warm up both paths before anything is timed
+      runContentValues(db, WARMUP_ROWS);
+      runStatements(db, WARMUP_ROWS);
+      
+      long[] contentValues = runContentValues(db, ROWS);
+      long[] statements = runStatements(db, ROWS);
+      
+      StringBuilder report = new StringBuilder();
+      String[] operations = {"insert", "update", "delete"};
+      for (int i = 0; i < operations.length; i++)
+         report.append(String.format("%s: ContentValues %d ns/op, SQLiteStatement %d ns/op (%.2fx)%n", 
+            operations[i], contentValues[i] / ROWS, statements[i] / ROWS, (double) contentValues[i] / statements[i]));
+      Log.i(TAG, report.toString());
+   }
+   
+   // an update by either path writes the same values to the row it is given (so the two paths time the same work)
+   public void testPathsWriteTheSameRows(){
+      ContentValues values = new ContentValues();
+      putContact(values, 1);
+      long[] ids = {db.insert("contacts", null, values), db.insert("contacts", null, values)};
+      
+      values = new ContentValues();
+      putContact(values, 2);
+      assertEquals(1, db.update("contacts", values, "_id=" + ids[0], null));
+      SQLiteStatement update = db.compileStatement(UPDATE_SQL);
+      try{
+         bindContact(update, 2);
+         update.bindLong(7, ids[1]);
+         assertEquals(1, update.executeUpdateDelete());
+      }
+      finally{
+         update.close();
+      }
+      
+      String row = "SELECT name || email || favourite || phone || street || city FROM contacts WHERE _id = ";
+      assertEquals(DatabaseUtils.stringForQuery(db, row + ids[0], null), DatabaseUtils.stringForQuery(db, row + ids[1], null));
+   }
+   
+   // a scratch database with the same contacts table as DatabaseConnector.DatabaseOpenHelper creates (schema version 2, without the indexes)
+   private SQLiteDatabase openScratchDatabase(){
+      SQLiteDatabase.deleteDatabase(databaseFile);
+      databaseFile.getParentFile().mkdirs();
+      
+      SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+      db.enableWriteAheadLogging();
+      db.execSQL(
+         "CREATE TABLE contacts" +
+         "(_id integer primary key autoincrement," +
+         "name TEXT, email TEXT, favourite INTEGER NOT NULL DEFAULT 0, phone TEXT," +
+         "street TEXT, city TEXT);");
+      return db;
+   }
+   
+   // the write path as DatabaseConnector used to do it: a new ContentValues per call and the id concatenated into the where clause
+   // returns elapsed nanoseconds for {insert, update, delete} of rows rows
+   private long[] runContentValues(SQLiteDatabase db, int rows){
+      long[] ids = new long[rows];
+      long[] elapsed = new long[3];
+      
+      long start = System.nanoTime();
+      for (int i = 0; i < rows; i++){
+         ContentValues newContact = new ContentValues();
+         putContact(newContact, i);
+         ids[i] = db.insert("contacts", null, newContact);
+      }
+      elapsed[0] = System.nanoTime() - start;
+      
+      start = System.nanoTime();
+      for (int i = 0; i < rows; i++){
+         ContentValues editContact = new ContentValues();
+         putContact(editContact, i + 1);
+         db.update("contacts", editContact, "_id=" + ids[i], null);
+      }
+      elapsed[1] = System.nanoTime() - start;
+      
+      start = System.nanoTime();
+      for (int i = 0; i < rows; i++)
+         db.delete("contacts", "_id=" + ids[i], null);
+      elapsed[2] = System.nanoTime() - start;
+      
+      return elapsed;
+   }
+   
+   // the write path as DatabaseConnector does it now: statements compiled once, parameters bound per call
+   private long[] runStatements(SQLiteDatabase db, int rows){
+      SQLiteStatement insert = db.compileStatement(
+         "INSERT INTO contacts (name, email, favourite, phone, street, city) VALUES (?, ?, ?, ?, ?, ?)");
+      SQLiteStatement update = db.compileStatement(UPDATE_SQL);
+      SQLiteStatement delete = db.compileStatement("DELETE FROM contacts WHERE _id = ?");
+      long[] ids = new long[rows];
+      long[] elapsed = new long[3];
+      
+      try{
+         long start = System.nanoTime();
+         for (int i = 0; i < rows; i++){
+            bindContact(insert, i);
+            ids[i] = insert.executeInsert();
+         }
+         elapsed[0] = System.nanoTime() - start;
+         
+         start = System.nanoTime();
+         for (int i = 0; i < rows; i++){
+            bindContact(update, i + 1);
+            update.bindLong(7, ids[i]);
+            update.executeUpdateDelete();
+         }
+         elapsed[1] = System.nanoTime() - start;
+         
+         start = System.nanoTime();
+         for (int i = 0; i < rows; i++){
+            delete.bindLong(1, ids[i]);
+            delete.executeUpdateDelete();
+         }
+         elapsed[2] = System.nanoTime() - start;
+      }
+      finally{
+         insert.close();
+         update.close();
+         delete.close();
+      }
+      
+      return elapsed;
+   }
+   
+   // both paths write exactly the same values for a given n
+   private static void putContact(ContentValues values, int n){
+      values.put("name", "Contact " + n);
+      values.put("email", "contact" + n + "@example.com");
+      values.put("favourite", (n % 10 == 0) ? 1 : 0);
+      values.put("phone", "0400 000 " + n);
+      values.put("street", n + " Example Street");
+      values.put("city", "Clayton VIC 3800");
+   }
+   
+   private static void bindContact(SQLiteStatement statement, int n){
+      statement.bindString(1, "Contact " + n);
+      statement.bindString(2, "contact" + n + "@example.com");
+      statement.bindLong(3, (n % 10 == 0) ? 1 : 0);
+      statement.bindString(4, "0400 000 " + n);
+      statement.bindString(5, n + " Example Street");
+      statement.bindString(6, "Clayton VIC 3800");
+   }
+}
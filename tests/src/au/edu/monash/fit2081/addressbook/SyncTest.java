@@ -0,0 +1,234 @@
+// SyncTest.java
+// End to end tests of SyncEngine against MockSyncServer: two scratch databases (two devices) sync through the same server and
+// must end up with the same contacts, with a steady-state sync transferring only the rows changed since the last one.
+// (it makes HTTP requests, if only to the loopback interface, on the instrumentation thread, not the App's GUI thread)
+package au.edu.monash.fit2081.addressbook;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+@MediumTest
+public class SyncTest extends AndroidTestCase{
+   private static final String TAG = "SyncTest";
+   private static final String[] DATABASE_NAMES = {"SyncTestA", "SyncTestB"}; // scratch dbs, the user's contacts are never touched
+   private static final int CONTACTS = 1200; 	// more than a page or a batch, so both are paged
+   
+   private Context context;
+   private MockSyncServer server;
+   private DatabaseConnector.DatabaseOpenHelper helperA, helperB;
+   private SQLiteDatabase a, b;
+   private SyncEngine syncA, syncB;
+   
+   // two empty devices and a server with nothing on it, then A gets CONTACTS contacts (not synced yet)
+   @Override
+   protected void setUp() throws Exception{
+      super.setUp();
+      context = getContext();
+      server = new MockSyncServer();
+      helperA = openHelper(DATABASE_NAMES[0]);
+      helperB = openHelper(DATABASE_NAMES[1]);
+      a = helperA.getWritableDatabase();
+      b = helperB.getWritableDatabase();
+      syncA = new SyncEngine(a, server.getUrl(), false);
+      syncB = new SyncEngine(b, server.getUrl(), false);
+      syncA.setBackoff(10, 100);
+      syncB.setBackoff(10, 100);
+      
+      a.beginTransaction();
+      try{
+         for (int i = 0; i < CONTACTS; i++)
+            insert(a, "Contact " + i, "contact" + i + "@example.com", "0400 000 " + i);
+         a.setTransactionSuccessful();
+      }
+      finally{
+         a.endTransaction();
+      }
+   }
+   
+   @Override
+   protected void tearDown() throws Exception{
+      Log.i(TAG, "server: " + server.getRequests() + " requests, " + server.getChangesSent() + " changes sent, " + 
+         server.getChangesReceived() + " received");
+      helperA.close();
+      helperB.close();
+      server.close();
+      for (String name : DATABASE_NAMES)
+         SQLiteDatabase.deleteDatabase(context.getDatabasePath(name)); // also removes the -wal and -shm files
+      super.tearDown();
+   }
+   
+   // first sync: everything A has goes up, B pulls it all
+   public void testFirstSync() throws IOException{
+      firstSync();
+      
+      // nothing changed: nothing is transferred (the GET has no changes, there is no POST)
+      expect("A no-op sync", syncA.sync(null), 0, 0, 0);
+      expect("B no-op sync", syncB.sync(null), 0, 0, 0);
+   }
+   
+   // steady state: 3 updates and a delete on A are 4 rows up and 4 rows down, not CONTACTS
+   public void testDeltaSync() throws IOException{
+      firstSync();
+      
+      update(a, 1, "Changed 1");
+      update(a, 2, "Changed 2");
+      update(a, 3, "Changed 3");
+      a.execSQL(DatabaseConnector.DELETE_SQL, new Object[] {4});
+      expect("A delta sync", syncA.sync(null), 0, 4, 0);
+      SyncEngine.Result delta = syncB.sync(null);
+      expect("B delta sync", delta, 4, 0, 0);
+      assertEquals("B delta sync deleted " + delta.deletedIds, 1, delta.deletedIds.size());
+      expectSame(a, b);
+      expect("B sync after delete", syncB.sync(null), 0, 0, 0); // the remote delete left no tombstone to push back
+   }
+   
+   // conflict: both change contact 10, B's change is the later one and wins on both
+   // (B pulled the contacts in the order A pushed them, so the same contact has the same _id in both)
+   public void testConflict() throws IOException{
+      firstSync();
+      
+      update(a, 10, "Changed on A");
+      sleep(); // updated_at is in ms
+      update(b, 10, "Changed on B");
+      expect("A conflict sync", syncA.sync(null), 0, 1, 0);
+      expect("B conflict sync", syncB.sync(null), 1, 1, 1); // pulls A's change, keeps its own and pushes it over A's
+      expect("A sync after conflict", syncA.sync(null), 1, 0, 0);
+      expectSame(a, b);
+      expectName(a, 10, "Changed on B");
+   }
+   
+   // retries: the server fails the next 2 requests, the sync still succeeds
+   public void testRetries() throws IOException{
+      firstSync();
+      
+      update(a, 20, "Changed after 503s");
+      server.failNext(2, 503);
+      SyncEngine.Result retried = syncA.sync(null);
+      expect("A sync with 503s", retried, 0, 1, 0);
+      assertEquals("A sync with 503s requests", 4, retried.attempts); // GET, GET, GET (the first that succeeds), POST
+      expect("B sync after retries", syncB.sync(null), 1, 0, 0);
+      expectSame(a, b);
+   }
+   
+   // a contact without a name on the server (written by a client that doesn't validate) is never stored: one B doesn't have
+   // is left out, and a blank name over one A has is refused and A's version pushed back over it
+   public void testBlankNameRejected() throws IOException{
+      firstSync();
+      
+      insert(a, " ", "blank@example.com", "0400 999 999");
+      expect("A sync with a blank contact", syncA.sync(null), 0, 1, 0);
+      expect("B sync with a blank contact", syncB.sync(null), 1, 0, 0, 1);
+      assertEquals("B contacts", CONTACTS, DatabaseUtils.queryNumEntries(b, "contacts"));
+      
+      update(b, 5, " ");
+      expect("B sync blanking a name", syncB.sync(null), 0, 1, 0);
+      expect("A sync refusing a blank name", syncA.sync(null), 1, 1, 0, 1);
+      expect("B sync after the refusal", syncB.sync(null), 1, 0, 0);
+      expectName(b, 5, "Contact 4"); // (the contacts were inserted from _id 1)
+   }
+   
+   private void firstSync() throws IOException{
+      expect("A first sync", syncA.sync(null), 0, CONTACTS, 0);
+      expect("B first sync", syncB.sync(null), CONTACTS, 0, 0);
+      expectSame(a, b);
+   }
+   
+   private DatabaseConnector.DatabaseOpenHelper openHelper(String name){
+      SQLiteDatabase.deleteDatabase(context.getDatabasePath(name)); // left over from a run that didn't finish
+      return new DatabaseConnector.DatabaseOpenHelper(context, name, null, DatabaseConnector.DATABASE_VERSION);
+   }
+   
+   // a local write, as DatabaseConnector makes it (so it is marked dirty)
+   private static void insert(SQLiteDatabase db, String name, String email, String phone){
+      SQLiteStatement statement = db.compileStatement(DatabaseConnector.INSERT_SQL);
+      try{
+         DatabaseConnector.bindContact(statement, name, email, false, phone, "1 Main St", "Melbourne");
+         statement.executeInsert();
+      }
+      finally{
+         statement.close();
+      }
+   }
+   
+   private static void update(SQLiteDatabase db, long id, String name){
+      SQLiteStatement statement = db.compileStatement(DatabaseConnector.UPDATE_SQL);
+      try{
+         DatabaseConnector.bindContact(statement, name, "contact" + id + "@example.com", false, "0400 000 " + id, "1 Main St", "Melbourne");
+         statement.bindLong(8, id);
+         statement.executeUpdateDelete();
+      }
+      finally{
+         statement.close();
+      }
+   }
+   
+   private static void expect(String sync, SyncEngine.Result result, int pulled, int pushed, int conflicts){
+      expect(sync, result, pulled, pushed, conflicts, 0);
+   }
+   
+   private static void expect(String sync, SyncEngine.Result result, int pulled, int pushed, int conflicts, int rejected){
+      Log.i(TAG, sync + ": " + result);
+      assertTrue(sync + ": " + result + ", expected pulled " + pulled + ", pushed " + pushed + ", conflicts " + conflicts + 
+         ", rejected " + rejected, 
+         result.pulled == pulled && result.pushed == pushed && result.conflicts == conflicts && result.rejected == rejected);
+   }
+   
+   // the same contacts (by sync id) with the same values and versions, and nothing left to push on either side
+   private static void expectSame(SQLiteDatabase a, SQLiteDatabase b){
+      String contentsA = contents(a), contentsB = contents(b);
+      assertEquals("databases differ after sync", contentsA, contentsB);
+   }
+   
+   private static String contents(SQLiteDatabase db){
+      StringBuilder contents = new StringBuilder();
+      Cursor cursor = db.rawQuery("SELECT sync_id, version, dirty, name, email, phone, street, city, favourite FROM contacts ORDER BY sync_id", null);
+      try{
+         while (cursor.moveToNext()){
+            for (int column = 0; column < cursor.getColumnCount(); column++)
+               contents.append(cursor.getString(column)).append('|');
+            contents.append('\n');
+         }
+      }
+      finally{
+         cursor.close();
+      }
+      
+      Cursor tombstones = db.rawQuery("SELECT count(*) FROM sync_tombstones", null);
+      try{
+         tombstones.moveToFirst();
+         contents.append(tombstones.getLong(0)).append(" tombstones\n");
+      }
+      finally{
+         tombstones.close();
+      }
+      return contents.toString();
+   }
+   
+   private static void expectName(SQLiteDatabase db, long id, String name){
+      Cursor cursor = db.rawQuery("SELECT name FROM contacts WHERE _id = ?", new String[] {String.valueOf(id)});
+      try{
+         assertTrue("contact " + id + " isn't there after sync", cursor.moveToFirst());
+         assertEquals("contact " + id + " name after sync", name, cursor.getString(0));
+      }
+      finally{
+         cursor.close();
+      }
+   }
+   
+   private static void sleep(){
+      try{
+         Thread.sleep(10);
+      }
+      catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }
+}